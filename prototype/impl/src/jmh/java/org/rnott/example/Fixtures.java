@@ -0,0 +1,48 @@
+package org.rnott.example;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.rnott.example.api.EntityState;
+import org.rnott.example.api.PageOfExamples;
+import org.rnott.example.persistence.ExampleEntity;
+import org.rnott.example.persistence.ExampleMapper;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+
+/**
+ * Representations shared by the benchmarks, shaped like those of ExampleApiTest.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Create the first page of a search.
+     *
+     * @param size the number of examples in the page
+     * @return the page
+     */
+    public static PageOfExamples page(int size) {
+        OffsetDateTime now = OffsetDateTime.now();
+        List<ExampleEntity> entities = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entities.add(ExampleEntity.builder()
+                    .id(UUID.randomUUID())
+                    .name("example-" + i)
+                    .description("example number " + i)
+                    .state(EntityState.ACTIVE)
+                    .created(now.minusDays(1))
+                    .createdBy("me")
+                    .modified(now)
+                    .modifiedBy("you")
+                    .version(i % 10)
+                    .tag("foo", "bar")
+                    .tag("rank", String.valueOf(i))
+                    .build());
+        }
+        return ExampleMapper.INSTANCE.toPage(new PageImpl<>(entities, PageRequest.of(0, size), size * 10L));
+    }
+}
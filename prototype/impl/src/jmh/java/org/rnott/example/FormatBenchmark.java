@@ -0,0 +1,74 @@
+package org.rnott.example;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.example.api.PageOfExamples;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+/**
+ * Compares the payload size and the cost of encoding and decoding a page of
+ * examples using each of the negotiated formats. The mappers are configured as
+ * by {@link Main#configureResources}. The size of each payload is reported with
+ * the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatBenchmark {
+
+    @Param({"json", "cbor", "smile"})
+    private String format;
+
+    @Param({"10", "1000"})
+    private int size;
+
+    private ObjectMapper mapper;
+    private PageOfExamples page;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        Jackson2ObjectMapperBuilder builder = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .modulesToInstall(new BlackbirdModule());
+        mapper = switch (format) {
+            case "cbor" -> new CBORMapper();
+            case "smile" -> new SmileMapper();
+            default -> new ObjectMapper();
+        };
+        builder.configure(mapper);
+        page = Fixtures.page(size);
+        encoded = mapper.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public byte[] encode(PayloadSize payload) throws Exception {
+        byte[] written = mapper.writeValueAsBytes(page);
+        payload.bytes = written.length;
+        return written;
+    }
+
+    @Benchmark
+    public PageOfExamples decode(PayloadSize payload) throws Exception {
+        payload.bytes = encoded.length;
+        return mapper.readValue(encoded, PageOfExamples.class);
+    }
+}
@@ -0,0 +1,19 @@
+package org.rnott.example;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reports the size of the payload written or read by a benchmark, alongside its
+ * score, as the <code>bytes</code> secondary result.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class PayloadSize {
+
+    /**
+     * The size of the payload, in bytes.
+     */
+    public long bytes;
+}
@@ -0,0 +1,85 @@
+package org.rnott.example;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rnott.example.api.PageOfExamples;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+/**
+ * Compares serializing a page of examples with the former configuration (pretty
+ * printed) and the serialization profiles. The size of each payload is reported
+ * with the score.
+ *
+ * @see SerializationProfile
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"10", "1000"})
+    private int size;
+
+    private PageOfExamples page;
+    private ObjectMapper indented;
+    private ObjectMapper debug;
+    private ObjectMapper production;
+
+    @Setup
+    public void setup() {
+        page = Fixtures.page(size);
+        indented = Jackson2ObjectMapperBuilder.json()
+                .indentOutput(true)
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .build();
+        debug = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .build();
+        production = Jackson2ObjectMapperBuilder.json()
+                .serializationInclusion(JsonInclude.Include.NON_NULL)
+                .modulesToInstall(new BlackbirdModule())
+                .build();
+    }
+
+    @Benchmark
+    public byte[] writeIndented(PayloadSize payload) {
+        return write(indented, payload);
+    }
+
+    @Benchmark
+    public byte[] writeDebug(PayloadSize payload) {
+        return write(debug, payload);
+    }
+
+    @Benchmark
+    public byte[] writeProduction(PayloadSize payload) {
+        return write(production, payload);
+    }
+
+    private byte[] write(ObjectMapper mapper, PayloadSize payload) {
+        byte[] written;
+        try {
+            written = mapper.writeValueAsBytes(page);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        payload.bytes = written.length;
+        return written;
+    }
+}
@@ -0,0 +1,93 @@
+package org.rnott.example.feature;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares formatting the dates of HTTP headers for each response with
+ * {@link HttpDates}. The modified dates are drawn from a working set of
+ * entities, as when the same entities are requested repeatedly. Every
+ * processor runs the benchmark, as request threads do, so that contention
+ * for the shared dates is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class HttpDatesBenchmark {
+
+    // the formatting performed for each response before HttpDates
+    private static final DateTimeFormatter HTTP_TIME = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z",
+            Locale.ENGLISH);
+
+    @Param({"100", "10000"})
+    private int entities;
+
+    private HttpDates dates;
+    private OffsetDateTime[] modified;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dates = new HttpDates(HttpDates.DEFAULT_CAPACITY);
+        dates.start();
+        OffsetDateTime now = OffsetDateTime.now();
+        modified = new OffsetDateTime[entities];
+        for (int i = 0; i < entities; i++) {
+            modified[i] = now.minusSeconds(ThreadLocalRandom.current().nextLong(86_400 * 30));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dates.stop();
+    }
+
+    private OffsetDateTime anyModified() {
+        return modified[ThreadLocalRandom.current().nextInt(modified.length)];
+    }
+
+    @Benchmark
+    public String formatNow() {
+        return OffsetDateTime.now()
+                .atZoneSameInstant(ZoneId.of("GMT"))
+                .format(HTTP_TIME);
+    }
+
+    @Benchmark
+    public String cachedNow() {
+        return dates.now();
+    }
+
+    @Benchmark
+    public String formatModified() {
+        return anyModified()
+                .atZoneSameInstant(ZoneId.of("GMT"))
+                .format(HTTP_TIME);
+    }
+
+    @Benchmark
+    public String cachedModified() {
+        return dates.format(anyModified());
+    }
+}
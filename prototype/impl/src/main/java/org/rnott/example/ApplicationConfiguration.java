@@ -3,12 +3,19 @@ package org.rnott.example;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.rnott.example.persistence.DefaultEntityRepository;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 
 @Configuration
-//@EnableJpaRepositories("org.rnott.example.persistence")
+@EnableJpaRepositories(
+        basePackages = "org.rnott.example.persistence",
+        repositoryBaseClass = DefaultEntityRepository.class
+)
 public class ApplicationConfiguration {
     /*
      * JPA specific configuration.
@@ -20,6 +27,7 @@ public class ApplicationConfiguration {
 
     /*
     Jackson serialization customizations.
+    Module beans are registered with the object mapper by Spring Boot.
      */
 
     /**
@@ -27,6 +35,7 @@ public class ApplicationConfiguration {
      *
      * @return JDK 8 module.
      */
+    @Bean
     public Jdk8Module jdk8Module() {
         return new Jdk8Module();
     }
@@ -36,23 +45,38 @@ public class ApplicationConfiguration {
      *
      * @return JDK 8 date/time module.
      */
+    @Bean
     public JavaTimeModule javaTimeModule() {
         return new JavaTimeModule();
     }
 
+    /**
+     * Access properties using generated lambdas rather than reflection.
+     * Only enabled by the production serialization profile.
+     *
+     * @return bytecode accessor module.
+     * @see SerializationProfile#PRODUCTION
+     */
+    @Bean
+    @ConditionalOnProperty(name = "service.serialization.profile", havingValue = "production", matchIfMissing = true)
+    public BlackbirdModule blackbirdModule() {
+        return new BlackbirdModule();
+    }
+
     /**
      * Customize JSON serialization.
      * <ul>
      *     <li>Ignore properties with NULL values</li>
-     *     <li>Pretty print (might want to disable in production)</li>
+     *     <li>Compact output, pretty printing is on request by the debug serialization profile</li>
      * </ul>
      *
      * @return serialization configuration
+     * @see SerializationProfile
      */
     @Bean
     public Jackson2ObjectMapperBuilderCustomizer jsonCustomizer() {
         return builder -> builder
-                .indentOutput(true)
+                .indentOutput(false)
                 .serializationInclusion(JsonInclude.Include.NON_NULL);
     }
 }
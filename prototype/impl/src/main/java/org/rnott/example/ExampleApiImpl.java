@@ -1,125 +1,265 @@
 package org.rnott.example;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import jakarta.ws.rs.core.Application;
 import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.core.UriBuilder;
 import jakarta.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
+import org.rnott.example.api.BatchItemResult;
 import org.rnott.example.api.Example;
 import org.rnott.example.api.ExampleApi;
 import org.rnott.example.api.PageOfExamples;
 import org.rnott.example.api.PatchDocument;
+import org.rnott.example.feature.Conditional;
 import org.rnott.example.feature.Expires;
+import org.rnott.example.feature.Idempotent;
+import org.rnott.example.feature.ValidatorSource;
+import org.rnott.example.feature.Validators;
+import org.rnott.example.persistence.BatchResult;
+import org.rnott.example.persistence.CountStrategy;
 import org.rnott.example.persistence.ExampleEntity;
 import org.rnott.example.persistence.ExampleMapper;
 import org.rnott.example.persistence.ExampleRepository;
+import org.rnott.example.persistence.Field;
+import org.rnott.example.persistence.InvalidationBus;
+import org.rnott.example.persistence.PatchConflictException;
 import org.rnott.example.persistence.SearchCriteria;
 import org.rnott.example.persistence.SearchFactory;
+import org.rnott.example.problems.BadRequestException;
+import org.rnott.example.problems.ConflictException;
 import org.rnott.example.problems.NotFoundException;
+import org.rnott.example.problems.PreconditionFailedException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Component;
 
 @Component
 @Slf4j
-public class ExampleApiImpl extends Application implements ExampleApi {
+public class ExampleApiImpl extends Application implements ExampleApi, ValidatorSource {
 
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private HttpHeaders headers;
+
     @Autowired
     private SearchFactory searchFactory;
 
     @Autowired
     private ExampleRepository repository;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ExampleCache cache;
+
+    @Autowired
+    private InvalidationBus invalidations;
+
+    /**
+     * The number of instances of a batch written in a single transaction.
+     */
+    @Value("${service.batch.chunk-size:1000}")
+    private int chunkSize;
+
+    /**
+     * Whether an exact count is performed concurrently with fetching the page,
+     * on a second connection.
+     */
+    @Value("${service.search.concurrent-count:false}")
+    private boolean concurrentCount;
+
     @Override
     public Map<String, Object> getProperties() {
         throw new UnsupportedOperationException();
     }
 
     @Override
+    public Optional<Validators> validatorsFor(UUID id) {
+        // tags are part of the entity version
+        Example cached = cache.get(id).map(ExampleCache.Entry::example).orElse(null);
+        if (cached != null) {
+            return Optional.of(Validators.of(id, cached.getVersion(), cached.getMetadata().getModified()));
+        }
+        return repository.findVersionById(id)
+                .map(v -> Validators.of(v.id(), v.version(), v.modified()));
+    }
+
+    @Override
+    @Conditional
     public void clearTags(UUID id) {
-        ExampleEntity entity = repository.findByIdWithTags(id)
-                .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        entity.getTags().clear();
-        repository.save(entity);
+        if (ifMatch(id, version -> repository.clearTags(id, version), ExampleApiImpl::written).isEmpty()) {
+            throw new NotFoundException(String.format("id: %s", id));
+        }
     }
 
     @Override
+    @Idempotent
     public Example create(Example example) {
         ExampleEntity entity = ExampleMapper.INSTANCE.toEntity(example);
-        return ExampleMapper.INSTANCE.toApi(
-                repository.save(entity)
-        );
+        Long written = null;
+        try {
+            ExampleEntity saved = repository.save(entity);
+            written = saved.getVersion();
+            return ExampleMapper.INSTANCE.toApi(saved);
+        } finally {
+            if (example.getId() != null) {
+                // an existing entity is replaced
+                invalidations.publish(ExampleEntity.class, example.getId(), written);
+            }
+        }
     }
 
     @Override
     public void delete(UUID id) {
         // SD fails silently if entity does not exist (this is good)
-        repository.deleteById(id);
+        try {
+            repository.deleteById(id);
+        } finally {
+            // a deleted entity has no version to retain
+            invalidations.publish(ExampleEntity.class, id, null);
+        }
+    }
+
+    @Override
+    public void deleteAll(List<UUID> ids) {
+        // as for single entities, those that do not exist are ignored
+        try {
+            repository.deleteAllByIdInBatch(ids);
+        } finally {
+            invalidations.publishAll(ExampleEntity.class, ids);
+        }
     }
 
     @Override
-    public Example fetch(UUID id) {
-        ExampleEntity entity = repository.findById(id)
+    @Conditional
+    public Example fetch(UUID id, String fields) {
+        Field selection = fieldsOf(fields);
+        if (selection == null) {
+            return cached(id, false).example();
+        }
+        // only query the columns of the selected fields
+        SearchCriteria<ExampleEntity> search;
+        try {
+            search = searchFactory.searchCriteriaBuilderFor(ExampleEntity.class)
+                    .exactMatch("id", id)
+                    .select(ExampleMapper.INSTANCE.propertiesFor(selection))
+                    .countStrategy(CountStrategy.NONE)
+                    .build();
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+        ExampleEntity entity = repository.search(search, Pageable.ofSize(1)).stream()
+                .findFirst()
                 .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        return ExampleMapper.INSTANCE.toApi(entity);
+        return ExampleMapper.INSTANCE.select(ExampleMapper.INSTANCE.toApi(entity), selection);
     }
 
     @Override
+    @Conditional
     public String fetchSingleTag(UUID id, String name) {
-        ExampleEntity entity = repository.findByIdWithTags(id)
-                .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        if (entity.getTags().containsKey(name)) {
-            return entity.getTags().get(name);
+        Map<String, String> tags = cached(id, true).tags();
+        if (tags.containsKey(name)) {
+            return tags.get(name);
         }
         throw new NotFoundException(String.format("nane: %s", name));
     }
 
     @Override
+    @Conditional
     public Map<String, String> fetchTags(UUID id) {
-        ExampleEntity entity = repository.findByIdWithTags(id)
+        return cached(id, true).tags();
+    }
+
+    /**
+     * Fetch an entity from the cache, or from the database if it is not cached
+     * (or its tags are required but not cached).
+     *
+     * @param id the entity identifier
+     * @param tags whether the tags of the entity are required
+     * @return the entity
+     * @throws NotFoundException if the entity does not exist
+     */
+    private ExampleCache.Entry cached(UUID id, boolean tags) {
+        ExampleCache.Entry entry = cache.get(id).orElse(null);
+        if (entry != null && (!tags || entry.tags() != null)) {
+            return entry;
+        }
+        long stamp = cache.stamp(id);
+        ExampleEntity entity = (tags ? repository.findByIdWithTags(id) : repository.findById(id))
                 .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        return entity.getTags();
+        entry = ExampleCache.Entry.of(ExampleMapper.INSTANCE.toApi(entity), tags ? entity.getTags() : null);
+        cache.put(id, stamp, entry);
+        return entry;
     }
 
     @Override
+    @Conditional
     public Example patch(UUID id, List<PatchDocument> patchDocuments) {
-        ExampleEntity entity = repository.findById(id)
+        // applied in place, only writing the columns and tags that are modified
+        OptionalLong patched;
+        try {
+            patched = ifMatch(id, version -> repository.patch(id, version, patchDocuments), ExampleApiImpl::written);
+        } catch (PatchConflictException e) {
+            throw new ConflictException(e.getMessage(), e);
+        } catch (InvalidDataAccessApiUsageException e) {
+            // an invalid patch, as translated by the repository
+            throw new BadRequestException(e.getMostSpecificCause().getMessage(), e);
+        }
+        if (patched.isEmpty()) {
+            throw new NotFoundException(String.format("id: %s", id));
+        }
+        return repository.findById(id)
+                .map(ExampleMapper.INSTANCE::toApi)
                 .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        // TODO: implement patch
-        throw new UnsupportedOperationException("Not implemented");
     }
 
     @Override
+    @Conditional
     public void removeSingleTag(UUID id, String name) {
-        ExampleEntity entity = repository.findByIdWithTags(id)
-                .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        var tags = entity.getTags();
-        tags.remove(name);
-        repository.save(entity);
+        if (ifMatch(id, version -> repository.removeTag(id, version, name), ExampleApiImpl::written).isEmpty()) {
+            throw new NotFoundException(String.format("id: %s", id));
+        }
     }
 
     @Override
+    @Conditional
     public void replaceSingleTag(UUID id, String name, String value) {
-        ExampleEntity entity = repository.findByIdWithTags(id)
-                .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        entity.getTags().put(name, value);
-        repository.save(entity);
+        if (ifMatch(id, version -> repository.putTag(id, version, name, value), ExampleApiImpl::written).isEmpty()) {
+            throw new NotFoundException(String.format("id: %s", id));
+        }
     }
 
     @Override
+    @Conditional
     public void replaceTags(UUID id, Map<String, String> tags) {
-        ExampleEntity entity = repository.findByIdWithTags(id)
-                .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-        entity.getTags().clear();
-        entity.getTags().putAll(tags);
-        repository.save(entity);
+        if (ifMatch(id, version -> repository.replaceTags(id, version, tags), ExampleApiImpl::written).isEmpty()) {
+            throw new NotFoundException(String.format("id: %s", id));
+        }
     }
 
     @Override
@@ -130,9 +270,181 @@ public class ExampleApiImpl extends Application implements ExampleApi {
             Integer page,
             Integer limit,
             List<String> sort,
+            String cursor,
+            String count,
+            String fields,
             String name
     ) {
         log.info("Search request: page={}, limit={}", page, limit);
+        SearchCriteria.Builder<ExampleEntity> criteria;
+        Field selection = fieldsOf(fields);
+        try {
+            criteria = criteriaFor(id, deleted, sort, name);
+            if (selection != null) {
+                // only query the columns of the selected fields
+                criteria.select(ExampleMapper.INSTANCE.propertiesFor(selection));
+            }
+            if (cursor != null) {
+                criteria.after(cursor);
+            }
+            if (count != null) {
+                criteria.countStrategy(CountStrategy.valueOf(count));
+            }
+            if (concurrentCount) {
+                // an exact count should not add its latency to fetching the page
+                criteria.countConcurrently();
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+        Pageable paging = PageRequest.of(
+                page == null || cursor != null ? 0 : page - 1,  // api is 1-based while impl is 0-based
+                limit == null ? 1000 : limit
+        );
+        SearchCriteria<ExampleEntity> search;
+        try {
+            search = criteria.build();
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+        Page<ExampleEntity> collection = repository.search(search, paging);
+        PageOfExamples result = ExampleMapper.INSTANCE.toPage(collection);
+        if (selection != null) {
+            result.getData().forEach(example -> ExampleMapper.INSTANCE.select(example, selection));
+        }
+        if (search.isKeyset()) {
+            // position is relative to the cursor, not a page number
+            result.currentPage(null);
+        }
+        if (collection.hasNext()) {
+            UriBuilder next = uriInfo.getRequestUriBuilder();
+            if (search.isOrdered()) {
+                // seek past the last entity rather than skipping rows
+                List<ExampleEntity> content = collection.getContent();
+                next.replaceQueryParam("page")
+                        .replaceQueryParam("cursor", search.cursorFor(content.get(content.size() - 1)));
+            } else {
+                next.replaceQueryParam("page", paging.getPageNumber() + 2);
+            }
+            result.next(next.build());
+        }
+        return result;
+    }
+
+    @Override
+    public List<BatchItemResult> saveAll(List<Example> examples) {
+        List<BatchItemResult> results = new ArrayList<>(examples.size());
+        for (int start = 0; start < examples.size(); start += chunkSize) {
+            List<Example> chunk = examples.subList(start, Math.min(start + chunkSize, examples.size()));
+            // existing entities are replaced
+            List<UUID> ids = chunk.stream()
+                    .map(Example::getId)
+                    .filter(Objects::nonNull)
+                    .toList();
+            try {
+                List<BatchResult<ExampleEntity>> written = repository.saveAllInBatch(
+                        chunk.stream()
+                                .map(ExampleMapper.INSTANCE::toEntity)
+                                .toList()
+                );
+                for (BatchResult<ExampleEntity> item : written) {
+                    results.add(toBatchItemResult(results.size(), item));
+                }
+            } catch (RuntimeException e) {
+                // the chunk is rolled back, but those already written remain
+                log.error("Failed to write batch items {} to {}", start, start + chunk.size() - 1, e);
+                for (Example example : chunk) {
+                    results.add(new BatchItemResult()
+                            .index(results.size())
+                            .status(Status.INTERNAL_SERVER_ERROR.getStatusCode())
+                            .id(example.getId())
+                            .detail("The chunk containing the instance could not be written"));
+                }
+            } finally {
+                invalidations.publishAll(ExampleEntity.class, ids);
+            }
+        }
+        return results;
+    }
+
+    private static BatchItemResult toBatchItemResult(int index, BatchResult<ExampleEntity> item) {
+        BatchItemResult result = new BatchItemResult()
+                .index(index)
+                .id(item.entity().getId());
+        if (item.isWritten()) {
+            result.version(item.entity().getVersion());
+        }
+        return switch (item.outcome()) {
+            case CREATED -> result.status(Status.CREATED.getStatusCode());
+            case REPLACED -> result.status(Status.OK.getStatusCode());
+            case STALE -> result.status(Status.CONFLICT.getStatusCode())
+                    .detail("The instance version is not the current version");
+            case DELETED -> result.status(Status.CONFLICT.getStatusCode())
+                    .detail("The instance has been deleted");
+            case DUPLICATE -> result.status(Status.CONFLICT.getStatusCode())
+                    .detail("The instance appears earlier in the batch");
+        };
+    }
+
+    /**
+     * Streams the matching instances as NDJSON. The response is written after
+     * this method returns, within a read-only transaction.
+     */
+    @Override
+    public StreamingOutput export(List<UUID> id, Boolean deleted, List<String> sort, String name) {
+        // invalid criteria are rejected before streaming, as the repository translates the exception
+        SearchCriteria.Builder<ExampleEntity> criteria;
+        try {
+            criteria = criteriaFor(id, deleted, sort, name)
+                    .countStrategy(CountStrategy.NONE);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+        ObjectWriter writer = objectMapper.writerFor(Example.class)
+                .without(SerializationFeature.INDENT_OUTPUT);
+        return output -> {
+            try {
+                repository.scroll(criteria, entity -> {
+                    try {
+                        output.write(writer.writeValueAsBytes(ExampleMapper.INSTANCE.toApi(entity)));
+                        output.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
+    /**
+     * Parse the fields requested by the client (sparse fieldsets). Fields can
+     * be separated by commas as well as spaces.
+     *
+     * @param fields the requested fields, if any
+     * @return the requested fields, or <code>null</code> for all fields
+     */
+    private static Field fieldsOf(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return null;
+        }
+        try {
+            return Field.newInstance(fields.replace(',', ' '));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Create search criteria from the parameters common to searching and exporting.
+     */
+    private SearchCriteria.Builder<ExampleEntity> criteriaFor(
+            List<UUID> id,
+            Boolean deleted,
+            List<String> sort,
+            String name
+    ) {
         SearchCriteria.Builder<ExampleEntity> criteria = searchFactory.searchCriteriaBuilderFor(ExampleEntity.class);
         // common parameters
         if (deleted != null) {
@@ -144,10 +456,6 @@ public class ExampleApiImpl extends Application implements ExampleApi {
         if (sort != null) {
             criteria.orderAs(sort);
         }
-        Pageable paging = PageRequest.of(
-                page == null ? 0 : page - 1,  // api is 1-based while impl is 0-based
-                limit == null ? 1000 : limit
-        );
 
         /*
         other service defined parameters
@@ -159,26 +467,75 @@ public class ExampleApiImpl extends Application implements ExampleApi {
                 criteria.exactMatch("name", name);
             }
         }
-        Page<ExampleEntity> collection = repository.search(criteria.build(), paging);
-        return ExampleMapper.INSTANCE.toPage(collection);
+        return criteria;
     }
 
     @Override
+    @Conditional
     public Example update(UUID id, Example example) {
         if (!id.equals(example.getId())) {
             throw new IllegalArgumentException("Identifier in the payload differs from the one in the path");
         }
-        // support idempotency
+        return ifMatch(id, version -> {
+            // the version required by the client takes precedence over the payload
+            Long expected = version != null ? version : example.getVersion();
+            // support idempotency: created or replaced by a single statement
+            BatchResult<ExampleEntity> result;
+            try {
+                result = repository.upsert(ExampleMapper.INSTANCE.toEntity(example), expected);
+            } catch (InvalidDataAccessApiUsageException e) {
+                throw new BadRequestException(e.getMostSpecificCause().getMessage(), e);
+            }
+            return switch (result.outcome()) {
+                case CREATED, REPLACED -> ExampleMapper.INSTANCE.toApi(result.entity());
+                case DELETED -> throw new ConflictException(String.format("id: %s has been deleted", id));
+                default -> throw new ObjectOptimisticLockingFailureException(ExampleEntity.class, id);
+            };
+        }, Example::getVersion);
+    }
+
+    /**
+     * Perform a write that is conditional on the entity version required by an
+     * <code>If-Match</code> precondition, if any. The precondition has already
+     * been evaluated, but the entity may have been modified since. The write is
+     * published to the caches of every node, whether or not it succeeds, along
+     * with the version written, if any, so that caches already holding that
+     * version retain it.
+     *
+     * @param id the entity identifier
+     * @param write the write, accepting the required version or <code>null</code>
+     * @param written the version written, given the result of the write, or <code>null</code> if none
+     * @return the result of the write
+     * @throws PreconditionFailedException if the entity is no longer the required version
+     */
+    private <R> R ifMatch(UUID id, Function<Long, R> write, Function<R, Long> written) {
+        Long version = null;
+        String header = headers.getHeaderString(HttpHeaders.IF_MATCH);
+        if (header != null && !"*".equals(header.trim())) {
+            // a single entity tag is supported, otherwise the version is not checked again
+            try {
+                OptionalLong required = Validators.version(id, EntityTag.valueOf(header.trim()));
+                version = required.isPresent() ? required.getAsLong() : null;
+            } catch (IllegalArgumentException e) {
+                // not a single entity tag
+            }
+        }
+        Long published = null;
         try {
-            ExampleEntity current = repository.findById(id)
-                    .orElseThrow(() -> new NotFoundException(String.format("id: %s", id)));
-            ExampleEntity entity = ExampleMapper.INSTANCE.toEntity(example);
-            ExampleMapper.INSTANCE.mergeMetadata(current, entity);
-            ExampleEntity result = repository.save(entity);
-            return ExampleMapper.INSTANCE.toApi(result);
-        } catch (NotFoundException e) {
-            // create it
-            return create(example);
+            R result = write.apply(version);
+            published = written.apply(result);
+            return result;
+        } catch (ObjectOptimisticLockingFailureException e) {
+            if (version == null) {
+                throw e;
+            }
+            throw new PreconditionFailedException(String.format("id: %s", id), e);
+        } finally {
+            invalidations.publish(ExampleEntity.class, id, published);
         }
     }
+
+    private static Long written(OptionalLong version) {
+        return version.isPresent() ? version.getAsLong() : null;
+    }
 }
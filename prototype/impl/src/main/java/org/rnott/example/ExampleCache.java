@@ -0,0 +1,191 @@
+package org.rnott.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.rnott.example.api.Example;
+import org.rnott.example.persistence.ExampleEntity;
+import org.rnott.example.persistence.InvalidationBus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded, in-memory cache of the representations of entities, keyed by their
+ * identifiers, so that repeated reads of the same entities do not query the
+ * database. Entries are evicted by frequency and recency (W-TinyLFU) once the
+ * maximum size is reached, and expire after the time-to-live.
+ * <p>
+ * An entity is invalidated once it is written, by this node or by another node,
+ * as published by the {@link InvalidationBus}. A read that began before the
+ * write completed is not cached, as it may have read the entity as it was: a read
+ * takes a {@link #stamp(UUID) stamp} before querying the database, and its entry
+ * is only cached if no write of the entity (or of another entity sharing the
+ * stamp) has since completed. A cached entry is never replaced by an older
+ * version of the entity, nor invalidated by a write of an older version.
+ * <p>
+ * Cached representations are shared, so they must not be modified.
+ * <p>
+ * Hits, misses and evictions are published as the <code>cache.*</code> metrics
+ * of the <code>examples</code> cache.
+ */
+@Component
+public class ExampleCache {
+
+    /**
+     * A cached entity.
+     *
+     * @param example the representation of the entity
+     * @param tags the tags of the entity, or <code>null</code> if not yet loaded
+     */
+    public record Entry(Example example, Map<String, String> tags) {
+
+        /**
+         * Create an entry.
+         *
+         * @param example the representation of the entity
+         * @param tags the tags of the entity, which are copied, or <code>null</code> if not loaded
+         * @return the entry
+         */
+        public static Entry of(Example example, Map<String, String> tags) {
+            // tag values may be null
+            return new Entry(example, tags == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(tags)));
+        }
+
+        long version() {
+            return example.getVersion() == null ? 0 : example.getVersion();
+        }
+    }
+
+    // writes are tracked per stripe of identifiers, rather than per identifier
+    private static final int STRIPES = 1024;
+
+    private final Cache<UUID, Entry> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    /**
+     * Create the cache.
+     *
+     * @param maximumSize the number of entities retained
+     * @param ttl how long an entity is retained, bounding the staleness of writes that are not published
+     * @param registry the registry of the cache metrics, if any
+     * @param invalidations the entities written by any node, if any
+     */
+    public ExampleCache(
+            @Value("${service.entity-cache.maximum-size:10000}") long maximumSize,
+            @Value("${service.entity-cache.ttl:PT5M}") Duration ttl,
+            MeterRegistry registry,
+            InvalidationBus invalidations
+    ) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        if (registry != null) {
+            CaffeineCacheMetrics.monitor(registry, cache, "examples");
+        }
+        if (invalidations != null) {
+            invalidations.subscribe(ExampleEntity.class, invalidation -> {
+                if (invalidation.id() == null) {
+                    clear();
+                } else {
+                    invalidate(invalidation.id(), invalidation.version());
+                }
+            });
+        }
+    }
+
+    /**
+     * Take a stamp of the writes of an entity, before it is read from the database.
+     *
+     * @param id the entity identifier
+     * @return the stamp
+     * @see #put(UUID, long, Entry)
+     */
+    public long stamp(UUID id) {
+        return generations.get(stripe(id));
+    }
+
+    /**
+     * Fetch a cached entity.
+     *
+     * @param id the entity identifier
+     * @return the entity, if cached
+     */
+    public Optional<Entry> get(UUID id) {
+        return Optional.ofNullable(cache.getIfPresent(id));
+    }
+
+    /**
+     * Cache an entity read from the database, provided that it has not been written
+     * since the read began and that a more recent version is not cached.
+     *
+     * @param id the entity identifier
+     * @param stamp the stamp taken before the entity was read
+     * @param entry the entity
+     */
+    public void put(UUID id, long stamp, Entry entry) {
+        cache.asMap().compute(id, (k, cached) -> {
+            if (stamp != stamp(id)) {
+                return cached;
+            }
+            return cached == null || cached.version() <= entry.version() ? entry : cached;
+        });
+    }
+
+    /**
+     * Invalidate an entity once it has been written.
+     *
+     * @param id the entity identifier
+     */
+    public void invalidate(UUID id) {
+        invalidate(id, null);
+    }
+
+    /**
+     * Invalidate an entity once it has been written, unless the cached entity is
+     * at least the version written.
+     *
+     * @param id the entity identifier
+     * @param version the version written, or <code>null</code> if not known
+     */
+    public void invalidate(UUID id, Long version) {
+        generations.incrementAndGet(stripe(id));
+        if (version == null) {
+            cache.invalidate(id);
+        } else {
+            cache.asMap().computeIfPresent(id, (k, cached) -> cached.version() >= version ? cached : null);
+        }
+    }
+
+    /**
+     * Invalidate entities once they have been written.
+     *
+     * @param ids the entity identifiers
+     */
+    public void invalidateAll(Iterable<UUID> ids) {
+        ids.forEach(this::invalidate);
+    }
+
+    /**
+     * Remove all the cached entities.
+     */
+    public void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+    }
+
+    private static int stripe(UUID id) {
+        return (id.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+}
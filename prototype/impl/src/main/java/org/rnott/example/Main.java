@@ -16,10 +16,24 @@
 
 package org.rnott.example;
 
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.jakarta.rs.cbor.JacksonCBORProvider;
+import com.fasterxml.jackson.jakarta.rs.smile.JacksonSmileProvider;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.rnott.example.feature.CompressionInterceptor;
 import org.rnott.example.feature.HttpCacheFeature;
+import org.rnott.example.feature.HttpDates;
+import org.rnott.example.feature.IdempotencyFeature;
+import org.rnott.example.feature.IdempotencyStore;
+import org.rnott.example.feature.NdjsonProvider;
+import org.rnott.example.feature.PrettyPrintInterceptor;
+import org.rnott.example.feature.ResponseCache;
+import org.rnott.example.persistence.ExampleEntity;
+import org.rnott.example.persistence.InvalidationBus;
 import org.rnott.example.persistence.NoResultExceptionMapper;
 import org.rnott.example.problems.BadRequestExceptionMapper;
+import org.rnott.example.problems.ConflictExceptionMapper;
 import org.rnott.example.problems.ConstraintViolationExceptionMapper;
 import org.rnott.example.problems.DefaultExceptionMapper;
 import org.rnott.example.problems.ForbiddenExceptionMapper;
@@ -33,14 +47,20 @@ import org.rnott.example.problems.NotAuthorizedExceptionMapper;
 import org.rnott.example.problems.NotFoundExceptionMapper;
 import org.rnott.example.problems.NotSupportedExceptionMapper;
 import org.rnott.example.problems.ObjectOptimisticLockingFailureExceptionMapper;
+import org.rnott.example.problems.PreconditionFailedExceptionMapper;
 import org.rnott.example.problems.ServiceUnavailableExceptionMapper;
+import org.rnott.example.problems.UnprocessableContentExceptionMapper;
 import org.rnott.example.problems.ValidationExceptionMapper;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.unit.DataSize;
 
 @Configuration
 @ComponentScan
@@ -51,17 +71,48 @@ public class Main extends SpringBootServletInitializer {
      * Register JAX-RS resources.
      * <p>
      *
+     * @param responseCache the server-side response cache
+     * @param dates the formatter of HTTP header dates
+     * @param idempotencyStore the results of requests made with an idempotency key
+     * @param profile the serialization profile
+     * @param jackson the object mapper configuration, applied to the binary formats
+     * @param compressionMinSize the size below which responses are not compressed
+     * @param invalidations the entities written by any node
      * @return JAX-RS resource configuration.
      */
     @Bean
-    public ResourceConfig configureResources() {
-        return new ResourceConfig()
+    public ResourceConfig configureResources(
+            ResponseCache responseCache,
+            HttpDates dates,
+            IdempotencyStore idempotencyStore,
+            @Value("${service.serialization.profile:production}") SerializationProfile profile,
+            ObjectProvider<Jackson2ObjectMapperBuilder> jackson,
+            @Value("${service.compression.min-size:1KB}") DataSize compressionMinSize,
+            InvalidationBus invalidations
+    ) {
+        // binary formats are configured as for JSON (modules, inclusion, etc.)
+        Jackson2ObjectMapperBuilder builder = jackson.getIfAvailable(Jackson2ObjectMapperBuilder::json);
+        CBORMapper cbor = new CBORMapper();
+        builder.configure(cbor);
+        SmileMapper smile = new SmileMapper();
+        builder.configure(smile);
+
+        // cached responses are invalidated by writes of other nodes as well
+        invalidations.subscribe(ExampleEntity.class, invalidation -> responseCache.invalidate(ExampleApiImpl.class));
+
+        ResourceConfig config = new ResourceConfig()
                 // register resource classes here
                 .register(ExampleApiImpl.class)
                 // register features here
-                .register(HttpCacheFeature.class)
+                .register(new HttpCacheFeature(responseCache, dates))
+                .register(new IdempotencyFeature(idempotencyStore))
+                .register(new CompressionInterceptor((int) compressionMinSize.toBytes()))
+                .register(NdjsonProvider.class)
+                .register(new JacksonCBORProvider(cbor))
+                .register(new JacksonSmileProvider(smile))
                 // register provided exception handlers here
                 .register(BadRequestExceptionMapper.class)
+                .register(ConflictExceptionMapper.class)
                 .register(ConstraintViolationExceptionMapper.class)
                 .register(DefaultExceptionMapper.class)
                 .register(ForbiddenExceptionMapper.class)
@@ -73,13 +124,19 @@ public class Main extends SpringBootServletInitializer {
                 .register(JakartaNotFoundExceptionMapper.class)
                 .register(NotSupportedExceptionMapper.class)
                 .register(ServiceUnavailableExceptionMapper.class)
+                .register(UnprocessableContentExceptionMapper.class)
                 .register(ObjectOptimisticLockingFailureExceptionMapper.class)
+                .register(PreconditionFailedExceptionMapper.class)
                 // should only be registered if JPA is used
                 .register(NoResultExceptionMapper.class)
                 .register(JsonParseExceptionMapper.class)
                 .register(JsonMappingExceptionMapper.class)
                 .register(ValidationExceptionMapper.class);
         // TODO: register any application exception handlers here
+        if (profile == SerializationProfile.DEBUG) {
+            config.register(PrettyPrintInterceptor.class);
+        }
+        return config;
     }
 
     /**
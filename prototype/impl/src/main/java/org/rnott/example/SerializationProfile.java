@@ -0,0 +1,15 @@
+package org.rnott.example;
+
+/**
+ * How responses are serialized, configured using <code>service.serialization.profile</code>.
+ */
+public enum SerializationProfile {
+    /**
+     * Compact output, with bytecode generated property accessors.
+     */
+    PRODUCTION,
+    /**
+     * Compact output, pretty printed when requested with the <code>pretty</code> query parameter.
+     */
+    DEBUG
+}
@@ -0,0 +1,401 @@
+package org.rnott.example.feature;
+
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.container.PreMatching;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses responses using the content coding preferred by the client
+ * (<code>Accept-Encoding</code>). Responses smaller than the minimum size are not
+ * compressed, as the saving does not cover the cost. The compression level is
+ * chosen by media type: streamed and binary content favour speed. Problem details
+ * are never compressed.
+ * <p>
+ * The response is buffered until the minimum size is reached, so the decision is
+ * made without knowing the length of the response. Streamed responses are
+ * flushed as they are compressed.
+ * <p>
+ * This runs outside the other writer interceptors, except the response cache, which
+ * therefore caches compressed responses.
+ * <p>
+ * A compressed representation is a different representation, so a strong entity tag
+ * is suffixed with the content coding (e.g. <code>"...-gzip"</code>). The suffix is
+ * removed from the entity tags of the preconditions of a request before they are
+ * evaluated, and restored to the entity tag of a 304 (Not Modified) response.
+ *
+ * @see HttpCacheFeature.ResponseCacheFilter
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.ENTITY_CODER)
+public class CompressionInterceptor implements WriterInterceptor, ContainerRequestFilter, ContainerResponseFilter {
+
+    /**
+     * Supported content codings. Brotli is not supported as the JDK has no encoder.
+     */
+    public enum Coding {
+        GZIP("gzip") {
+            @Override
+            DeflaterOutputStream encode(OutputStream out, int level) throws IOException {
+                return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+                    {
+                        def.setLevel(level);
+                    }
+
+                    @Override
+                    public void finish() throws IOException {
+                        super.finish();
+                        def.end();
+                    }
+                };
+            }
+        },
+        DEFLATE("deflate") {
+            @Override
+            DeflaterOutputStream encode(OutputStream out, int level) {
+                return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE, true) {
+                    @Override
+                    public void finish() throws IOException {
+                        super.finish();
+                        def.end();
+                    }
+                };
+            }
+        };
+
+        private static final int BUFFER_SIZE = 8192;
+
+        private final String token;
+
+        Coding(String token) {
+            this.token = token;
+        }
+
+        public String token() {
+            return token;
+        }
+
+        abstract DeflaterOutputStream encode(OutputStream out, int level) throws IOException;
+    }
+
+    /**
+     * Compression level by media type (without parameters), for content that is
+     * not otherwise specified.
+     */
+    static final Map<String, Integer> LEVELS = Map.of(
+            // streamed, so favour latency
+            NdjsonProvider.APPLICATION_NDJSON, Deflater.BEST_SPEED,
+            // binary formats gain less from compression
+            "application/cbor", Deflater.BEST_SPEED,
+            "application/x-jackson-smile", Deflater.BEST_SPEED
+    );
+
+    private static final String PROBLEM_DETAILS = "application/problem+json";
+
+    /**
+     * Request property holding the <code>If-None-Match</code> header as sent by the client.
+     */
+    private static final String IF_NONE_MATCH = CompressionInterceptor.class.getName() + ".ifNoneMatch";
+
+    private final int minimumSize;
+
+    @Context
+    private HttpHeaders requestHeaders;
+
+    /**
+     * Create the interceptor.
+     *
+     * @param minimumSize the size, in bytes, below which responses are not compressed
+     */
+    public CompressionInterceptor(int minimumSize) {
+        this.minimumSize = minimumSize;
+    }
+
+    /**
+     * Determine the content coding preferred by the client, ignoring codings that
+     * are not supported or not acceptable (a quality of zero).
+     *
+     * @param acceptEncoding the <code>Accept-Encoding</code> request header, if any
+     * @return the content coding or <code>null</code> for no encoding
+     */
+    public static Coding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return null;
+        }
+        Map<Coding, Float> qualities = new EnumMap<>(Coding.class);
+        Float any = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String token = parts[0].trim().toLowerCase(Locale.ROOT);
+            float quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if ("*".equals(token)) {
+                any = quality;
+            }
+            for (Coding coding : Coding.values()) {
+                if (coding.token().equals(token) || (coding == Coding.GZIP && "x-gzip".equals(token))) {
+                    qualities.put(coding, quality);
+                }
+            }
+        }
+        Coding preferred = null;
+        float best = 0;
+        // on equal quality, codings are preferred in declaration order
+        for (Coding coding : Coding.values()) {
+            Float quality = qualities.containsKey(coding) ? qualities.get(coding) : any;
+            if (quality != null && quality > best) {
+                preferred = coding;
+                best = quality;
+            }
+        }
+        return preferred;
+    }
+
+    /**
+     * Create the entity tag of a representation encoded with a content coding.
+     *
+     * @param tag the entity tag of the representation
+     * @param coding the content coding
+     * @return the entity tag suffixed with the coding, or the tag itself when weak
+     */
+    public static EntityTag encoded(EntityTag tag, Coding coding) {
+        return tag.isWeak() ? tag : new EntityTag(tag.getValue() + '-' + coding.token());
+    }
+
+    /**
+     * Determine the entity tag of a representation before it was encoded.
+     *
+     * @param tag the entity tag, possibly suffixed with a content coding
+     * @return the entity tag without the suffix
+     * @see #encoded(EntityTag, Coding)
+     */
+    public static EntityTag decoded(EntityTag tag) {
+        if (!tag.isWeak()) {
+            for (Coding coding : Coding.values()) {
+                String suffix = "-" + coding.token();
+                if (tag.getValue().endsWith(suffix)) {
+                    return new EntityTag(tag.getValue().substring(0, tag.getValue().length() - suffix.length()));
+                }
+            }
+        }
+        return tag;
+    }
+
+    /**
+     * Parse a list of entity tags, such as an <code>If-None-Match</code> header.
+     *
+     * @return the entity tags, or <code>null</code> for a wildcard or a malformed list
+     */
+    static List<EntityTag> entityTags(String header) {
+        if ("*".equals(header.trim())) {
+            return null;
+        }
+        try {
+            return Stream.of(header.split(","))
+                    .map(String::trim)
+                    .filter(tag -> !tag.isEmpty())
+                    .map(EntityTag::valueOf)
+                    .toList();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static Integer level(MediaType mediaType) {
+        if (mediaType == null || mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+            return null;
+        }
+        String type = (mediaType.getType() + '/' + mediaType.getSubtype()).toLowerCase(Locale.ROOT);
+        if (PROBLEM_DETAILS.equals(type)) {
+            return null;
+        }
+        Integer level = LEVELS.get(type);
+        if (level != null) {
+            return level;
+        }
+        boolean text = "text".equals(mediaType.getType())
+                || MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType)
+                || mediaType.getSubtype().endsWith("+json")
+                || MediaType.APPLICATION_XML_TYPE.isCompatible(mediaType);
+        return text ? Deflater.DEFAULT_COMPRESSION : null;
+    }
+
+    /**
+     * Remove the content coding from the entity tags of the preconditions, which are
+     * evaluated against the entity tag of the unencoded representation.
+     */
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        String ifNoneMatch = requestContext.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            requestContext.setProperty(IF_NONE_MATCH, ifNoneMatch);
+        }
+        for (String header : List.of(HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH)) {
+            String value = requestContext.getHeaderString(header);
+            List<EntityTag> tags = value == null ? null : entityTags(value);
+            if (tags != null) {
+                requestContext.getHeaders().putSingle(header, tags.stream()
+                        .map(CompressionInterceptor::decoded)
+                        .map(EntityTag::toString)
+                        .collect(Collectors.joining(", ")));
+            }
+        }
+    }
+
+    /**
+     * Answer 304 (Not Modified) with the entity tag held by the client, which may
+     * be that of an encoded representation.
+     */
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        Object ifNoneMatch = requestContext.getProperty(IF_NONE_MATCH);
+        Object current = responseContext.getHeaders().getFirst(HttpHeaders.ETAG);
+        if (responseContext.getStatus() != 304 || ifNoneMatch == null || current == null) {
+            return;
+        }
+        List<EntityTag> tags = entityTags(ifNoneMatch.toString());
+        if (tags == null) {
+            return;
+        }
+        EntityTag tag = decoded(current instanceof EntityTag t ? t : EntityTag.valueOf(current.toString()));
+        tags.stream()
+                .filter(held -> decoded(held).equals(tag))
+                .findFirst()
+                .ifPresent(held -> responseContext.getHeaders().putSingle(HttpHeaders.ETAG, held));
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        Integer level = level(context.getMediaType());
+        if (level == null) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        Coding coding = negotiate(requestHeaders == null ? null : requestHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if (coding == null || context.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            // not accepted, or already encoded (e.g. by the response cache)
+            context.proceed();
+            return;
+        }
+
+        OutputStream out = context.getOutputStream();
+        ThresholdOutputStream stream = new ThresholdOutputStream(context, out, coding, level, minimumSize);
+        context.setOutputStream(stream);
+        try {
+            context.proceed();
+            stream.finish();
+        } finally {
+            context.setOutputStream(out);
+        }
+    }
+
+    /**
+     * Buffers the response until the minimum size is reached, then encodes the
+     * response. A response that is finished before then is written as is.
+     */
+    private static final class ThresholdOutputStream extends OutputStream {
+
+        private final WriterInterceptorContext context;
+        private final OutputStream out;
+        private final Coding coding;
+        private final int level;
+        private final int threshold;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private DeflaterOutputStream encoder;
+        private boolean finished;
+
+        ThresholdOutputStream(WriterInterceptorContext context, OutputStream out, Coding coding, int level, int threshold) {
+            this.context = context;
+            this.out = out;
+            this.coding = coding;
+            this.level = level;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (encoder != null) {
+                encoder.write(b, off, len);
+                return;
+            }
+            buffer.write(b, off, len);
+            if (buffer.size() >= threshold) {
+                // nothing has been written, so the headers can still be changed
+                context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, coding.token());
+                context.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+                Object tag = context.getHeaders().getFirst(HttpHeaders.ETAG);
+                if (tag != null) {
+                    EntityTag identity = tag instanceof EntityTag t ? t : EntityTag.valueOf(tag.toString());
+                    context.getHeaders().putSingle(HttpHeaders.ETAG, encoded(identity, coding));
+                }
+                encoder = coding.encode(out, level);
+                buffer.writeTo(encoder);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (encoder != null) {
+                encoder.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (encoder == null) {
+                buffer.writeTo(out);
+            } else {
+                encoder.finish();
+            }
+        }
+    }
+}
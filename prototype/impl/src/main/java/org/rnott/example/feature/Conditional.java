@@ -0,0 +1,26 @@
+package org.rnott.example.feature;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables conditional requests for a resource method producing a representation
+ * of a single entity. The preconditions of a request (<code>If-None-Match</code>,
+ * <code>If-Modified-Since</code>) are evaluated before the resource method is
+ * invoked, using validators supplied by the resource, so that revalidating an
+ * unchanged entity does not load it.
+ *
+ * @see ValidatorSource
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Conditional {
+    /**
+     * Determine the path parameter identifying the entity.
+     *
+     * @return the path parameter name
+     */
+    String value() default "id";
+}
@@ -1,22 +1,45 @@
 package org.rnott.example.feature;
 
+import jakarta.ws.rs.HttpMethod;
+import jakarta.ws.rs.Priorities;
 import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
 import jakarta.ws.rs.container.ContainerResponseContext;
 import jakarta.ws.rs.container.ContainerResponseFilter;
 import jakarta.ws.rs.container.DynamicFeature;
 import jakarta.ws.rs.container.ResourceInfo;
 import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.FeatureContext;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.ResponseBuilder;
+import jakarta.ws.rs.core.Response.Status;
 import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.HexFormat;
 import java.util.LinkedHashMap;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.rnott.example.api.Example;
+import org.rnott.example.api.PageOfExamples;
 import org.rnott.example.api.ServiceEntity;
 
 /**
@@ -27,22 +50,99 @@ import org.rnott.example.api.ServiceEntity;
 @Provider
 public class HttpCacheFeature implements DynamicFeature {
 
-    static final DateTimeFormatter HTTP_TIME = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z",
-            Locale.ENGLISH);
+    /**
+     * Request property holding the validators evaluated by the preconditions.
+     */
+    static final String VALIDATORS = Validators.class.getName();
+
+    /**
+     * Request property marking a response served from the response cache.
+     */
+    static final String CACHED = ResponseCache.class.getName() + ".cached";
+
+    private final ResponseCache responseCache;
+    private final HttpDates dates;
+
+    /**
+     * Create the feature without a server-side response cache.
+     */
+    public HttpCacheFeature() {
+        this(null, new HttpDates(HttpDates.DEFAULT_CAPACITY));
+    }
 
-    static String toHttp(OffsetDateTime dt) {
-        return dt.atZoneSameInstant(ZoneId.of("GMT"))
-                .format(HTTP_TIME);
+    /**
+     * Create the feature.
+     *
+     * @param responseCache the server-side response cache, or <code>null</code> for none
+     * @param dates the formatter of header dates
+     */
+    public HttpCacheFeature(ResponseCache responseCache, HttpDates dates) {
+        this.responseCache = responseCache;
+        this.dates = dates;
+    }
+
+    /**
+     * Create the entity tag of a page of entities, digesting the identity and
+     * version of each entity and the page properties that vary with the other
+     * entities in the collection.
+     */
+    static EntityTag entityTag(PageOfExamples page) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(3 * Long.BYTES);
+        buffer.putLong(page.getTotalCount() == null ? -1 : page.getTotalCount())
+                .putLong(page.getLastPage() == null ? -1 : page.getLastPage())
+                .putLong(page.getCurrentPage() == null ? -1 : page.getCurrentPage());
+        digest.update(buffer.flip());
+        if (page.getNext() != null) {
+            digest.update(page.getNext().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (page.getData() != null) {
+            for (Example example : page.getData()) {
+                UUID id = example.getId();
+                buffer.clear()
+                        .putLong(id == null ? 0 : id.getMostSignificantBits())
+                        .putLong(id == null ? 0 : id.getLeastSignificantBits())
+                        .putLong(example.getVersion() == null ? 0 : example.getVersion());
+                digest.update(buffer.flip());
+            }
+        }
+        // half the digest is ample to tell pages apart
+        return new EntityTag(HexFormat.of().formatHex(digest.digest(), 0, 16));
     }
 
     static class GeneralFilter implements ContainerResponseFilter {
 
+        private final HttpDates dates;
+
+        GeneralFilter(HttpDates dates) {
+            this.dates = dates;
+        }
+
         @Override
         public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
                 throws IOException {
             EntityTag tag = null;
-            if (responseContext.getStatus() >= 300) {
-                // no change on error
+            if (responseContext.getStatus() >= 300 || requestContext.getProperty(CACHED) != null) {
+                // no change on error, or when served from the response cache
+                return;
+            }
+
+            Validators validators = (Validators) requestContext.getProperty(VALIDATORS);
+            if (validators != null && responseContext.hasEntity()
+                    && !(responseContext.getEntity() instanceof ServiceEntity)
+                    && (HttpMethod.GET.equals(requestContext.getMethod())
+                    || HttpMethod.HEAD.equals(requestContext.getMethod()))) {
+                // the representation has no version of its own, use the validators of the preconditions
+                if (validators.lastModified() != null) {
+                    responseContext.getHeaders()
+                            .add("Last-Modified", dates.format(validators.lastModified()));
+                }
+                responseContext.getHeaders().add("Etag", validators.entityTag());
                 return;
             }
 
@@ -55,27 +155,31 @@ public class HttpCacheFeature implements DynamicFeature {
                 responseContext.getHeaders()
                         .add("Cache-Control", cc);
                 responseContext.getHeaders()
-                        .add("Last-Modified", toHttp(OffsetDateTime.now()));
+                        .add("Last-Modified", dates.now());
             }
 
             if (responseContext.hasEntity()) {
-                if (responseContext.getEntity() instanceof ServiceEntity) {
-                    // get modified timestamp from metadata
-                    OffsetDateTime dt = ((ServiceEntity) responseContext.getEntity())
-                            .getMetadata().getModified();
-                    responseContext.getHeaders()
-                            .add("Last-Modified", toHttp(dt));
+                if (responseContext.getEntity() instanceof ServiceEntity entity) {
+                    // get modified timestamp from metadata, unless not among the selected fields
+                    OffsetDateTime dt = entity.getMetadata() == null ? null : entity.getMetadata().getModified();
+                    if (dt != null) {
+                        responseContext.getHeaders()
+                                .add("Last-Modified", dates.format(dt));
+                    }
+                    if (tag == null && entity.getId() != null && entity.getVersion() != null) {
+                        tag = Validators.entityTag(entity.getId(), entity.getVersion());
+                    }
                 } else {
                     // use current timestamp
                     responseContext.getHeaders()
                             .add("Last-Modified",
-                                    toHttp(OffsetDateTime.now())
+                                    dates.now()
                             );
+                    if (tag == null && responseContext.getEntity() instanceof PageOfExamples page) {
+                        tag = entityTag(page);
+                    }
                 }
-
-                if (tag == null) {
-                    tag = new EntityTag(String.valueOf(responseContext.getEntity().hashCode()));
-                }
+                // other representations have no tag unless their resource method is conditional
             }
 
             if (tag != null) {
@@ -85,7 +189,97 @@ public class HttpCacheFeature implements DynamicFeature {
     }
 
     /**
-     * Resource filter to apply cache control headers to a response.
+     * Resource filter to evaluate the preconditions of a conditional request
+     * before the resource method is invoked. When the representation held by the
+     * client is current, the request is answered with 304 (Not Modified) without
+     * invoking the resource method. Otherwise, the validators are retained for
+     * the response of a safe method when the representation is not versioned.
+     * <p>
+     * Validators are only determined when the request is conditional or when
+     * they are needed for the response.
+     * <p>
+     * The entity may be modified after its validators are determined. The
+     * response then carries validators older than the representation, which
+     * only causes the next revalidation to fetch the representation again.
+     * <p>
+     * NOTE: this class in not annotated with <code>@Provider</code> as it will be enabled on
+     * a method by method basis by the corresponding feature type.
+     *
+     * @see Conditional
+     */
+    static class PreconditionFilter implements ContainerRequestFilter {
+
+        private static final List<String> PRECONDITIONS = List.of(
+                HttpHeaders.IF_MATCH,
+                HttpHeaders.IF_NONE_MATCH,
+                HttpHeaders.IF_MODIFIED_SINCE,
+                HttpHeaders.IF_UNMODIFIED_SINCE
+        );
+
+        private final String parameter;
+        private final boolean versioned;
+        private final HttpDates dates;
+
+        PreconditionFilter(String parameter, boolean versioned, HttpDates dates) {
+            this.parameter = parameter;
+            this.versioned = versioned;
+            this.dates = dates;
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) throws IOException {
+            boolean safe = HttpMethod.GET.equals(requestContext.getMethod())
+                    || HttpMethod.HEAD.equals(requestContext.getMethod());
+            boolean conditional = PRECONDITIONS.stream()
+                    .anyMatch(h -> requestContext.getHeaderString(h) != null);
+            if (!conditional && (versioned || !safe)) {
+                // the response does not need validators
+                return;
+            }
+            String value = requestContext.getUriInfo().getPathParameters().getFirst(parameter);
+            List<Object> resources = requestContext.getUriInfo().getMatchedResources();
+            if (value == null || resources.isEmpty() || !(resources.get(0) instanceof ValidatorSource source)) {
+                return;
+            }
+            UUID id;
+            try {
+                id = UUID.fromString(value);
+            } catch (IllegalArgumentException e) {
+                // left to the resource method
+                return;
+            }
+            Validators validators = source.validatorsFor(id).orElse(null);
+            if (validators == null) {
+                if (requestContext.getHeaderString(HttpHeaders.IF_MATCH) != null) {
+                    // there is no current representation to match
+                    requestContext.abortWith(Response.status(Status.PRECONDITION_FAILED).build());
+                }
+                // otherwise, not found is left to the resource method
+                return;
+            }
+            requestContext.setProperty(VALIDATORS, validators);
+
+            ResponseBuilder response;
+            if (validators.lastModified() == null) {
+                response = requestContext.getRequest().evaluatePreconditions(validators.entityTag());
+            } else {
+                // HTTP dates have a resolution of seconds
+                Date lastModified = Date.from(validators.lastModified().toInstant().truncatedTo(ChronoUnit.SECONDS));
+                response = requestContext.getRequest().evaluatePreconditions(lastModified, validators.entityTag());
+                if (response != null) {
+                    response.header("Last-Modified", dates.format(validators.lastModified()));
+                }
+            }
+            if (response != null) {
+                requestContext.abortWith(response.tag(validators.entityTag()).build());
+            }
+        }
+    }
+
+    /**
+     * Resource filter to apply cache control headers to a response. The expiry
+     * is determined for each response, relative to when the response was produced.
+     * Error responses are not given cache control headers.
      * <p>
      * NOTE: this class in not annotated with <code>@Provider</code> as it will be enabled on
      * a method by method basis by the corresponding feature type.
@@ -96,15 +290,200 @@ public class HttpCacheFeature implements DynamicFeature {
     static class DynamicFilter implements ContainerResponseFilter {
 
         private final Map<String, Object> headers;
+        private final Duration expires;
+        private final HttpDates dates;
 
-        DynamicFilter(Map<String, Object> header) {
+        /**
+         * Create the filter.
+         *
+         * @param header the headers that are the same for every response
+         * @param expires how long the response may be cached, or <code>null</code> for no expiry
+         * @param dates the formatter of the expiry
+         */
+        DynamicFilter(Map<String, Object> header, Duration expires, HttpDates dates) {
             this.headers = header;
+            this.expires = expires;
+            this.dates = dates;
         }
 
         @Override
         public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
                 throws IOException {
+            if (responseContext.getStatus() >= 400) {
+                return;
+            }
             this.headers.forEach(((k, v) -> responseContext.getHeaders().add(k, v)));
+            if (expires != null) {
+                // a response served from a cache was produced earlier
+                String age = responseContext.getHeaderString("Age");
+                long produced = System.currentTimeMillis() / 1000 - (age == null ? 0 : Long.parseLong(age));
+                responseContext.getHeaders().add("Expires", dates.format(produced + expires.getSeconds()));
+            }
+        }
+    }
+
+    /**
+     * Resource filter serving the responses of a safe method from the server-side
+     * response cache. A response is cached as serialized when it is written, keyed by
+     * the absolute request path, the query parameters ordered by name, the
+     * acceptable media types in order of preference and the preferred content coding.
+     * Only successful responses are cached, for the length of time given by the
+     * resource method annotations.
+     * <p>
+     * This runs outside the other writer interceptors, so a response is cached as
+     * compressed and is only compressed once.
+     * <p>
+     * A client can bypass the cache with <code>Cache-Control: no-cache</code>, which
+     * refreshes the cached response.
+     * <p>
+     * NOTE: this class in not annotated with <code>@Provider</code> as it will be enabled on
+     * a method by method basis by the corresponding feature type.
+     *
+     * @see ResponseCache
+     */
+    static class ResponseCacheFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+        private static final String KEY = ResponseCache.class.getName() + ".key";
+        private static final String GENERATION = ResponseCache.class.getName() + ".generation";
+
+        private final ResponseCache cache;
+        private final Class<?> resource;
+        private final Duration ttl;
+
+        ResponseCacheFilter(ResponseCache cache, Class<?> resource, Duration ttl) {
+            this.cache = cache;
+            this.resource = resource;
+            this.ttl = ttl;
+        }
+
+        static String key(ContainerRequestContext requestContext) {
+            MultivaluedMap<String, String> parameters = requestContext.getUriInfo().getQueryParameters();
+            String query = new TreeMap<>(parameters).entrySet().stream()
+                    .flatMap(e -> e.getValue().stream()
+                            .map(v -> encode(e.getKey()) + '=' + encode(v)))
+                    .collect(Collectors.joining("&"));
+            CompressionInterceptor.Coding coding = CompressionInterceptor.negotiate(
+                    requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+            return requestContext.getUriInfo().getAbsolutePath() + "?" + query + " "
+                    + requestContext.getAcceptableMediaTypes() + " "
+                    + (coding == null ? "identity" : coding.token());
+        }
+
+        private static String encode(String value) {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) throws IOException {
+            if (!HttpMethod.GET.equals(requestContext.getMethod())) {
+                return;
+            }
+            String key = key(requestContext);
+            String cacheControl = requestContext.getHeaderString(HttpHeaders.CACHE_CONTROL);
+            ResponseCache.Entry entry = cacheControl != null && cacheControl.contains("no-cache")
+                    ? null
+                    : cache.get(key, resource).orElse(null);
+            if (entry == null) {
+                requestContext.setProperty(KEY, key);
+                requestContext.setProperty(GENERATION, cache.generation(resource));
+                return;
+            }
+
+            // the preconditions are stripped of the content coding, see CompressionInterceptor
+            ResponseBuilder response = entry.entityTag() == null
+                    ? null
+                    : requestContext.getRequest().evaluatePreconditions(
+                            CompressionInterceptor.decoded(entry.entityTag()));
+            if (response == null) {
+                response = Response.ok(entry.body(), entry.mediaType());
+            }
+            if (entry.entityTag() != null) {
+                response.tag(entry.entityTag());
+            }
+            if (entry.lastModified() != null) {
+                response.header("Last-Modified", entry.lastModified());
+            }
+            if (entry.contentEncoding() != null) {
+                response.header(HttpHeaders.CONTENT_ENCODING, entry.contentEncoding());
+            }
+            long age = ttl.toNanos() - (entry.expires() - System.nanoTime());
+            response.header("Age", Math.max(0, Duration.ofNanos(age).getSeconds()));
+            requestContext.setProperty(CACHED, Boolean.TRUE);
+            requestContext.abortWith(response.build());
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+                throws IOException {
+            if (responseContext.getStatus() != Status.OK.getStatusCode()) {
+                // only successful responses are cached
+                requestContext.removeProperty(KEY);
+            }
+        }
+
+        @Override
+        public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+            String key = (String) context.getProperty(KEY);
+            if (key == null) {
+                context.proceed();
+                return;
+            }
+            OutputStream out = context.getOutputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            context.setOutputStream(buffer);
+            try {
+                context.proceed();
+            } finally {
+                context.setOutputStream(out);
+            }
+            byte[] body = buffer.toByteArray();
+            out.write(body);
+
+            MediaType mediaType = context.getMediaType();
+            Object tag = context.getHeaders().getFirst(HttpHeaders.ETAG);
+            Object lastModified = context.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED);
+            Object contentEncoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+            cache.put(key, resource, new ResponseCache.Entry(
+                    body,
+                    mediaType,
+                    tag == null ? null : EntityTag.valueOf(tag.toString()),
+                    lastModified == null ? null : lastModified.toString(),
+                    contentEncoding == null ? null : contentEncoding.toString(),
+                    System.nanoTime() + ttl.toNanos(),
+                    (Long) context.getProperty(GENERATION)
+            ));
+        }
+    }
+
+    /**
+     * Resource filter invalidating the cached responses of a resource class once a
+     * method other than a safe method succeeds.
+     * <p>
+     * NOTE: this class in not annotated with <code>@Provider</code> as it will be enabled on
+     * a method by method basis by the corresponding feature type.
+     *
+     * @see ResponseCache#invalidate(Class)
+     */
+    static class InvalidationFilter implements ContainerResponseFilter {
+
+        private final ResponseCache cache;
+        private final Class<?> resource;
+
+        InvalidationFilter(ResponseCache cache, Class<?> resource) {
+            this.cache = cache;
+            this.resource = resource;
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+                throws IOException {
+            String method = requestContext.getMethod();
+            if (responseContext.getStatus() < 400
+                    && !HttpMethod.GET.equals(method)
+                    && !HttpMethod.HEAD.equals(method)
+                    && !HttpMethod.OPTIONS.equals(method)) {
+                cache.invalidate(resource);
+            }
         }
     }
 
@@ -119,7 +498,16 @@ public class HttpCacheFeature implements DynamicFeature {
     @Override
     public void configure(ResourceInfo resourceInfo, FeatureContext featureContext) {
         // general caching header support for all resource methods
-        featureContext.register(new GeneralFilter());
+        featureContext.register(new GeneralFilter(dates));
+
+        Conditional conditional = resourceInfo.getResourceMethod().getAnnotation(Conditional.class);
+        if (conditional != null) {
+            featureContext.register(new PreconditionFilter(
+                    conditional.value(),
+                    ServiceEntity.class.isAssignableFrom(resourceInfo.getResourceMethod().getReturnType()),
+                    dates
+            ));
+        }
 
         /*
          check for resource method annotations
@@ -143,14 +531,45 @@ public class HttpCacheFeature implements DynamicFeature {
             headers.put("Cache-Control", cc);
         }
         Expires expires = resourceInfo.getResourceMethod().getAnnotation(Expires.class);
-        if (expires != null) {
-            Duration d = Duration.parse(expires.value());
-            ZonedDateTime zdt = ZonedDateTime.now(ZoneId.of("GMT")).plus(d);
-            headers.put("expires", zdt.format(HTTP_TIME));
+        Duration expiry = expires == null ? null : Duration.parse(expires.value());
+        if (expiry != null && cr == null) {
+            // the equivalent of the expiry for caches that prefer cache control
+            jakarta.ws.rs.core.CacheControl cc = new jakarta.ws.rs.core.CacheControl();
+            cc.setNoTransform(false);
+            cc.setMaxAge((int) expiry.getSeconds());
+            headers.put("Cache-Control", cc);
         }
-        if (!headers.isEmpty()) {
-            DynamicFilter filter = new DynamicFilter(headers);
+        if (!headers.isEmpty() || expiry != null) {
+            DynamicFilter filter = new DynamicFilter(headers, expiry, dates);
             featureContext.register(filter);
         }
+
+        if (responseCache != null) {
+            // any resource method may change the resources
+            featureContext.register(new InvalidationFilter(responseCache, resourceInfo.getResourceClass()));
+            Duration ttl = timeToLive(cr, expires);
+            if (ttl != null && !ttl.isNegative() && !ttl.isZero()) {
+                // runs before compression, see CompressionInterceptor
+                featureContext.register(new ResponseCacheFilter(responseCache, resourceInfo.getResourceClass(), ttl),
+                        Priorities.ENTITY_CODER - 100);
+            }
+        }
+    }
+
+    /**
+     * Determine how long a response may be cached by the server, as a shared cache.
+     * Cache control takes precedence over expiry.
+     *
+     * @return the length of time, or <code>null</code> if the response must not be cached
+     */
+    static Duration timeToLive(CacheControl cr, Expires expires) {
+        if (cr != null) {
+            if (cr.isNoCache() || cr.isNoStore() || cr.isPrivate()) {
+                return null;
+            }
+            int age = cr.sMaxAge() >= 0 ? cr.sMaxAge() : cr.maxAge();
+            return age < 0 ? null : Duration.ofSeconds(age);
+        }
+        return expires == null ? null : Duration.parse(expires.value());
     }
 }
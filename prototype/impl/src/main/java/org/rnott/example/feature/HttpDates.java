@@ -0,0 +1,139 @@
+package org.rnott.example.feature;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Formats dates for HTTP headers (e.g. <code>Last-Modified</code>, <code>Expires</code>).
+ * HTTP dates have a resolution of seconds, so formatted dates are reused rather than
+ * formatted for each response:
+ * <ul>
+ *     <li>the current date is formatted once per second, refreshed by a timer once started</li>
+ *     <li>other dates are kept in a small bounded cache, as the same entities (and so the same
+ *     modified dates) tend to be requested repeatedly; hits do not take a lock, so request
+ *     threads do not contend for it</li>
+ * </ul>
+ * The current date is also refreshed when it is requested and the second has changed,
+ * so the date is correct whether or not the timer is started or late.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc9110#name-date-time-formats">HTTP Date/Time Formats</a>
+ */
+@Component
+public class HttpDates {
+
+    /**
+     * The default number of dates other than the current date that are retained.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    static final DateTimeFormatter HTTP_TIME = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z",
+            Locale.ENGLISH);
+
+    static final ZoneId GMT = ZoneId.of("GMT");
+
+    private record Formatted(long epochSecond, String text) {
+    }
+
+    private volatile Formatted current = new Formatted(Long.MIN_VALUE, null);
+    private final Cache<Long, String> recent;
+    private ScheduledExecutorService timer;
+
+    public HttpDates(@Value("${service.http-dates.capacity:" + DEFAULT_CAPACITY + "}") int capacity) {
+        this.recent = Caffeine.newBuilder()
+                .maximumSize(capacity)
+                .build();
+    }
+
+    /**
+     * Start refreshing the current date once per second, off the request path.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "http-dates");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = System.currentTimeMillis();
+        timer.scheduleAtFixedRate(
+                () -> refresh(System.currentTimeMillis() / 1000),
+                1000 - millis % 1000,
+                1000,
+                TimeUnit.MILLISECONDS
+        );
+        refresh(millis / 1000);
+    }
+
+    /**
+     * Stop refreshing the current date.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * Format the current date.
+     *
+     * @return the formatted date
+     */
+    public String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Formatted formatted = current;
+        return formatted.epochSecond() == second ? formatted.text() : refresh(second).text();
+    }
+
+    /**
+     * Format a date, ignoring fractions of a second.
+     *
+     * @param dateTime the date to format
+     * @return the formatted date
+     */
+    public String format(OffsetDateTime dateTime) {
+        return format(dateTime.toEpochSecond());
+    }
+
+    /**
+     * Format a date.
+     *
+     * @param epochSecond the date to format, as seconds from the epoch
+     * @return the formatted date
+     */
+    public String format(long epochSecond) {
+        Formatted formatted = current;
+        if (formatted.epochSecond() == epochSecond) {
+            return formatted.text();
+        }
+        return recent.get(epochSecond, HttpDates::toHttp);
+    }
+
+    private Formatted refresh(long epochSecond) {
+        Formatted formatted = new Formatted(epochSecond, toHttp(epochSecond));
+        current = formatted;
+        return formatted;
+    }
+
+    static String toHttp(long epochSecond) {
+        return Instant.ofEpochSecond(epochSecond)
+                .atZone(GMT)
+                .format(HTTP_TIME);
+    }
+}
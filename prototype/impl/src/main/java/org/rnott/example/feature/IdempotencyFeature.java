@@ -0,0 +1,238 @@
+package org.rnott.example.feature;
+
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.container.DynamicFeature;
+import jakarta.ws.rs.container.ResourceInfo;
+import jakarta.ws.rs.core.FeatureContext;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.ResponseBuilder;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.rnott.example.problems.BadRequestException;
+
+/**
+ * Feature answering a request retried with the same <code>Idempotency-Key</code>
+ * with the result of the original request, for resource methods annotated with
+ * {@link Idempotent}. Requests without the header are processed as usual.
+ *
+ * @see <a href="https://datatracker.ietf.org/doc/draft-ietf-httpapi-idempotency-key-header/">The Idempotency-Key HTTP Header Field</a>
+ */
+@Provider
+public class IdempotencyFeature implements DynamicFeature {
+
+    /**
+     * Request header holding the idempotency key.
+     */
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    /**
+     * Response header marking a response replayed from the store.
+     */
+    public static final String REPLAYED = "Idempotent-Replayed";
+
+    private final IdempotencyStore store;
+
+    /**
+     * Create the feature.
+     *
+     * @param store the store of request results
+     */
+    public IdempotencyFeature(IdempotencyStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Identify a request by its media type and body, so that a key presented by a
+     * different request is detected.
+     */
+    static String fingerprint(MediaType mediaType, byte[] body) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (mediaType != null) {
+            digest.update((mediaType.getType() + '/' + mediaType.getSubtype()).getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        return HexFormat.of().formatHex(digest.digest(body));
+    }
+
+    /**
+     * Resource filter claiming the idempotency key of a request before the resource
+     * method is invoked, or answering the request with the stored result. Only
+     * successful results are stored; otherwise the key is released, so the request
+     * can be retried.
+     * <p>
+     * The response is stored as serialized, before it is compressed, so it can be
+     * replayed to a client accepting a different content coding.
+     * <p>
+     * NOTE: this class in not annotated with <code>@Provider</code> as it will be enabled on
+     * a method by method basis by the corresponding feature type.
+     *
+     * @see IdempotencyStore
+     */
+    static class IdempotencyFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+        // the headers of a response that are replayed
+        private static final List<String> HEADERS = List.of(
+                HttpHeaders.ETAG,
+                HttpHeaders.LAST_MODIFIED,
+                HttpHeaders.LOCATION,
+                HttpHeaders.CONTENT_LOCATION
+        );
+
+        // idempotency keys are generated by clients, typically as UUIDs
+        private static final int MAX_KEY_LENGTH = 255;
+
+        private static final String KEY = IdempotencyStore.class.getName() + ".key";
+        private static final String FINGERPRINT = IdempotencyStore.class.getName() + ".fingerprint";
+        private static final String STATUS = IdempotencyStore.class.getName() + ".status";
+
+        private final IdempotencyStore store;
+
+        IdempotencyFilter(IdempotencyStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) throws IOException {
+            String key = requestContext.getHeaderString(IDEMPOTENCY_KEY);
+            if (key == null) {
+                return;
+            }
+            if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+                throw new BadRequestException("Invalid idempotency key: " + key);
+            }
+            byte[] body = requestContext.hasEntity()
+                    ? requestContext.getEntityStream().readAllBytes()
+                    : new byte[0];
+            requestContext.setEntityStream(new ByteArrayInputStream(body));
+            String fingerprint = fingerprint(requestContext.getMediaType(), body);
+
+            // the same key may be used for different resources
+            String scoped = requestContext.getMethod() + ' ' + requestContext.getUriInfo().getPath() + ' ' + key;
+            Optional<IdempotencyStore.Result> result = store.begin(scoped, fingerprint);
+            if (result.isEmpty()) {
+                requestContext.setProperty(KEY, scoped);
+                requestContext.setProperty(FINGERPRINT, fingerprint);
+                return;
+            }
+
+            IdempotencyStore.Result stored = result.get();
+            ResponseBuilder response = Response.status(stored.status());
+            if (stored.body().length > 0) {
+                response.entity(stored.body()).type(stored.mediaType());
+            }
+            stored.headers().forEach(response::header);
+            response.header(REPLAYED, Boolean.TRUE.toString());
+            // the response is replayed as it was, see HttpCacheFeature.GeneralFilter
+            requestContext.setProperty(HttpCacheFeature.CACHED, Boolean.TRUE);
+            requestContext.abortWith(response.build());
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+                throws IOException {
+            String key = (String) requestContext.getProperty(KEY);
+            if (key == null) {
+                return;
+            }
+            int status = responseContext.getStatus();
+            if (status < 200 || status >= 300) {
+                requestContext.removeProperty(KEY);
+                store.release(key);
+            } else if (!responseContext.hasEntity()) {
+                requestContext.removeProperty(KEY);
+                store.complete(key, new IdempotencyStore.Result(
+                        status,
+                        null,
+                        headersOf(responseContext.getHeaders()),
+                        new byte[0],
+                        (String) requestContext.getProperty(FINGERPRINT),
+                        store.expiry()
+                ));
+            } else {
+                // completed once written
+                requestContext.setProperty(STATUS, status);
+            }
+        }
+
+        @Override
+        public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+            String key = (String) context.getProperty(KEY);
+            if (key == null || context.getProperty(STATUS) == null) {
+                context.proceed();
+                return;
+            }
+            OutputStream out = context.getOutputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            context.setOutputStream(buffer);
+            byte[] body;
+            try {
+                context.proceed();
+                body = buffer.toByteArray();
+            } catch (IOException | RuntimeException e) {
+                store.release(key);
+                throw e;
+            } finally {
+                context.setOutputStream(out);
+            }
+
+            MediaType mediaType = context.getMediaType();
+            store.complete(key, new IdempotencyStore.Result(
+                    (Integer) context.getProperty(STATUS),
+                    mediaType == null ? null : mediaType.toString(),
+                    headersOf(context.getHeaders()),
+                    body,
+                    (String) context.getProperty(FINGERPRINT),
+                    store.expiry()
+            ));
+            out.write(body);
+        }
+
+        private static Map<String, String> headersOf(Map<String, ? extends List<?>> response) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            response.forEach((name, values) -> {
+                if (!values.isEmpty() && HEADERS.stream().anyMatch(name::equalsIgnoreCase)) {
+                    headers.put(name, values.get(0).toString());
+                }
+            });
+            return headers;
+        }
+    }
+
+    /**
+     * Enables the resource filter for resource methods annotated with {@link Idempotent}.
+     *
+     * @param resourceInfo resource metadata
+     * @param featureContext feature context used for registration
+     */
+    @Override
+    public void configure(ResourceInfo resourceInfo, FeatureContext featureContext) {
+        if (resourceInfo.getResourceMethod().isAnnotationPresent(Idempotent.class)) {
+            // runs within compression, see CompressionInterceptor
+            featureContext.register(new IdempotencyFilter(store), Priorities.ENTITY_CODER + 100);
+        }
+    }
+}
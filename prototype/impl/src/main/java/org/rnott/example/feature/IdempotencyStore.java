@@ -0,0 +1,341 @@
+package org.rnott.example.feature;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.rnott.example.problems.ConflictException;
+import org.rnott.example.problems.UnprocessableContentException;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Bounded store of the results of requests made with an idempotency key, so that
+ * a retried request is answered with the result of the original request rather
+ * than being processed again.
+ * <p>
+ * A key is claimed by the first request to present it. A duplicate request made
+ * while the key is claimed on the same node waits for the result, up to the
+ * timeout, rather than being processed concurrently. Results are shared by all
+ * the nodes through the <code>idempotency_keys</code> table, and the most recent
+ * results are also retained in memory, up to the total size of their bodies. A
+ * duplicate request made while the key is claimed by another node is rejected,
+ * as the other node cannot be waited for.
+ * <p>
+ * Results expire after the time-to-live. A claim expires after the lease, so
+ * that a key claimed by a node that failed can be claimed again.
+ *
+ * @see IdempotencyFeature
+ */
+@Component
+public class IdempotencyStore {
+
+    /**
+     * The result of a request.
+     *
+     * @param status the response status
+     * @param mediaType the media type of the response, if any
+     * @param headers the response headers to be replayed
+     * @param body the serialized response
+     * @param fingerprint identifies the request made with the key
+     * @param expires when the result expires, in milliseconds since the epoch
+     */
+    public record Result(
+            int status,
+            String mediaType,
+            Map<String, String> headers,
+            byte[] body,
+            String fingerprint,
+            long expires
+    ) {
+        boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+    /**
+     * A claim of a key on this node.
+     */
+    private record Claim(CompletableFuture<Result> result, long expires) {
+    }
+
+    private final JdbcTemplate jdbc;
+    private final long ttl;
+    private final long timeout;
+    private final long lease;
+    private final long capacity;
+    private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+    // access ordered for LRU eviction
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong purged = new AtomicLong();
+    private long size;
+
+    /**
+     * Create the store.
+     *
+     * @param jdbc the database holding the results, or <code>null</code> to hold them in memory only
+     * @param ttl how long results are retained
+     * @param timeout how long a duplicate request waits for the result of a claimed key
+     * @param lease how long a key is claimed without a result
+     * @param capacity the total size of the results retained in memory
+     */
+    public IdempotencyStore(
+            JdbcTemplate jdbc,
+            @Value("${service.idempotency.ttl:PT24H}") Duration ttl,
+            @Value("${service.idempotency.timeout:PT30S}") Duration timeout,
+            @Value("${service.idempotency.lease:PT5M}") Duration lease,
+            @Value("${service.idempotency.capacity:16MB}") DataSize capacity
+    ) {
+        this.jdbc = jdbc;
+        this.ttl = ttl.toMillis();
+        this.timeout = timeout.toMillis();
+        this.lease = lease.toMillis();
+        this.capacity = capacity.toBytes();
+    }
+
+    /**
+     * Begin a request made with an idempotency key. Either the result of the
+     * request is available, or the key is claimed by the caller, who must then
+     * {@link #complete(String, Result) complete} or {@link #release(String) release}
+     * the key.
+     *
+     * @param key the idempotency key, scoped to the resource
+     * @param fingerprint identifies the request
+     * @return the result of the request, or empty if the key is claimed by the caller
+     * @throws ConflictException if the request is still in progress once the timeout has elapsed,
+     *     or is in progress on another node
+     * @throws UnprocessableContentException if the key was presented by a different request
+     */
+    public Optional<Result> begin(String key, String fingerprint) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            Result result = cached(key);
+            if (result == null) {
+                Claim claim = new Claim(new CompletableFuture<>(), System.currentTimeMillis() + lease);
+                Claim existing = claims.putIfAbsent(key, claim);
+                if (existing == null) {
+                    try {
+                        result = claim(key, fingerprint, claim.expires());
+                    } catch (RuntimeException e) {
+                        claims.remove(key, claim);
+                        claim.result().complete(null);
+                        throw e;
+                    }
+                    if (result == null) {
+                        return Optional.empty();
+                    }
+                    // completed by another node
+                    cache(key, result);
+                    claims.remove(key, claim);
+                    claim.result().complete(result);
+                } else {
+                    result = await(key, existing, deadline);
+                    if (result == null) {
+                        // released, so the request is to be processed again
+                        continue;
+                    }
+                }
+            }
+            if (!result.fingerprint().equals(fingerprint)) {
+                throw new UnprocessableContentException("Idempotency key used by a different request");
+            }
+            return Optional.of(result);
+        }
+    }
+
+    /**
+     * Record the result of a request, answering any duplicate requests waiting
+     * for the result.
+     *
+     * @param key the idempotency key claimed by the caller
+     * @param result the result
+     */
+    public void complete(String key, Result result) {
+        try {
+            if (jdbc != null) {
+                jdbc.update("update idempotency_keys set status = ?, media_type = ?, headers = ?, body = ?,"
+                                + " expires = ? where key = ?",
+                        result.status(), result.mediaType(), headersOf(result.headers()), result.body(),
+                        new Timestamp(result.expires()), key);
+            }
+        } catch (RuntimeException e) {
+            // the result is still retained by this node
+            LoggerFactory.getLogger(getClass()).warn("Failed to store the result of idempotency key", e);
+        } finally {
+            cache(key, result);
+            Claim claim = claims.remove(key);
+            if (claim != null) {
+                claim.result().complete(result);
+            }
+        }
+    }
+
+    /**
+     * Release a key without a result, so that the request can be processed again.
+     * Any duplicate request waiting for the result is processed instead.
+     *
+     * @param key the idempotency key claimed by the caller
+     */
+    public void release(String key) {
+        try {
+            if (jdbc != null) {
+                jdbc.update("delete from idempotency_keys where key = ? and status is null", key);
+            }
+        } finally {
+            Claim claim = claims.remove(key);
+            if (claim != null) {
+                claim.result().complete(null);
+            }
+        }
+    }
+
+    /**
+     * Determine when a result completed now expires.
+     *
+     * @return the expiry, in milliseconds since the epoch
+     */
+    public long expiry() {
+        return System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * Remove all the results retained in memory.
+     */
+    public void clear() {
+        synchronized (results) {
+            results.clear();
+            size = 0;
+        }
+    }
+
+    private Result await(String key, Claim claim, long deadline) {
+        long now = System.currentTimeMillis();
+        if (claim.expires() <= now) {
+            // abandoned by the request holding the claim
+            claims.remove(key, claim);
+            claim.result().complete(null);
+            return null;
+        }
+        if (deadline <= now) {
+            throw new ConflictException("Request with the same idempotency key is in progress");
+        }
+        try {
+            return claim.result().get(Math.min(deadline, claim.expires()) - now, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return await(key, claim, deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConflictException("Request with the same idempotency key is in progress", e);
+        } catch (ExecutionException e) {
+            // never completed exceptionally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Claim a key in the database, unless it holds a result that has not expired.
+     *
+     * @return the result, or <code>null</code> if claimed
+     */
+    private Result claim(String key, String fingerprint, long expires) {
+        if (jdbc == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long last = purged.get();
+        if (now - last >= lease && purged.compareAndSet(last, now)) {
+            jdbc.update("delete from idempotency_keys where expires <= ?", new Timestamp(now));
+        }
+        int claimed = jdbc.update("insert into idempotency_keys (key, fingerprint, expires) values (?, ?, ?)"
+                        + " on conflict (key) do update set fingerprint = excluded.fingerprint, status = null,"
+                        + " media_type = null, headers = null, body = null, expires = excluded.expires"
+                        + " where idempotency_keys.expires <= ?",
+                key, fingerprint, new Timestamp(expires), new Timestamp(now));
+        if (claimed > 0) {
+            return null;
+        }
+        Result result = jdbc.query("select * from idempotency_keys where key = ?", IdempotencyStore::resultOf, key)
+                .stream()
+                .findFirst()
+                .orElse(null);
+        if (result == null || result.status() == 0) {
+            // claimed, or released and about to be claimed, by another node
+            throw new ConflictException("Request with the same idempotency key is in progress");
+        }
+        return result;
+    }
+
+    private static Result resultOf(ResultSet rs, int row) throws SQLException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        String text = rs.getString("headers");
+        if (text != null) {
+            for (String line : text.split("\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon), line.substring(colon + 1).trim());
+                }
+            }
+        }
+        return new Result(
+                rs.getInt("status"),
+                rs.getString("media_type"),
+                headers,
+                rs.getBytes("body"),
+                rs.getString("fingerprint"),
+                rs.getTimestamp("expires").getTime()
+        );
+    }
+
+    private static String headersOf(Map<String, String> headers) {
+        StringBuilder text = new StringBuilder();
+        headers.forEach((name, value) -> text.append(name).append(": ").append(value).append('\n'));
+        return text.toString();
+    }
+
+    private Result cached(String key) {
+        synchronized (results) {
+            Result result = results.get(key);
+            if (result != null && result.isExpired(System.currentTimeMillis())) {
+                remove(key);
+                return null;
+            }
+            return result;
+        }
+    }
+
+    private void cache(String key, Result result) {
+        if (result.body().length > capacity) {
+            return;
+        }
+        synchronized (results) {
+            remove(key);
+            results.put(key, result);
+            size += result.body().length;
+            Iterator<Result> lru = results.values().iterator();
+            while (size > capacity && lru.hasNext()) {
+                size -= lru.next().body().length;
+                lru.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Result removed = results.remove(key);
+        if (removed != null) {
+            size -= removed.body().length;
+        }
+    }
+}
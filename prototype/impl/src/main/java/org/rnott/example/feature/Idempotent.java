@@ -0,0 +1,19 @@
+package org.rnott.example.feature;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables the <code>Idempotency-Key</code> request header for a resource method
+ * that is not idempotent, such as a <code>POST</code> creating an entity. A request
+ * retried with the same key is answered with the result of the original request
+ * rather than being processed again.
+ *
+ * @see IdempotencyFeature
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
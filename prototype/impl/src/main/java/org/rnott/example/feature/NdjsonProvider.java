@@ -0,0 +1,73 @@
+package org.rnott.example.feature;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.ContextResolver;
+import jakarta.ws.rs.ext.MessageBodyReader;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.Providers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads newline delimited JSON (NDJSON) as a list, one element per line.
+ * Unlike a JSON array, a client can produce the content as a stream
+ * without buffering it first. The content is not streamed to the resource
+ * method though: every element is read, so that the list can be validated,
+ * before the method is invoked. Elements are read using the same object
+ * mapper as JSON content.
+ *
+ * @see <a href="https://github.com/ndjson/ndjson-spec">NDJSON</a>
+ */
+@Provider
+@Consumes(NdjsonProvider.APPLICATION_NDJSON)
+public class NdjsonProvider implements MessageBodyReader<List<?>> {
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    @Context
+    private Providers providers;
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return List.class.isAssignableFrom(type) && genericType instanceof ParameterizedType;
+    }
+
+    @Override
+    public List<?> readFrom(
+            Class<List<?>> type,
+            Type genericType,
+            Annotation[] annotations,
+            MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders,
+            InputStream entityStream
+    ) throws IOException {
+        ObjectMapper mapper = mapper();
+        JavaType element = mapper.constructType(((ParameterizedType) genericType).getActualTypeArguments()[0]);
+        List<Object> elements = new ArrayList<>();
+        try (MappingIterator<Object> values = mapper.readerFor(element).readValues(entityStream)) {
+            while (values.hasNextValue()) {
+                elements.add(values.nextValue());
+            }
+        }
+        return elements;
+    }
+
+    private ObjectMapper mapper() {
+        ContextResolver<ObjectMapper> resolver = providers == null
+                ? null
+                : providers.getContextResolver(ObjectMapper.class, MediaType.APPLICATION_JSON_TYPE);
+        ObjectMapper mapper = resolver == null ? null : resolver.getContext(ObjectMapper.class);
+        return mapper == null ? new ObjectMapper().findAndRegisterModules() : mapper;
+    }
+}
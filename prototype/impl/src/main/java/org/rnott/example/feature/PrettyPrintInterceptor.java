@@ -0,0 +1,66 @@
+package org.rnott.example.feature;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.UriInfo;
+import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Pretty prints JSON responses when requested with the <code>pretty</code> query
+ * parameter (e.g. <code>/examples?pretty</code>). Responses are otherwise compact.
+ * The response is reformatted once serialized, so this is meant for debugging
+ * rather than production.
+ * <p>
+ * This runs within the other writer interceptors, so a cached response is cached
+ * as pretty printed.
+ */
+@Provider
+@Priority(Priorities.USER + 100)
+public class PrettyPrintInterceptor implements WriterInterceptor {
+
+    public static final String PRETTY = "pretty";
+
+    // numbers are kept exactly as written
+    private static final ObjectMapper JSON = JsonMapper.builder()
+            .nodeFactory(JsonNodeFactory.withExactBigDecimals(true))
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+            // the entity stream is closed by the container
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .build();
+
+    @Context
+    private UriInfo uriInfo;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        MediaType mediaType = context.getMediaType();
+        boolean json = mediaType != null
+                && (MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType) || mediaType.getSubtype().endsWith("+json"));
+        if (!json || uriInfo == null || !uriInfo.getQueryParameters().containsKey(PRETTY)) {
+            context.proceed();
+            return;
+        }
+        OutputStream out = context.getOutputStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        context.setOutputStream(buffer);
+        try {
+            context.proceed();
+        } finally {
+            context.setOutputStream(out);
+        }
+        JSON.writerWithDefaultPrettyPrinter()
+                .writeValue(out, JSON.readTree(buffer.toByteArray()));
+    }
+}
@@ -0,0 +1,150 @@
+package org.rnott.example.feature;
+
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.MediaType;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Bounded, in-memory cache of serialized responses. The least recently used
+ * responses are evicted once the cached response bodies exceed the capacity.
+ * <p>
+ * Responses are cached per resource class. Any change made through a resource
+ * class invalidates all the responses of that class, by advancing its
+ * generation rather than by removing each response. Responses of a previous
+ * generation are removed when next accessed or evicted. A response produced
+ * while the resource class changed is not cached.
+ * <p>
+ * Each node has its own cache. A change made through another node is observed
+ * once published to this node, see <code>InvalidationBus</code>, or otherwise once
+ * the cached response expires.
+ *
+ * @see HttpCacheFeature
+ */
+@Component
+public class ResponseCache {
+
+    /**
+     * A cached response.
+     *
+     * @param body the serialized response
+     * @param mediaType the media type of the response
+     * @param entityTag the entity tag of the response, if any
+     * @param lastModified the last modified header of the response, if any
+     * @param contentEncoding the content coding of the response, if any
+     * @param expires when the response expires, relative to {@link System#nanoTime()}
+     * @param generation the generation of the resource class producing the response
+     */
+    public record Entry(
+            byte[] body,
+            MediaType mediaType,
+            EntityTag entityTag,
+            String lastModified,
+            String contentEncoding,
+            long expires,
+            long generation
+    ) {
+        boolean isExpired(long now) {
+            return now - expires >= 0;
+        }
+    }
+
+    private final long capacity;
+    private final Map<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+    // access ordered for LRU eviction
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long size;
+
+    public ResponseCache(@Value("${service.response-cache.capacity:64MB}") DataSize capacity) {
+        this.capacity = capacity.toBytes();
+    }
+
+    /**
+     * Determine the current generation of a resource class.
+     *
+     * @param resource the resource class
+     * @return the generation
+     */
+    public long generation(Class<?> resource) {
+        return generations.computeIfAbsent(resource, k -> new AtomicLong()).get();
+    }
+
+    /**
+     * Invalidate all the cached responses of a resource class.
+     *
+     * @param resource the resource class
+     */
+    public void invalidate(Class<?> resource) {
+        generations.computeIfAbsent(resource, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Fetch a cached response that has neither expired nor been invalidated.
+     *
+     * @param key the request key
+     * @param resource the resource class producing the response
+     * @return the cached response, if any
+     */
+    public Optional<Entry> get(String key, Class<?> resource) {
+        long generation = generation(resource);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return Optional.empty();
+            }
+            if (entry.generation() != generation || entry.isExpired(System.nanoTime())) {
+                remove(key);
+                return Optional.empty();
+            }
+            return Optional.of(entry);
+        }
+    }
+
+    /**
+     * Cache a response, provided that the resource class has not changed since
+     * the response was produced and the response fits within the capacity.
+     *
+     * @param key the request key
+     * @param resource the resource class producing the response
+     * @param entry the response
+     */
+    public void put(String key, Class<?> resource, Entry entry) {
+        if (entry.generation() != generation(resource) || entry.body().length > capacity) {
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            size += entry.body().length;
+            Iterator<Entry> lru = entries.values().iterator();
+            while (size > capacity && lru.hasNext()) {
+                size -= lru.next().body().length;
+                lru.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all cached responses.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.body().length;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.rnott.example.feature;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Implemented by resources supporting conditional requests to supply the
+ * validators of an entity. The validators should be determined without
+ * loading the entity.
+ *
+ * @see Conditional
+ */
+public interface ValidatorSource {
+
+    /**
+     * Determine the current validators of an entity.
+     *
+     * @param id the entity identifier
+     * @return the validators, or empty if the entity does not exist
+     */
+    Optional<Validators> validatorsFor(UUID id);
+}
@@ -0,0 +1,64 @@
+package org.rnott.example.feature;
+
+import jakarta.ws.rs.core.EntityTag;
+import java.time.OffsetDateTime;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * The validators of an entity, used to evaluate conditional requests.
+ *
+ * @param entityTag the entity tag, which changes whenever the entity does
+ * @param lastModified when the entity was last modified
+ */
+public record Validators(EntityTag entityTag, OffsetDateTime lastModified) {
+
+    private static final char SEPARATOR = '-';
+
+    /**
+     * Create the validators of an entity.
+     *
+     * @param id the entity identifier
+     * @param version the entity version
+     * @param modified when the entity was last modified
+     * @return the validators
+     * @see #entityTag(UUID, long)
+     */
+    public static Validators of(UUID id, long version, OffsetDateTime modified) {
+        return new Validators(entityTag(id, version), modified);
+    }
+
+    /**
+     * Create the entity tag of an entity. The tag is derived from the identity
+     * and version of the entity, which changes whenever the entity, including
+     * its tags, is modified. It is the same on every node.
+     *
+     * @param id the entity identifier
+     * @param version the entity version
+     * @return the strong entity tag
+     */
+    public static EntityTag entityTag(UUID id, long version) {
+        return new EntityTag(id.toString() + SEPARATOR + version);
+    }
+
+    /**
+     * Determine the entity version identified by an entity tag.
+     *
+     * @param id the entity identifier
+     * @param tag the entity tag
+     * @return the version, or empty if the tag was not created for the entity
+     * @see #entityTag(UUID, long)
+     */
+    public static OptionalLong version(UUID id, EntityTag tag) {
+        String value = tag.getValue();
+        String prefix = id.toString() + SEPARATOR;
+        if (tag.isWeak() || !value.startsWith(prefix)) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(Long.parseLong(value.substring(prefix.length())));
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+}
@@ -3,11 +3,9 @@ package org.rnott.example.persistence;
 import static org.rnott.example.api.EntityState.ACTIVE;
 
 import jakarta.persistence.Column;
-import jakarta.persistence.ElementCollection;
 import jakarta.persistence.EnumType;
 import jakarta.persistence.Enumerated;
 import jakarta.persistence.Id;
-import jakarta.persistence.MapKeyColumn;
 import jakarta.persistence.MappedSuperclass;
 import jakarta.persistence.PrePersist;
 import jakarta.persistence.PreRemove;
@@ -17,13 +15,11 @@ import java.io.Serializable;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
-import lombok.Singular;
 import org.rnott.example.api.EntityState;
 import org.wildfly.common.annotation.NotNull;
 
@@ -36,7 +32,12 @@ When using Lombok:
  */
 
 /**
- * Entity base type. All entities should extend this type.
+ * Entity base type. All entities should extend this type, by way of
+ * the base type for the chosen tag storage:
+ * <ul>
+ *     <li>{@link AbstractTagTableEntity} stores tags in a side table</li>
+ *     <li>{@link AbstractJsonTagEntity} stores tags in a <code>jsonb</code> column</li>
+ * </ul>
  */
 @NoArgsConstructor
 @Getter
@@ -50,8 +51,7 @@ public abstract class AbstractEntity implements Serializable {
             String createdBy,
             OffsetDateTime modified,
             String modifiedBy,
-            Integer version,
-            @Singular Map<String, String> tags
+            Integer version
     ) {
         this.id = id;
         if (state != null) {
@@ -62,7 +62,6 @@ public abstract class AbstractEntity implements Serializable {
         this.modified = modified;
         this.modifiedBy = modifiedBy;
         this.version = version == null ? 0 : version;
-        this.tags = tags;
     }
 
     /**
@@ -87,11 +86,6 @@ public abstract class AbstractEntity implements Serializable {
     @Column
     private boolean deleted;
 
-    @ElementCollection
-    @MapKeyColumn(name = "key")
-    @Column(name = "value")
-    private Map<String, String> tags = new LinkedHashMap<>();
-
     @Column
     @Setter
     private OffsetDateTime created;
@@ -109,6 +103,14 @@ public abstract class AbstractEntity implements Serializable {
     private String modifiedBy;
 
 
+    /**
+     * Arbitrary name/value pairs associated with the entity. How the tags
+     * are stored is determined by the tag storage base type.
+     *
+     * @return the modifiable tags
+     */
+    public abstract Map<String, String> getTags();
+
     /*
      *  The id field MUST be lazy generated when needed if it does not yet have a value:
          - hashCode()
@@ -1,9 +1,16 @@
 package org.rnott.example.persistence;
 
+import java.beans.PropertyDescriptor;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import org.mapstruct.AfterMapping;
 import org.mapstruct.Mapping;
 import org.mapstruct.MappingTarget;
 import org.rnott.example.api.PageOfExamples;
+import org.rnott.example.api.PagedResult.TotalCountAccuracyEnum;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
 import org.springframework.data.domain.Page;
 
 /**
@@ -15,6 +22,16 @@ import org.springframework.data.domain.Page;
  */
 public interface AbstractEntityMapper<A, PA extends PageOfExamples, E extends AbstractEntity> {
 
+    /**
+     * Name of the API property holding the entity metadata.
+     */
+    String METADATA = "metadata";
+
+    /**
+     * Metadata properties of the API type that are entity properties of the same name.
+     */
+    List<String> METADATA_PROPERTIES = List.of("created", "createdBy", "modified", "modifiedBy");
+
     /**
      * Converts an entity to an API type. This configuration handles all the fields
      * from the common base class for entities. Use this as the starting point
@@ -60,6 +77,72 @@ public interface AbstractEntityMapper<A, PA extends PageOfExamples, E extends Ab
         target.setModifiedBy(current.getModifiedBy());
     }
 
+    /**
+     * Determine the entity properties required to populate the specified
+     * fields of the API type. Metadata fields are mapped to the entity
+     * properties they are converted from, other fields are expected to be
+     * entity properties of the same name.
+     *
+     * @param fields the fields of the API type
+     * @return the entity properties
+     * @throws IllegalArgumentException if subfields are specified for a field other than metadata
+     * @see SearchCriteria.Builder#select(java.util.Collection)
+     */
+    default Set<String> propertiesFor(Field fields) {
+        Set<String> properties = new LinkedHashSet<>();
+        for (Field field : fields.subfields()) {
+            if (METADATA.equals(field.name())) {
+                if (!field.hasSubfields()) {
+                    properties.addAll(METADATA_PROPERTIES);
+                }
+                for (Field metadata : field.subfields()) {
+                    if (METADATA_PROPERTIES.contains(metadata.name())) {
+                        properties.add(metadata.name());
+                    } else if (!"links".equals(metadata.name())) {
+                        throw new IllegalArgumentException("Unknown metadata field: " + metadata.name());
+                    }
+                }
+            } else if (field.hasSubfields()) {
+                throw new IllegalArgumentException("Field has no subfields: " + field.name());
+            } else {
+                properties.add(field.name());
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Clears the properties of an API type, and of its nested types, that are not
+     * among the specified fields. Null properties are not serialized, so only the
+     * specified fields are written.
+     *
+     * @param api the API type
+     * @param fields the fields to retain
+     * @return the API type
+     */
+    default A select(A api, Field fields) {
+        retain(api, fields);
+        return api;
+    }
+
+    private static void retain(Object bean, Field fields) {
+        BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(bean);
+        for (PropertyDescriptor property : wrapper.getPropertyDescriptors()) {
+            if (property.getWriteMethod() == null || property.getPropertyType().isPrimitive()) {
+                continue;
+            }
+            Field field = fields.subfield(property.getName());
+            if (field == null) {
+                wrapper.setPropertyValue(property.getName(), null);
+            } else if (field.hasSubfields()) {
+                Object value = wrapper.getPropertyValue(property.getName());
+                if (value != null) {
+                    retain(value, field);
+                }
+            }
+        }
+    }
+
     /**
      * Converts a Spring Data page to API format.
      *
@@ -76,6 +159,7 @@ public interface AbstractEntityMapper<A, PA extends PageOfExamples, E extends Ab
     @Mapping(target = "last", ignore = true)
     @Mapping(target = "next", ignore = true)
     @Mapping(target = "previous", ignore = true)
+    @Mapping(target = "totalCountAccuracy", ignore = true)
     PA toPage(Page<E> result);
 
     @AfterMapping
@@ -83,5 +167,22 @@ public interface AbstractEntityMapper<A, PA extends PageOfExamples, E extends Ab
         // SpringData pages start at zero, should start at 1
         page.currentPage(source.getNumber() + 1)
                 .lastPage(source.getTotalPages() + 1);
+
+        // totals are only as accurate as the count strategy used by the search
+        SearchPage.Accuracy accuracy = source instanceof SearchPage<?> sp
+                ? sp.getAccuracy()
+                : SearchPage.Accuracy.EXACT;
+        switch (accuracy) {
+            case EXACT -> page.setTotalCountAccuracy(TotalCountAccuracyEnum.EXACT);
+            case ESTIMATED -> page.setTotalCountAccuracy(TotalCountAccuracyEnum.ESTIMATED);
+            case AT_LEAST -> {
+                page.setTotalCountAccuracy(TotalCountAccuracyEnum.AT_LEAST);
+                page.setLastPage(null);
+            }
+            case UNKNOWN -> {
+                page.setTotalCount(null);
+                page.setLastPage(null);
+            }
+        }
     }
 }
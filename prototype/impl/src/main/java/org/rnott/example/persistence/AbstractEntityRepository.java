@@ -1,17 +1,24 @@
 package org.rnott.example.persistence;
 
+import jakarta.persistence.TypedQuery;
 import jakarta.validation.constraints.NotNull;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import org.rnott.example.api.PatchDocument;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.NoRepositoryBean;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 
 @NoRepositoryBean
 public interface AbstractEntityRepository<T extends AbstractEntity> extends JpaRepository<T, UUID> {
@@ -55,13 +62,7 @@ public interface AbstractEntityRepository<T extends AbstractEntity> extends JpaR
 
     /*
      soft delete (e.g. tomb-stoned entities)
-     TODO: batch
-        deleteAllInBatch();
-        deleteAllInBatch(entities);
-        deleteAllByIdInBatch(ids);
-        undeleteAllInBatch();
-        undeleteAllInBatch(entities);
-        undeleteAllByIdInBatch(ids);
+     the batch variants (deleteAllInBatch, etc) are implemented by DefaultEntityRepository
      */
 
     @Override
@@ -120,13 +121,196 @@ public interface AbstractEntityRepository<T extends AbstractEntity> extends JpaR
     @Query("update #{#entityName} e set e.deleted = false where e.id = ?1 and e.deleted = true")
     void undeleteById(@NotNull UUID id);
 
+    /**
+     * Resurrect all soft-deleted entities using a single statement.
+     */
+    void undeleteAllInBatch();
+
+    /**
+     * Resurrects all the specified soft-deleted entities, binding the
+     * identifiers in chunks of {@link DefaultEntityRepository#BATCH_SIZE}.
+     *
+     * @param entities the entities to resurrect
+     */
+    void undeleteAllInBatch(@NotNull Iterable<T> entities);
+
+    /**
+     * Resurrects all the specified soft-deleted entities, binding the
+     * identifiers in chunks of {@link DefaultEntityRepository#BATCH_SIZE}.
+     *
+     * @param ids the identifiers of the entities to resurrect
+     */
+    void undeleteAllByIdInBatch(@NotNull Iterable<UUID> ids);
+
+    /*
+     batch writes, implemented by DefaultEntityRepository
+     */
+
+    /**
+     * Create or replace entities in a single transaction. An entity without an
+     * identifier, or whose identifier does not exist, is created. Otherwise, the
+     * entity is replaced provided that its version is the current version and it
+     * has not been deleted. As for {@link #upsert(AbstractEntity, Long)}, a replaced
+     * entity retains its creation properties and tags. The existing entities are
+     * fetched using as few queries as possible and the writes are flushed as JDBC
+     * batches.
+     *
+     * @param entities the entities to write
+     * @return the outcome for each entity, in the order presented
+     */
+    List<BatchResult<T>> saveAllInBatch(@NotNull Iterable<T> entities);
+
+    /**
+     * Create or replace an entity using a single statement. The entity is created
+     * if its identifier does not exist. Otherwise, the entity is replaced provided
+     * that it has not been deleted and, if specified, its version is the expected
+     * version. A replaced entity retains its creation metadata and its version is
+     * incremented. Tags are not written. Implemented by DefaultEntityRepository.
+     *
+     * @param entity the entity to write, which must have an identifier
+     * @param version the expected version of an existing entity, or <code>null</code> to skip the version check
+     * @return the outcome, with the entity as written if it was created or replaced
+     * @throws IllegalArgumentException if the entity has no identifier or a required property is missing
+     */
+    BatchResult<T> upsert(@NotNull T entity, Long version);
+
     /*
     custom queries
      */
 
+    /**
+     * Fetch an entity that has not been deleted along with its tags.
+     *
+     * @param id the entity identifier
+     * @return the entity, if found
+     * @see AbstractTagTableEntity
+     */
     @Query("select e from #{#entityName} e left join fetch e.tags where e.deleted = false and e.id = ?1")
     Optional<T> findByIdWithTags(@NotNull UUID id);
 
+    /**
+     * Fetch an entity that has not been deleted along with the specified
+     * associations, for example <code>author(publisher) categories</code>.
+     * Implemented by DefaultEntityRepository.
+     *
+     * @param id the entity identifier
+     * @param expansions the associations to expand
+     * @return the entity, if found
+     * @throws IllegalArgumentException if a property is unknown or not an association
+     * @see SearchCriteria.Builder#expand(Field)
+     */
+    Optional<T> findById(@NotNull UUID id, @NotNull Field expansions);
+
+    /**
+     * Load the specified associations of entities, using a query per association
+     * rather than per entity. Associations that are already loaded are not queried
+     * again. Implemented by DefaultEntityRepository.
+     *
+     * @param entities the entities
+     * @param expansions the associations to expand
+     * @return the entities, as managed by the persistence context of the expansion
+     * queries, in the order presented
+     * @see SearchCriteria.Builder#expand(Field)
+     */
+    List<T> expand(@NotNull List<T> entities, @NotNull Field expansions);
+
+    /**
+     * Fetch the version of an entity that has not been deleted, without
+     * loading the entity.
+     *
+     * @param id the entity identifier
+     * @return the entity version, if found
+     */
+    @Query("select new org.rnott.example.persistence.EntityVersion(e.id, e.version, e.modified)"
+            + " from #{#entityName} e where e.deleted = false and e.id = ?1")
+    Optional<EntityVersion> findVersionById(@NotNull UUID id);
+
+    /*
+    tag operations, implemented by DefaultEntityRepository
+     */
+
+    /**
+     * Add or replace a single tag of an entity that has not been deleted.
+     * The tag is modified in place using a single statement.
+     *
+     * @param id the entity identifier
+     * @param version the expected entity version, or <code>null</code> to skip the version check
+     * @param key the tag key
+     * @param value the tag value
+     * @return the entity version once modified, or empty if the entity does not exist
+     * @throws ObjectOptimisticLockingFailureException if the entity version is not the expected version
+     */
+    OptionalLong putTag(@NotNull UUID id, Long version, @NotNull String key, String value);
+
+    /**
+     * Remove a single tag of an entity that has not been deleted. The entity
+     * version is incremented even if the tag is not present.
+     *
+     * @param id the entity identifier
+     * @param version the expected entity version, or <code>null</code> to skip the version check
+     * @param key the tag key
+     * @return the entity version once modified, or empty if the entity does not exist
+     * @throws ObjectOptimisticLockingFailureException if the entity version is not the expected version
+     */
+    OptionalLong removeTag(@NotNull UUID id, Long version, @NotNull String key);
+
+    /**
+     * Remove all the tags of an entity that has not been deleted.
+     *
+     * @param id the entity identifier
+     * @param version the expected entity version, or <code>null</code> to skip the version check
+     * @return the entity version once modified, or empty if the entity does not exist
+     * @throws ObjectOptimisticLockingFailureException if the entity version is not the expected version
+     */
+    OptionalLong clearTags(@NotNull UUID id, Long version);
+
+    /**
+     * Replace all the tags of an entity that has not been deleted. When tags
+     * are stored in a side table, only the tags that differ are written; a
+     * JSON column is written as a whole.
+     *
+     * @param id the entity identifier
+     * @param version the expected entity version, or <code>null</code> to skip the version check
+     * @param tags the replacement tags
+     * @return the entity version once modified, or empty if the entity does not exist
+     * @throws ObjectOptimisticLockingFailureException if the entity version is not the expected version
+     */
+    OptionalLong replaceTags(@NotNull UUID id, Long version, @NotNull Map<String, String> tags);
+
+    /**
+     * Apply a JSON Patch (RFC 6902) to an entity that has not been deleted. The
+     * patch is applied in place by a single statement that only writes the
+     * properties and tags that are modified, and only if the <code>test</code>
+     * operations of the patch are satisfied. The entity version is incremented
+     * even if the patch has no effect. Implemented by DefaultEntityRepository.
+     *
+     * @param id the entity identifier
+     * @param version the expected entity version, or <code>null</code> to skip the version check
+     * @param operations the patch operations, applied in order
+     * @return the entity version once modified, or empty if the entity does not exist
+     * @throws IllegalArgumentException if the patch is malformed or a path cannot be patched
+     * @throws PatchConflictException if the patch does not apply to the current state of the entity
+     * @throws ObjectOptimisticLockingFailureException if the entity version is not the expected version
+     * @see PatchPlan
+     */
+    OptionalLong patch(@NotNull UUID id, Long version, @NotNull List<PatchDocument> operations);
+
+    /**
+     * Apply an action to every entity matching the specified criteria, without
+     * paging, in a single read-only transaction. The criteria are built within
+     * the transaction. Results are read from a forward-only cursor a few rows at
+     * a time and each entity is detached once the action completes, so memory
+     * use does not depend on the number of results. Implemented by
+     * DefaultEntityRepository.
+     *
+     * @param criteria the criteria to apply to the query
+     * @param action the action to apply to each entity, in result order
+     * @return the number of entities
+     * @throws IllegalArgumentException if the criteria are invalid
+     * @see DefaultEntityRepository#SCROLL_FETCH_SIZE
+     */
+    long scroll(@NotNull SearchCriteria.Builder<T> criteria, @NotNull Consumer<? super T> action);
+
     /**
      * Search for entities based on the specified criteria. Results are
      * bounded using the default page size. Note that deleted items are
@@ -145,18 +329,89 @@ public interface AbstractEntityRepository<T extends AbstractEntity> extends JpaR
      * Search for entities based on the specified criteria. Note that
      * deleted items are implemented by the criteria and there is no
      * clause used here.
+     * <p>
+     * When the criteria specify keyset pagination, the offset of the
+     * paging is ignored: the page starts after the cursor position.
+     * <p>
+     * The total number of elements is determined by the count strategy of
+     * the criteria. Unless the count is exact and the paging is by offset,
+     * one more entity than the page size is fetched to determine if there is
+     * a following page (see {@link SearchPage#hasNext()}). An exact count can
+     * be performed concurrently with fetching the results, on a second
+     * connection, when a permit is free. Otherwise it is performed in line.
+     * <p>
+     * Associations to expand are loaded once the page of results is known.
      *
      * @param criteria the criteria to apply to the query
      * @param paging indicates the page of data to be returned
      * @return a page of entities matching the specified criteria
+     * @see SearchCriteria.Builder#after(String)
+     * @see SearchCriteria.Builder#countStrategy(CountStrategy)
+     * @see SearchCriteria.Builder#countConcurrently()
+     * @see SearchCriteria.Builder#expand(Field)
      */
     @NotNull
     default Page<T> search(@NotNull SearchCriteria<T> criteria, @NotNull Pageable paging) {
-        List<T> results = criteria.getResultsQuery()
-                .setFirstResult((int) paging.getOffset())
-                .setMaxResults(paging.getPageSize())
+        TypedQuery<T> query = criteria.getResultsQuery();
+        if (!criteria.isKeyset()) {
+            query.setFirstResult((int) paging.getOffset());
+        }
+        CountStrategy strategy = criteria.getCountStrategy();
+        // a following page is known to exist by fetching one more result, unless the count tells
+        boolean fetchNext = strategy != CountStrategy.EXACT || criteria.isKeyset();
+        CompletableFuture<Long> pending = strategy == CountStrategy.EXACT && criteria.isConcurrentCount()
+                ? criteria.countConcurrently().orElse(null)
+                : null;
+        List<T> results = query
+                .setMaxResults(paging.getPageSize() + (fetchNext ? 1 : 0))
                 .getResultList();
-        long count = criteria.getCountQuery().getSingleResult();
-        return new PageImpl<>(results, paging, count);
+        boolean more = results.size() > paging.getPageSize();
+        if (more) {
+            results = results.subList(0, paging.getPageSize());
+        }
+        long count;
+        SearchPage.Accuracy accuracy;
+        if (strategy == CountStrategy.EXACT) {
+            if (pending == null) {
+                count = criteria.getCountQuery().getSingleResult();
+            } else {
+                try {
+                    count = pending.join();
+                } catch (CompletionException e) {
+                    // surface the failure of the count as if it had been performed in line
+                    if (e.getCause() instanceof RuntimeException cause) {
+                        throw cause;
+                    }
+                    if (e.getCause() instanceof Error cause) {
+                        throw cause;
+                    }
+                    throw e;
+                }
+            }
+            accuracy = SearchPage.Accuracy.EXACT;
+        } else {
+            // the least number of results known to exist
+            long seen = (criteria.isKeyset() ? 0 : paging.getOffset()) + results.size() + (more ? 1 : 0);
+            OptionalLong estimate = strategy == CountStrategy.ESTIMATED
+                    ? criteria.estimateCount()
+                    : OptionalLong.empty();
+            if (strategy == CountStrategy.NONE) {
+                count = seen;
+                // past the last result, the total is only known not to exceed the offset
+                boolean last = !more && !criteria.isKeyset() && (!results.isEmpty() || paging.getOffset() == 0);
+                accuracy = last ? SearchPage.Accuracy.EXACT : SearchPage.Accuracy.UNKNOWN;
+            } else if (estimate.isPresent()) {
+                count = Math.max(estimate.getAsLong(), seen);
+                accuracy = SearchPage.Accuracy.ESTIMATED;
+            } else {
+                long bounded = criteria.countUpToBound();
+                count = Math.max(bounded, seen);
+                accuracy = bounded > criteria.getCountBound() ? SearchPage.Accuracy.AT_LEAST : SearchPage.Accuracy.EXACT;
+            }
+        }
+        if (criteria.getExpansions() != null) {
+            results = expand(results, criteria.getExpansions());
+        }
+        return new SearchPage<>(results, paging, count, accuracy, fetchNext ? more : null);
     }
 }
@@ -0,0 +1,52 @@
+package org.rnott.example.persistence;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.MappedSuperclass;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+import org.rnott.example.api.EntityState;
+
+/**
+ * Entity base type for entities that store their tags as a JSON object in a
+ * <code>tags jsonb</code> column of the entity table. Tags are read along with
+ * the entity and replacing them rewrites a single column rather than the rows
+ * of a side table.
+ * <p>
+ * Tag searches use the <code>jsonb</code> containment and key existence
+ * operators, which should be supported by a GIN index:
+ * <pre>
+ * CREATE INDEX examples_tags ON examples USING GIN (tags);
+ * </pre>
+ * Repositories for these entities should extend {@link AbstractJsonTagEntityRepository}.
+ *
+ * @see JsonTagFunctionContributor
+ */
+@NoArgsConstructor
+@Getter
+@MappedSuperclass
+public abstract class AbstractJsonTagEntity extends AbstractEntity {
+
+    protected AbstractJsonTagEntity(
+            UUID id,
+            EntityState state,
+            OffsetDateTime created,
+            String createdBy,
+            OffsetDateTime modified,
+            String modifiedBy,
+            Integer version,
+            Map<String, String> tags
+    ) {
+        super(id, state, created, createdBy, modified, modifiedBy, version);
+        this.tags = tags;
+    }
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(columnDefinition = "jsonb")
+    private Map<String, String> tags = new LinkedHashMap<>();
+}
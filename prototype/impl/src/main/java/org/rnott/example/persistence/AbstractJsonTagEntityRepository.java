@@ -0,0 +1,28 @@
+package org.rnott.example.persistence;
+
+import jakarta.validation.constraints.NotNull;
+import java.util.Optional;
+import java.util.UUID;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.NoRepositoryBean;
+
+/**
+ * Base repository for entities that store their tags in a <code>jsonb</code> column.
+ *
+ * @param <T> the entity type
+ * @see AbstractJsonTagEntity
+ */
+@NoRepositoryBean
+public interface AbstractJsonTagEntityRepository<T extends AbstractJsonTagEntity> extends AbstractEntityRepository<T> {
+
+    /**
+     * Tags are a column of the entity table and always loaded with the
+     * entity, so there is nothing to fetch.
+     *
+     * @param id the entity identifier
+     * @return the entity, if found
+     */
+    @Override
+    @Query("select e from #{#entityName} e where e.deleted = false and e.id = ?1")
+    Optional<T> findByIdWithTags(@NotNull UUID id);
+}
@@ -0,0 +1,47 @@
+package org.rnott.example.persistence;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.ElementCollection;
+import jakarta.persistence.MapKeyColumn;
+import jakarta.persistence.MappedSuperclass;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.rnott.example.api.EntityState;
+
+/**
+ * Entity base type for entities that store their tags in a side table, one
+ * row per tag. The table is named for the entity, for example
+ * <code>example_entity_tags</code>, with columns for the entity identifier,
+ * <code>key</code> and <code>value</code>.
+ * <p>
+ * Tags are loaded lazily. Use {@link AbstractEntityRepository#findByIdWithTags(UUID)}
+ * to fetch them along with the entity.
+ */
+@NoArgsConstructor
+@Getter
+@MappedSuperclass
+public abstract class AbstractTagTableEntity extends AbstractEntity {
+
+    protected AbstractTagTableEntity(
+            UUID id,
+            EntityState state,
+            OffsetDateTime created,
+            String createdBy,
+            OffsetDateTime modified,
+            String modifiedBy,
+            Integer version,
+            Map<String, String> tags
+    ) {
+        super(id, state, created, createdBy, modified, modifiedBy, version);
+        this.tags = tags;
+    }
+
+    @ElementCollection
+    @MapKeyColumn(name = "key")
+    @Column(name = "value")
+    private Map<String, String> tags = new LinkedHashMap<>();
+}
@@ -0,0 +1,45 @@
+package org.rnott.example.persistence;
+
+/**
+ * The outcome of writing a single entity, on its own or as part of a batch.
+ *
+ * @param entity the entity as written, or as presented if it was not written
+ * @param outcome the outcome of writing the entity
+ * @param <T> the entity type
+ * @see AbstractEntityRepository#saveAllInBatch(Iterable)
+ * @see AbstractEntityRepository#upsert(AbstractEntity, Long)
+ */
+public record BatchResult<T extends AbstractEntity>(T entity, Outcome outcome) {
+
+    public enum Outcome {
+        /**
+         * The entity did not exist and was created.
+         */
+        CREATED,
+        /**
+         * The entity existed and was replaced.
+         */
+        REPLACED,
+        /**
+         * The entity was not written as its version is not the current version.
+         */
+        STALE,
+        /**
+         * The entity was not written as it has been soft-deleted.
+         */
+        DELETED,
+        /**
+         * The entity was not written as it appears earlier in the batch.
+         */
+        DUPLICATE
+    }
+
+    /**
+     * Determine if the entity was written.
+     *
+     * @return <code>true</code> if the entity was created or replaced
+     */
+    public boolean isWritten() {
+        return outcome == Outcome.CREATED || outcome == Outcome.REPLACED;
+    }
+}
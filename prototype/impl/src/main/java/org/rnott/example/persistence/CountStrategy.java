@@ -0,0 +1,32 @@
+package org.rnott.example.persistence;
+
+/**
+ * Determines how the full set of search results is counted. Counting
+ * requires a second query which, for large collections, can cost more
+ * than fetching the page of results itself.
+ *
+ * @see SearchCriteria.Builder#countStrategy(CountStrategy)
+ */
+public enum CountStrategy {
+    /**
+     * Count every matching entity.
+     */
+    EXACT,
+    /**
+     * Do not count. The presence of a following page is determined by
+     * fetching one more entity than the page size.
+     */
+    NONE,
+    /**
+     * Use the planner estimate of the number of rows in the entity table.
+     * Estimates are only available for searches of the entities that are not
+     * deleted and not otherwise restricted; a bounded count is performed
+     * instead when unavailable.
+     */
+    ESTIMATED,
+    /**
+     * Count matching entities up to a bound, beyond which the count is
+     * known to be a lower limit.
+     */
+    BOUNDED
+}
@@ -0,0 +1,703 @@
+package org.rnott.example.persistence;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import jakarta.persistence.TypedQuery;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.graph.RootGraph;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.jpa.SpecHints;
+import org.hibernate.metamodel.MappingMetamodel;
+import org.hibernate.metamodel.mapping.PluralAttributeMapping;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.query.BindableType;
+import org.hibernate.query.NativeQuery;
+import org.rnott.example.api.PatchDocument;
+import org.springframework.data.jpa.repository.support.JpaEntityInformation;
+import org.springframework.data.jpa.repository.support.SimpleJpaRepository;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Base class for all repositories, implementing the operations declared by
+ * {@link AbstractEntityRepository} that cannot be expressed as queries.
+ * Registered as the repository base class by the application configuration.
+ * <p>
+ * Batch deletes soft-delete entities, as do all other deletes, using as few
+ * statements as possible. Identifiers are bound in chunks as the number of
+ * parameters of a statement is limited.
+ * <p>
+ * Batch writes fetch the entities to be replaced up front, rather than one
+ * at a time as when each entity is merged, so that the inserts and updates
+ * can be flushed as JDBC batches. A single entity is created or replaced by
+ * a single <code>insert ... on conflict do update</code> statement instead,
+ * which does not race with concurrent writes of the same entity.
+ * <p>
+ * Scrolling through search results streams them from a database cursor,
+ * detaching each entity once it has been processed.
+ * <p>
+ * Associations are expanded using a query per association rather than a query
+ * per entity, see {@link Expansions}.
+ * <p>
+ * Tags are modified in place using a single statement that also increments
+ * the entity version, instead of loading the entity and all of its tags,
+ * modifying them and saving the entity. A cached instance of a modified
+ * entity is detached from the persistence context so that it is reloaded
+ * when next accessed. Patches are applied the same way, by a statement
+ * compiled from the paths of the patch, see {@link PatchPlan}.
+ *
+ * @param <T> the entity type
+ */
+public class DefaultEntityRepository<T extends AbstractEntity> extends SimpleJpaRepository<T, UUID> {
+
+    /**
+     * Maximum number of identifiers bound to a single statement. A power of
+     * two so that IN clause parameter padding does not add parameters.
+     */
+    public static final int BATCH_SIZE = 8192;
+
+    /**
+     * Number of rows fetched at a time when scrolling through results.
+     */
+    public static final int SCROLL_FETCH_SIZE = 500;
+
+    /**
+     * Maximum number of compiled patch plans retained for an entity type. Patches
+     * of other shapes are compiled each time.
+     */
+    public static final int PATCH_PLAN_CACHE_SIZE = 256;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final EntityManager em;
+    private final Class<T> domainClass;
+    private final String entityName;
+    private TagStatements statements;
+    private PatchPlan.Model model;
+    private String upsert;
+    private String versionedUpsert;
+    private final Map<List<String>, PatchPlan> plans = new ConcurrentHashMap<>();
+
+    public DefaultEntityRepository(JpaEntityInformation<T, ?> entityInformation, EntityManager em) {
+        super(entityInformation, em);
+        this.em = em;
+        this.domainClass = entityInformation.getJavaType();
+        this.entityName = entityInformation.getEntityName();
+    }
+
+    @Override
+    @Transactional
+    public void deleteAllInBatch() {
+        em.createQuery("update " + entityName + " e set e.deleted = true where e.deleted = false")
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public void deleteAllInBatch(Iterable<T> entities) {
+        markDeleted(ids(entities), true);
+    }
+
+    @Override
+    @Transactional
+    public void deleteAllByIdInBatch(Iterable<UUID> ids) {
+        markDeleted(ids, true);
+    }
+
+    @Transactional
+    public void undeleteAllInBatch() {
+        em.createQuery("update " + entityName + " e set e.deleted = false where e.deleted = true")
+                .executeUpdate();
+    }
+
+    @Transactional
+    public void undeleteAllInBatch(Iterable<T> entities) {
+        markDeleted(ids(entities), false);
+    }
+
+    @Transactional
+    public void undeleteAllByIdInBatch(Iterable<UUID> ids) {
+        markDeleted(ids, false);
+    }
+
+    private static Iterable<UUID> ids(Iterable<? extends AbstractEntity> entities) {
+        List<UUID> ids = new ArrayList<>();
+        entities.forEach(e -> ids.add(e.getId()));
+        return ids;
+    }
+
+    /**
+     * Soft-delete or resurrect entities, one statement per chunk of identifiers.
+     *
+     * @return the number of entities modified
+     */
+    private int markDeleted(Iterable<UUID> ids, boolean deleted) {
+        Query update = em.createQuery(
+                        "update " + entityName + " e set e.deleted = :deleted where e.id in :ids and e.deleted = :current"
+                )
+                .setParameter("deleted", deleted)
+                .setParameter("current", !deleted);
+        int modified = 0;
+        List<UUID> chunk = new ArrayList<>(BATCH_SIZE);
+        for (UUID id : ids) {
+            chunk.add(id);
+            if (chunk.size() == BATCH_SIZE) {
+                modified += update.setParameter("ids", List.copyOf(chunk)).executeUpdate();
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            modified += update.setParameter("ids", List.copyOf(chunk)).executeUpdate();
+        }
+        return modified;
+    }
+
+    @Transactional
+    public List<BatchResult<T>> saveAllInBatch(Iterable<T> entities) {
+        List<T> batch = new ArrayList<>();
+        entities.forEach(batch::add);
+        Map<UUID, T> existing = findAllForUpdate(batch);
+        Set<UUID> seen = new HashSet<>();
+        List<BatchResult<T>> results = new ArrayList<>(batch.size());
+        for (T entity : batch) {
+            UUID id = entity.getId();
+            T current = id == null ? null : existing.get(id);
+            if (id != null && !seen.add(id)) {
+                results.add(new BatchResult<>(entity, BatchResult.Outcome.DUPLICATE));
+            } else if (current == null) {
+                em.persist(entity);
+                results.add(new BatchResult<>(entity, BatchResult.Outcome.CREATED));
+            } else if (current.isDeleted()) {
+                results.add(new BatchResult<>(entity, BatchResult.Outcome.DELETED));
+            } else if (current.getVersion() != entity.getVersion()) {
+                results.add(new BatchResult<>(entity, BatchResult.Outcome.STALE));
+            } else {
+                // as for upsert, only the properties are replaced: creation properties and tags are retained
+                AbstractEntityPersister persister = persister();
+                model().columns().keySet().forEach(property ->
+                        persister.setPropertyValue(current, property, persister.getPropertyValue(entity, property)));
+                // the current entity is managed, so its changes are written without a query
+                results.add(new BatchResult<>(current, BatchResult.Outcome.REPLACED));
+            }
+        }
+        // versions are only final once written
+        em.flush();
+        return results;
+    }
+
+    @Transactional
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BatchResult<T> upsert(T entity, Long version) {
+        if (entity.getId() == null) {
+            throw new IllegalArgumentException("An identifier is required");
+        }
+        AbstractEntityPersister persister = persister();
+        // a cached instance would be returned in place of the row written
+        evict(entity.getId());
+        NativeQuery<T> query = em.createNativeQuery(upsertStatement(version != null), domainClass)
+                .setParameter("id", entity.getId())
+                .setParameter("modified", Instant.now().atOffset(ZoneOffset.UTC))
+                // TODO: integrate user
+                .setParameter("modifiedBy", "unknown")
+                .unwrap(NativeQuery.class);
+        if (version != null) {
+            query.setParameter("version", version);
+        }
+        model().columns().forEach((property, column) -> {
+            Object value = persister.getPropertyValue(entity, property);
+            if (value == null && !column.nullable()) {
+                throw new IllegalArgumentException("Property cannot be null: " + property);
+            }
+            if (column.binding() == null) {
+                query.setParameter(property, value);
+            } else {
+                query.setParameter(property, value, (BindableType) column.binding());
+            }
+        });
+        List<T> written = query.getResultList();
+        if (!written.isEmpty()) {
+            T result = written.get(0);
+            // the version of a created entity is not incremented
+            return new BatchResult<>(result, result.getVersion() == 0
+                    ? BatchResult.Outcome.CREATED
+                    : BatchResult.Outcome.REPLACED);
+        }
+
+        // the entity exists but was not replaced
+        boolean deleted = em.createQuery("select e.deleted from " + entityName + " e where e.id = :id", Boolean.class)
+                .setParameter("id", entity.getId())
+                .getResultList()
+                .stream()
+                .findFirst()
+                .orElse(false);
+        return new BatchResult<>(entity, deleted ? BatchResult.Outcome.DELETED : BatchResult.Outcome.STALE);
+    }
+
+    /**
+     * The statement creating or replacing an entity. The entity is inserted with
+     * the audit properties of its creation and, if the identifier exists, the
+     * existing row is updated instead, retaining its creation properties and
+     * incrementing its version. Rows that are soft-deleted, or not of the
+     * expected version, are not updated and the statement returns no rows.
+     * Tags are not written, as they are maintained by the tag operations.
+     *
+     * @param versioned <code>true</code> if the version of an existing entity is checked
+     * @return the statement, returning the row written
+     */
+    private String upsertStatement(boolean versioned) {
+        if (upsert == null) {
+            AbstractEntityPersister persister = persister();
+            String id = statements().id();
+            String version = persister.getVersionColumnName();
+            String modified = persister.getPropertyColumnNames("modified")[0];
+            String modifiedBy = persister.getPropertyColumnNames("modifiedBy")[0];
+
+            Map<String, String> values = new LinkedHashMap<>();
+            values.put(id, ":id");
+            values.put(version, "0");
+            values.put(persister.getPropertyColumnNames("deleted")[0], "false");
+            values.put(persister.getPropertyColumnNames("created")[0], ":modified");
+            values.put(persister.getPropertyColumnNames("createdBy")[0], ":modifiedBy");
+            values.put(modified, ":modified");
+            values.put(modifiedBy, ":modifiedBy");
+            List<String> updates = new ArrayList<>(List.of(
+                    version + " = e." + version + " + 1",
+                    modified + " = excluded." + modified,
+                    modifiedBy + " = excluded." + modifiedBy
+            ));
+            model().columns().forEach((property, column) -> {
+                values.put(column.name(), ":" + property);
+                updates.add(column.name() + " = excluded." + column.name());
+            });
+
+            upsert = "insert into " + statements().table() + " as e"
+                    + " (" + String.join(", ", values.keySet()) + ")"
+                    + " values (" + String.join(", ", values.values()) + ")"
+                    + " on conflict (" + id + ") do update set " + String.join(", ", updates)
+                    + " where e." + persister.getPropertyColumnNames("deleted")[0] + " = false";
+            versionedUpsert = upsert + " and e." + version + " = :version";
+            upsert += " returning *";
+            versionedUpsert += " returning *";
+        }
+        return versioned ? versionedUpsert : upsert;
+    }
+
+    /**
+     * Fetch the entities, including those soft-deleted, that are to be
+     * replaced by a batch. Tags are not fetched, as they are retained.
+     */
+    private Map<UUID, T> findAllForUpdate(List<T> batch) {
+        TypedQuery<T> query = em.createQuery(
+                "select e from " + entityName + " e where e.id in :ids",
+                domainClass
+        );
+        Map<UUID, T> existing = new HashMap<>();
+        List<UUID> chunk = new ArrayList<>(BATCH_SIZE);
+        for (T entity : batch) {
+            if (entity.getId() != null) {
+                chunk.add(entity.getId());
+            }
+            if (chunk.size() == BATCH_SIZE) {
+                query.setParameter("ids", List.copyOf(chunk)).getResultList().forEach(e -> existing.put(e.getId(), e));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            query.setParameter("ids", List.copyOf(chunk)).getResultList().forEach(e -> existing.put(e.getId(), e));
+        }
+        return existing;
+    }
+
+    @Transactional(readOnly = true)
+    public long scroll(SearchCriteria.Builder<T> criteria, Consumer<? super T> action) {
+        // the results must be read in a transaction for the fetch size to apply
+        TypedQuery<T> query = criteria.build()
+                .getResultsQuery()
+                .setHint(HibernateHints.HINT_FETCH_SIZE, SCROLL_FETCH_SIZE)
+                .setHint(HibernateHints.HINT_READ_ONLY, true);
+        long count = 0;
+        try (Stream<T> results = query.getResultStream()) {
+            for (Iterator<T> it = results.iterator(); it.hasNext(); count++) {
+                T entity = it.next();
+                action.accept(entity);
+                em.detach(entity);
+            }
+        }
+        return count;
+    }
+
+    @Transactional(readOnly = true)
+    public Optional<T> findById(UUID id, Field expansions) {
+        Expansions.validate(em.getMetamodel(), domainClass, expansions);
+        TypedQuery<T> query = em.createQuery(
+                        "select e from " + entityName + " e where e.deleted = false and e.id = :id", domainClass)
+                .setParameter("id", id);
+        RootGraph<T> graph = Expansions.graph(em, domainClass, expansions);
+        if (graph != null) {
+            query.setHint(SpecHints.HINT_SPEC_LOAD_GRAPH, graph);
+        }
+        return query.getResultList().stream()
+                .findFirst()
+                .flatMap(entity -> Expansions.fetch(em, domainClass, List.of(entity), expansions).stream().findFirst());
+    }
+
+    @Transactional(readOnly = true)
+    public List<T> expand(List<T> entities, Field expansions) {
+        return Expansions.fetch(em, domainClass, entities, expansions);
+    }
+
+    @Transactional
+    public OptionalLong putTag(UUID id, Long version, String key, String value) {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("key", key);
+        parameters.put("value", value);
+        return modifyTags(id, version, statements().put(version != null), parameters);
+    }
+
+    @Transactional
+    public OptionalLong removeTag(UUID id, Long version, String key) {
+        return modifyTags(id, version, statements().remove(version != null), Map.of("key", key));
+    }
+
+    @Transactional
+    public OptionalLong clearTags(UUID id, Long version) {
+        return modifyTags(id, version, statements().clear(version != null), Map.of());
+    }
+
+    @Transactional
+    public OptionalLong replaceTags(UUID id, Long version, Map<String, String> tags) {
+        String json;
+        try {
+            json = JSON.writeValueAsString(tags);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid tags", e);
+        }
+        return modifyTags(id, version, statements().replace(version != null), Map.of("tags", json));
+    }
+
+    @Transactional
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OptionalLong patch(UUID id, Long version, List<PatchDocument> operations) {
+        PatchPlan.Request request = PatchPlan.Request.of(operations);
+        PatchPlan plan = plans.get(request.shape());
+        if (plan == null) {
+            plan = PatchPlan.compile(model(), request);
+            if (plans.size() < PATCH_PLAN_CACHE_SIZE) {
+                plans.put(request.shape(), plan);
+            }
+        }
+        PatchPlan.Binding binding = plan.bind(request);
+        if (binding.applicable()) {
+            Query query = statementFor(id, version, plan.statement(version != null));
+            NativeQuery<?> nativeQuery = query.unwrap(NativeQuery.class);
+            for (PatchPlan.Parameter parameter : binding.parameters()) {
+                if (parameter.binding() == null) {
+                    nativeQuery.setParameter(parameter.name(), parameter.value());
+                } else {
+                    nativeQuery.setParameter(parameter.name(), parameter.value(), (BindableType) parameter.binding());
+                }
+            }
+            OptionalLong written = execute(query);
+            if (written.isPresent()) {
+                evict(id);
+                return written;
+            }
+        }
+
+        // distinguish a stale version, or an entity that does not exist, from a patch that does not apply
+        Optional<Long> current = em.createQuery(
+                        "select e.version from " + entityName + " e where e.id = :id and e.deleted = false",
+                        Long.class
+                )
+                .setParameter("id", id)
+                .getResultList()
+                .stream()
+                .findFirst();
+        if (current.isEmpty()) {
+            return OptionalLong.empty();
+        }
+        if (version != null && !version.equals(current.get())) {
+            throw new ObjectOptimisticLockingFailureException(domainClass, id);
+        }
+        throw new PatchConflictException(String.format("The patch does not apply to the current state of %s", id));
+    }
+
+    private OptionalLong modifyTags(UUID id, Long version, String sql, Map<String, Object> parameters) {
+        Query query = statementFor(id, version, sql);
+        parameters.forEach(query::setParameter);
+        OptionalLong written = execute(query);
+        if (written.isEmpty()) {
+            // distinguish a stale version from an entity that does not exist
+            boolean exists = em.createQuery(
+                            "select count(e) from " + entityName + " e where e.id = :id and e.deleted = false",
+                            Long.class
+                    )
+                    .setParameter("id", id)
+                    .getSingleResult() > 0;
+            if (exists) {
+                throw new ObjectOptimisticLockingFailureException(domainClass, id);
+            }
+            return written;
+        }
+        evict(id);
+        return written;
+    }
+
+    /**
+     * Create a statement that modifies an entity in place, binding the entity
+     * identifier, audit properties and expected version, if any.
+     */
+    private Query statementFor(UUID id, Long version, String sql) {
+        Query query = em.createNativeQuery(sql)
+                .setParameter("id", id)
+                .setParameter("modified", Instant.now().atOffset(ZoneOffset.UTC))
+                // TODO: integrate user
+                .setParameter("modifiedBy", "unknown");
+        if (version != null) {
+            query.setParameter("version", version);
+        }
+        return query;
+    }
+
+    /**
+     * Execute a statement created by {@link #statementFor(UUID, Long, String)}.
+     *
+     * @return the version of the entity once modified, or empty if it was not modified
+     */
+    private OptionalLong execute(Query query) {
+        List<?> versions = query.getResultList();
+        return versions.isEmpty()
+                ? OptionalLong.empty()
+                : OptionalLong.of(((Number) versions.get(0)).longValue());
+    }
+
+    /**
+     * Detach a cached instance of an entity that has been modified by a statement.
+     */
+    private void evict(UUID id) {
+        SharedSessionContractImplementor session = em.unwrap(SharedSessionContractImplementor.class);
+        Object cached = session.getPersistenceContextInternal().getEntity(
+                session.generateEntityKey(id, session.getFactory().getMappingMetamodel().getEntityDescriptor(domainClass))
+        );
+        if (cached != null) {
+            em.detach(cached);
+        }
+    }
+
+    private PatchPlan.Model model() {
+        if (model == null) {
+            model = PatchPlan.Model.of(persister(), statements());
+        }
+        return model;
+    }
+
+    private AbstractEntityPersister persister() {
+        return (AbstractEntityPersister) em.getEntityManagerFactory()
+                .unwrap(SessionFactoryImplementor.class)
+                .getMappingMetamodel()
+                .getEntityDescriptor(domainClass);
+    }
+
+    private TagStatements statements() {
+        if (statements == null) {
+            statements = TagStatements.of(
+                    em.getEntityManagerFactory()
+                            .unwrap(SessionFactoryImplementor.class)
+                            .getMappingMetamodel(),
+                    domainClass
+            );
+        }
+        return statements;
+    }
+
+    /**
+     * The statements used to modify tags in place, resolved from the mapping of
+     * an entity. Each statement updates the entity version and audit columns,
+     * provided that the entity exists and has not been deleted, and optionally
+     * only if the entity version is as expected.
+     * <p>
+     * Tags stored in a side table are modified by a data modifying common
+     * table expression that only acts on the entity when it was updated. Every
+     * statement returns the version of the entity once updated, if it was.
+     *
+     * @param json <code>true</code> if the tags are stored in a JSON column
+     * @param table the entity table
+     * @param update the entity update, less the optimistic version check, with a
+     *               placeholder for additional assignments
+     * @param versionCheck the optimistic version check
+     * @param tagTable the tag table, if not stored as JSON
+     * @param owner the tag table column referencing the entity
+     * @param key the tag table key column
+     * @param value the tag table value column
+     * @param tags the JSON column, if stored as JSON
+     * @param id the entity identifier column
+     * @param version the entity version column
+     */
+    record TagStatements(
+            boolean json,
+            String table,
+            String update,
+            String versionCheck,
+            String tagTable,
+            String owner,
+            String key,
+            String value,
+            String tags,
+            String id,
+            String version
+    ) {
+
+        static TagStatements of(MappingMetamodel metamodel, Class<?> clazz) {
+            AbstractEntityPersister persister = (AbstractEntityPersister) metamodel.getEntityDescriptor(clazz);
+            String table = persister.getIdentifierTableDetails().getTableName();
+            String id = persister.getIdentifierColumnNames()[0];
+            String version = persister.getVersionColumnName();
+            String update = "update " + table + " set "
+                    + version + " = " + version + " + 1, "
+                    + persister.getPropertyColumnNames("modified")[0] + " = :modified, "
+                    + persister.getPropertyColumnNames("modifiedBy")[0] + " = :modifiedBy%s"
+                    + " where " + id + " = :id and " + persister.getPropertyColumnNames("deleted")[0] + " = false";
+            String versionCheck = " and " + version + " = :version";
+
+            if (persister.findAttributeMapping("tags") instanceof PluralAttributeMapping) {
+                AbstractCollectionPersister tags = (AbstractCollectionPersister) metamodel.getCollectionDescriptor(
+                        persister.getEntityName() + ".tags"
+                );
+                return new TagStatements(
+                        false,
+                        table,
+                        update,
+                        versionCheck,
+                        tags.getTableName(),
+                        tags.getKeyColumnNames()[0],
+                        tags.getIndexColumnNames()[0],
+                        tags.getElementColumnNames()[0],
+                        null,
+                        id,
+                        version
+                );
+            }
+            return new TagStatements(
+                    true,
+                    table,
+                    update,
+                    versionCheck,
+                    null,
+                    null,
+                    null,
+                    null,
+                    persister.getPropertyColumnNames("tags")[0],
+                    id,
+                    version
+            );
+        }
+
+        String put(boolean versioned) {
+            if (json) {
+                return json("coalesce(" + tags + ", jsonb_build_object())"
+                        + " || jsonb_build_object(cast(:key as text), cast(:value as text))", versioned);
+            }
+            return withEntity(versioned, "tag as (" + upsert("select entity.id, :key, :value from entity") + ")");
+        }
+
+        String remove(boolean versioned) {
+            if (json) {
+                return json(tags + " - cast(:key as text)", versioned);
+            }
+            return withEntity(versioned, "tag as (" + delete(" and t." + key + " = :key") + ")");
+        }
+
+        String clear(boolean versioned) {
+            if (json) {
+                return json("jsonb_build_object()", versioned);
+            }
+            return withEntity(versioned, "tag as (" + delete("") + ")");
+        }
+
+        /*
+        Tags no longer present are deleted while the others are inserted or updated,
+        the statements must not act on the same rows as they see the same snapshot.
+         */
+        String replace(boolean versioned) {
+            if (json) {
+                return json("cast(:tags as jsonb)", versioned);
+            }
+            return withEntity(versioned, replacement(":tags"));
+        }
+
+        /**
+         * The operations replacing all the tags of the updated entity.
+         *
+         * @param tags the parameter holding the replacement tags as a JSON object
+         */
+        String replacement(String tags) {
+            return "stale as (" + delete(" and not jsonb_exists(cast(" + tags + " as jsonb), t." + key + ")") + "), "
+                    + "fresh as (" + upsert(
+                    "select entity.id, x.key, x.value from entity, jsonb_each_text(cast(" + tags + " as jsonb)) x"
+            ) + ")";
+        }
+
+        private String json(String expression, boolean versioned) {
+            return returning(String.format(update, ", " + tags + " = " + expression) + (versioned ? versionCheck : ""));
+        }
+
+        private String withEntity(boolean versioned, String operations) {
+            return withEntity(String.format(update, "") + (versioned ? versionCheck : ""), ", " + operations);
+        }
+
+        /**
+         * The update of the entity, returning its version once updated.
+         *
+         * @param entityUpdate the update of the entity
+         */
+        String returning(String entityUpdate) {
+            return entityUpdate + " returning " + version;
+        }
+
+        /**
+         * The operations on the tag table acting on the entity updated, if it was,
+         * returning its version once updated.
+         *
+         * @param entityUpdate the update of the entity
+         * @param operations the common table expressions of the operations, each preceded by a comma
+         */
+        String withEntity(String entityUpdate, String operations) {
+            return "with entity as (" + entityUpdate + " returning " + id + " as id, " + version + " as version)"
+                    + operations
+                    + " select entity.version from entity";
+        }
+
+        /*
+        Tags whose value is unchanged are not updated, so their rows are not rewritten.
+         */
+        String upsert(String rows) {
+            return "insert into " + tagTable + " (" + owner + ", " + key + ", " + value + ") " + rows
+                    + " on conflict (" + owner + ", " + key + ") do update set " + value + " = excluded." + value
+                    + " where " + tagTable + "." + value + " is distinct from excluded." + value;
+        }
+
+        String delete(String condition) {
+            return "delete from " + tagTable + " t using entity where t." + owner + " = entity.id" + condition;
+        }
+    }
+}
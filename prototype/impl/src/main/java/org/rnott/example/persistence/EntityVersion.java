@@ -0,0 +1,16 @@
+package org.rnott.example.persistence;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * The version of an entity and when it was last modified, selected without
+ * loading the entity.
+ *
+ * @param id the entity identifier
+ * @param version the entity version
+ * @param modified when the entity was last modified
+ * @see AbstractEntityRepository#findVersionById(UUID)
+ */
+public record EntityVersion(UUID id, long version, OffsetDateTime modified) {
+}
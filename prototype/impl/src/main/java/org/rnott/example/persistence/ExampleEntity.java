@@ -19,7 +19,7 @@ import org.rnott.example.api.EntityState;
 @NoArgsConstructor
 @Getter
 @Setter
-public class ExampleEntity extends AbstractEntity {
+public class ExampleEntity extends AbstractTagTableEntity {
     @Column(nullable = false)
     @NotNull
     private String name;
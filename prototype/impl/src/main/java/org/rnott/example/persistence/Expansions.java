@@ -0,0 +1,219 @@
+package org.rnott.example.persistence;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceUnitUtil;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import jakarta.persistence.metamodel.ManagedType;
+import jakarta.persistence.metamodel.Metamodel;
+import jakarta.persistence.metamodel.PluralAttribute;
+import jakarta.persistence.metamodel.SingularAttribute;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.hibernate.Hibernate;
+import org.hibernate.graph.Graph;
+import org.hibernate.graph.RootGraph;
+import org.hibernate.jpa.SpecHints;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Loads the associations of entities named by {@link Field} expansions, for
+ * example <code>author(publisher) categories</code>.
+ * <p>
+ * Joining every expanded association in a single query multiplies the rows of
+ * each collection by the rows of every other, and prevents a page of results
+ * from being limited by the database. Instead, to-one associations are joined
+ * by the query for the entities (using a load graph), as they do not add rows,
+ * and each other association is fetched by a secondary query for all the
+ * entities at once, binding their identifiers to an <code>IN</code> clause.
+ * The number of queries therefore depends on the expansions, not on the number
+ * of entities.
+ */
+final class Expansions {
+
+    private Expansions() {
+    }
+
+    /**
+     * Verify that the expansions name associations (or collections) of the entity
+     * type, and that only entity associations are expanded further.
+     *
+     * @param meta the entity model
+     * @param type the entity type
+     * @param expansions the expansions
+     * @throws IllegalArgumentException if a property is unknown or cannot be expanded
+     */
+    static void validate(Metamodel meta, Class<?> type, Field expansions) {
+        ManagedType<?> model = meta.managedType(type);
+        for (Field field : expansions.subfields()) {
+            Attribute<?, ?> attribute = model.getAttribute(field.name());
+            if (!attribute.isAssociation() && !attribute.isCollection()) {
+                throw new IllegalArgumentException("Property cannot be expanded: " + field.name());
+            }
+            if (field.hasSubfields()) {
+                Class<?> target = targetOf(attribute);
+                if (meta.getEntities().stream().noneMatch(e -> e.getJavaType().equals(target))) {
+                    throw new IllegalArgumentException("Property cannot be expanded further: " + field.name());
+                }
+                validate(meta, target, field);
+            }
+        }
+    }
+
+    /**
+     * Create a graph that loads the expanded to-one associations along with the
+     * entities, including to-one associations of those associations.
+     *
+     * @param em the entity manager
+     * @param type the entity type
+     * @param expansions the expansions
+     * @return the graph, or <code>null</code> if no to-one associations are expanded
+     */
+    @SuppressWarnings("unchecked")
+    static <T> RootGraph<T> graph(EntityManager em, Class<T> type, Field expansions) {
+        RootGraph<T> graph = (RootGraph<T>) em.createEntityGraph(type);
+        return addToOne(graph, em.getMetamodel().managedType(type), expansions) ? graph : null;
+    }
+
+    private static boolean addToOne(Graph<?> graph, ManagedType<?> model, Field expansions) {
+        boolean added = false;
+        for (Field field : expansions.subfields()) {
+            Attribute<?, ?> attribute = model.getAttribute(field.name());
+            if (attribute.isCollection()) {
+                continue;
+            }
+            if (field.hasSubfields()) {
+                ManagedType<?> target = (ManagedType<?>) ((SingularAttribute<?, ?>) attribute).getType();
+                addToOne(graph.addSubGraph(attribute.getName()), target, field);
+            } else {
+                graph.addAttributeNode(attribute.getName());
+            }
+            added = true;
+        }
+        return added;
+    }
+
+    /**
+     * Load the expanded associations of the specified entities. Associations that
+     * are already loaded are not queried again.
+     * <p>
+     * The entities must be managed by the specified entity manager for their
+     * associations to be loaded in place. Otherwise, as when the entities were
+     * queried by another persistence context, the entities are queried again
+     * using a single query.
+     *
+     * @param em the entity manager
+     * @param type the entity type
+     * @param entities the entities
+     * @param expansions the expansions
+     * @return the entities, as managed by the entity manager, in the order specified
+     */
+    static <T> List<T> fetch(EntityManager em, Class<T> type, List<T> entities, Field expansions) {
+        if (entities.isEmpty() || !expansions.hasSubfields()) {
+            return entities;
+        }
+        List<T> managed = entities;
+        if (!entities.stream().allMatch(em::contains)) {
+            PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+            EntityType<T> model = em.getMetamodel().entity(type);
+            Map<Object, T> found = new HashMap<>();
+            RootGraph<T> graph = graph(em, type, expansions);
+            query(em, type, "select e from " + model.getName() + " e where e." + idOf(model) + " in :ids",
+                    identifiers(util, entities), graph)
+                    .forEach(e -> found.put(util.getIdentifier(e), e));
+            managed = entities.stream()
+                    .map(e -> found.get(util.getIdentifier(e)))
+                    .filter(Objects::nonNull)
+                    .toList();
+        }
+        expand(em, type, managed, expansions);
+        return managed;
+    }
+
+    private static void expand(EntityManager em, Class<?> type, Collection<?> owners, Field expansions) {
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        EntityType<?> model = em.getMetamodel().entity(type);
+        for (Field field : expansions.subfields()) {
+            Attribute<?, ?> attribute = model.getAttribute(field.name());
+            String name = attribute.getName();
+            if (!owners.stream().allMatch(o -> util.isLoaded(o, name))) {
+                // the owners are managed, so the association is loaded in place
+                query(em, type, "select e from " + model.getName() + " e left join fetch e." + name
+                        + " where e." + idOf(model) + " in :ids", identifiers(util, owners), null);
+            }
+            if (attribute.isCollection() && !field.hasSubfields()) {
+                continue;
+            }
+            // proxies are initialized from the persistence context, without querying
+            Set<Object> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Object owner : owners) {
+                Object value = valueOf(attribute.getJavaMember(), owner);
+                if (value instanceof Collection<?> c) {
+                    c.forEach(t -> targets.add(Hibernate.unproxy(t)));
+                } else if (value instanceof Map<?, ?> m) {
+                    m.values().forEach(t -> targets.add(Hibernate.unproxy(t)));
+                } else if (value != null) {
+                    targets.add(Hibernate.unproxy(value));
+                }
+            }
+            if (field.hasSubfields() && !targets.isEmpty()) {
+                expand(em, targetOf(attribute), targets, field);
+            }
+        }
+    }
+
+    private static <T> List<T> query(
+            EntityManager em,
+            Class<T> type,
+            String jpql,
+            List<Object> ids,
+            RootGraph<T> graph
+    ) {
+        List<T> results = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i += DefaultEntityRepository.BATCH_SIZE) {
+            var query = em.createQuery(jpql, type)
+                    .setParameter("ids", ids.subList(i, Math.min(i + DefaultEntityRepository.BATCH_SIZE, ids.size())));
+            if (graph != null) {
+                query.setHint(SpecHints.HINT_SPEC_LOAD_GRAPH, graph);
+            }
+            results.addAll(query.getResultList());
+        }
+        return results;
+    }
+
+    private static List<Object> identifiers(PersistenceUnitUtil util, Collection<?> entities) {
+        return entities.stream()
+                .map(util::getIdentifier)
+                .distinct()
+                .toList();
+    }
+
+    private static String idOf(EntityType<?> model) {
+        return model.getId(model.getIdType().getJavaType()).getName();
+    }
+
+    private static Class<?> targetOf(Attribute<?, ?> attribute) {
+        return attribute instanceof PluralAttribute<?, ?, ?> plural
+                ? plural.getElementType().getJavaType()
+                : attribute.getJavaType();
+    }
+
+    private static Object valueOf(Member member, Object entity) {
+        if (member instanceof java.lang.reflect.Field f) {
+            ReflectionUtils.makeAccessible(f);
+            return ReflectionUtils.getField(f, entity);
+        }
+        Method getter = (Method) member;
+        ReflectionUtils.makeAccessible(getter);
+        return ReflectionUtils.invokeMethod(getter, entity);
+    }
+}
@@ -0,0 +1,149 @@
+package org.rnott.example.persistence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Specification of the properties of a type, and of its nested types, that
+ * are of interest. For example, the properties to be returned by a search
+ * (sparse fieldsets).
+ */
+public final class Field {
+
+    private static final String GROUP = "__group";
+
+    private final String name;
+    private final List<Field> subfields = new ArrayList<>();
+
+    private Field(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Determine the field name.
+     *
+     * @return the field name, which is empty for the root of a specification
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Determine if subfields were specified for the field.
+     *
+     * @return <code>true</code> if subfields were specified, <code>false</code> otherwise
+     */
+    public boolean hasSubfields() {
+        return !subfields.isEmpty();
+    }
+
+    /**
+     * Determine the subfields specified for the field.
+     *
+     * @return the specified subfields, in the order specified
+     */
+    public List<Field> subfields() {
+        return Collections.unmodifiableList(subfields);
+    }
+
+    /**
+     * Find the subfield with the specified name.
+     *
+     * @param name the subfield name
+     * @return the subfield, or <code>null</code> if not specified
+     */
+    public Field subfield(String name) {
+        for (Field f : subfields) {
+            if (f.name.equals(name)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        if (!subfields.isEmpty()) {
+            sb.append('(');
+            subfields.forEach(f -> sb.append(f).append(' '));
+            sb.setCharAt(sb.length() - 1, ')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create a new instance that represents the specified fields.
+     * <p>
+     * Fields are property names separated by spaces. A field can specify
+     * subfields by enclosing those fields in parenthesis. For example:
+     * <ul>
+     *     <li><code>a b c</code> - properties a, b and c of an instance</li>
+     *     <li><code>a (b c)</code> - property a of an instance and properties
+     *     b and c of property a</li>
+     *     <li><code>a (b (c))</code> - property a of an instance, property b
+     *     of property a and property c of property b</li>
+     * </ul>
+     *
+     * @param specification the field specification
+     * @return the root of the specification, whose subfields are the fields specified
+     * @throws FieldParseException if the specification is malformed
+     */
+    public static Field newInstance(String specification) {
+        Deque<Field> fields = new ArrayDeque<>();
+        fields.push(new Field(""));
+
+        int start = 0;
+        int pos = 0;
+        Field f = null;
+        while (pos < specification.length()) {
+            char c = specification.charAt(pos);
+            if (Character.isLetter(c) || (Character.isDigit(c) && start != pos)) {
+                // digits are allowed, except as the first character
+                pos++;
+                continue;
+            }
+            if (pos > start) {
+                // end of a property name
+                f = new Field(specification.substring(start, pos));
+                fields.peek().subfields.add(f);
+            }
+            pos++;
+            start = pos;
+
+            if (c == '(') {
+                if (f != null) {
+                    fields.push(f);
+                    f = null;
+                } else {
+                    // a group without a name so the parenthesis balance
+                    fields.push(new Field(GROUP));
+                }
+            } else if (c == ')') {
+                if (fields.size() < 2) {
+                    throw new FieldParseException("Mismatched parenthesis at position " + pos);
+                }
+                Field group = fields.pop();
+                if (GROUP.equals(group.name)) {
+                    // (a b c) specifies the fields of the parent
+                    fields.peek().subfields.addAll(group.subfields);
+                }
+                f = null;
+            } else if (c != ' ') {
+                throw new FieldParseException("Unexpected character " + c + " at position " + pos);
+            }
+        }
+
+        // complete the final field if necessary
+        if (pos > start) {
+            fields.peek().subfields.add(new Field(specification.substring(start, pos)));
+        }
+        if (fields.size() != 1) {
+            throw new FieldParseException("Unexpected end of fields at position " + pos);
+        }
+        return fields.pop();
+    }
+}
@@ -0,0 +1,12 @@
+package org.rnott.example.persistence;
+
+import lombok.experimental.StandardException;
+
+/**
+ * Indicates a malformed field specification.
+ *
+ * @see Field#newInstance(String)
+ */
+@StandardException
+public class FieldParseException extends IllegalArgumentException {
+}
@@ -0,0 +1,294 @@
+package org.rnott.example.persistence;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Publishes the entities written by this node to the caches of every node, using
+ * Postgres <code>LISTEN/NOTIFY</code> as the transport.
+ * <p>
+ * An invalidation is published once the transaction writing the entity commits,
+ * or at once outside a transaction. It is delivered to the subscribers of this
+ * node before it is published, so a node reads its own writes, and is then sent
+ * to the other nodes as a notification on the channel. Each node listens to the
+ * channel using a dedicated connection, outside the connection pool.
+ * <p>
+ * Notifications sent while a node is not listening (for example while its
+ * connection is re-established) are lost, so once a node starts listening its
+ * subscribers are told to invalidate every entity, as for an invalidation
+ * without an identifier.
+ *
+ * @see <a href="https://www.postgresql.org/docs/current/sql-notify.html">NOTIFY</a>
+ */
+@Component
+public class InvalidationBus {
+
+    /**
+     * An entity that was written.
+     *
+     * @param type the entity type
+     * @param id the entity identifier, or <code>null</code> for every entity of the type
+     * @param version the entity version once written, or <code>null</code> if not known
+     */
+    public record Invalidation(String type, UUID id, Long version) {
+    }
+
+    // the payload of a notification is limited to 8000 bytes
+    static final int MAX_PER_NOTIFICATION = 100;
+
+    private static final Logger LOG = LoggerFactory.getLogger(InvalidationBus.class);
+    private static final long POLL_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 5000;
+
+    private final String node = UUID.randomUUID().toString();
+    private final Map<String, List<Consumer<Invalidation>>> subscribers = new ConcurrentHashMap<>();
+    private final JdbcTemplate jdbc;
+    private final DataSourceProperties database;
+    private final String channel;
+    private volatile boolean running;
+    private Thread listener;
+
+    /**
+     * Create the bus.
+     *
+     * @param jdbc the database to publish to, or <code>null</code> to deliver invalidations to this node only
+     * @param database the connection properties of the database to listen to, or <code>null</code> to not listen
+     * @param channel the notification channel
+     */
+    public InvalidationBus(
+            JdbcTemplate jdbc,
+            DataSourceProperties database,
+            @Value("${service.invalidation.channel:entity_invalidations}") String channel
+    ) {
+        if (!channel.matches("[a-z_][a-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid channel name: " + channel);
+        }
+        this.jdbc = jdbc;
+        this.database = database;
+        this.channel = channel;
+    }
+
+    /**
+     * Subscribe to the invalidations of an entity type, whether published by this
+     * node or by another node. Subscribers are called on the thread publishing or
+     * receiving the invalidation, so they must not block.
+     *
+     * @param type the entity type
+     * @param subscriber the subscriber
+     */
+    public void subscribe(Class<?> type, Consumer<Invalidation> subscriber) {
+        subscribers.computeIfAbsent(type.getName(), k -> new CopyOnWriteArrayList<>()).add(subscriber);
+    }
+
+    /**
+     * Publish an entity that is written by the current transaction, if any.
+     *
+     * @param type the entity type
+     * @param id the entity identifier
+     * @param version the entity version once written, or <code>null</code> if not known
+     */
+    public void publish(Class<?> type, UUID id, Long version) {
+        publish(List.of(new Invalidation(type.getName(), id, version)));
+    }
+
+    /**
+     * Publish entities that are written by the current transaction, if any.
+     *
+     * @param type the entity type
+     * @param ids the entity identifiers
+     */
+    public void publishAll(Class<?> type, Collection<UUID> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        publish(ids.stream()
+                .map(id -> new Invalidation(type.getName(), id, null))
+                .toList());
+    }
+
+    private void publish(List<Invalidation> invalidations) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    send(invalidations);
+                }
+            });
+        } else {
+            send(invalidations);
+        }
+    }
+
+    private void send(List<Invalidation> invalidations) {
+        invalidations.forEach(this::deliver);
+        if (jdbc == null) {
+            return;
+        }
+        try {
+            for (String payload : payloads(node, invalidations)) {
+                jdbc.query("select pg_notify(?, ?)", rs -> null, channel, payload);
+            }
+        } catch (RuntimeException e) {
+            // the other nodes observe the write once their cached entities expire
+            LOG.warn("Failed to publish {} invalidations", invalidations.size(), e);
+        }
+    }
+
+    private void deliver(Invalidation invalidation) {
+        for (Consumer<Invalidation> subscriber : subscribers.getOrDefault(invalidation.type(), List.of())) {
+            try {
+                subscriber.accept(invalidation);
+            } catch (RuntimeException e) {
+                LOG.error("Failed to deliver invalidation {}", invalidation, e);
+            }
+        }
+    }
+
+    /**
+     * Encode invalidations as notification payloads, each of the form
+     * <code>node type id:version,id:version,...</code> for the invalidations of a type.
+     */
+    static List<String> payloads(String node, List<Invalidation> invalidations) {
+        List<String> payloads = new ArrayList<>();
+        StringBuilder payload = new StringBuilder();
+        String type = null;
+        int count = 0;
+        for (Invalidation invalidation : invalidations) {
+            if (!invalidation.type().equals(type) || count == MAX_PER_NOTIFICATION) {
+                if (payload.length() > 0) {
+                    payloads.add(payload.toString());
+                }
+                type = invalidation.type();
+                payload.setLength(0);
+                payload.append(node).append(' ').append(type).append(' ');
+                count = 0;
+            } else {
+                payload.append(',');
+            }
+            payload.append(invalidation.id() == null ? "*" : invalidation.id())
+                    .append(':')
+                    .append(invalidation.version() == null ? "" : invalidation.version());
+            count++;
+        }
+        if (payload.length() > 0) {
+            payloads.add(payload.toString());
+        }
+        return payloads;
+    }
+
+    /**
+     * Decode a notification payload, ignoring those published by the specified node.
+     *
+     * @return the invalidations, or an empty list if published by the node or malformed
+     */
+    static List<Invalidation> parse(String node, String payload) {
+        String[] parts = payload.split(" ", 3);
+        if (parts.length != 3 || node.equals(parts[0])) {
+            return List.of();
+        }
+        List<Invalidation> invalidations = new ArrayList<>();
+        try {
+            for (String change : parts[2].split(",")) {
+                int colon = change.indexOf(':');
+                String id = change.substring(0, colon);
+                String version = change.substring(colon + 1);
+                invalidations.add(new Invalidation(
+                        parts[1],
+                        "*".equals(id) ? null : UUID.fromString(id),
+                        version.isEmpty() ? null : Long.valueOf(version)
+                ));
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Ignoring malformed invalidation: {}", payload);
+            return List.of();
+        }
+        return invalidations;
+    }
+
+    /**
+     * Start listening to the invalidations published by the other nodes.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (database == null || listener != null) {
+            return;
+        }
+        running = true;
+        listener = new Thread(this::listen, "invalidation-bus");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    /**
+     * Stop listening.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (listener == null) {
+            return;
+        }
+        running = false;
+        listener.interrupt();
+        try {
+            listener.join(POLL_MILLIS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        listener = null;
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(
+                    database.determineUrl(), database.determineUsername(), database.determinePassword())) {
+                PGConnection pg = connection.unwrap(PGConnection.class);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                // notifications may have been missed before listening
+                subscribers.keySet().forEach(type -> deliver(new Invalidation(type, null, null)));
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications((int) POLL_MILLIS);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        parse(node, notification.getParameter()).forEach(this::deliver);
+                    }
+                }
+            } catch (SQLException e) {
+                if (!running) {
+                    return;
+                }
+                LOG.warn("Lost the connection listening to invalidations, retrying in {} ms", RETRY_MILLIS, e);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.rnott.example.persistence;
+
+import java.util.List;
+import org.hibernate.boot.model.FunctionContributions;
+import org.hibernate.boot.model.FunctionContributor;
+import org.hibernate.query.ReturnableType;
+import org.hibernate.query.sqm.function.AbstractSqmSelfRenderingFunctionDescriptor;
+import org.hibernate.query.sqm.function.SqmFunctionRegistry;
+import org.hibernate.query.sqm.produce.function.StandardArgumentsValidators;
+import org.hibernate.query.sqm.produce.function.StandardFunctionReturnTypeResolvers;
+import org.hibernate.sql.ast.SqlAstTranslator;
+import org.hibernate.sql.ast.spi.SqlAppender;
+import org.hibernate.sql.ast.tree.SqlAstNode;
+import org.hibernate.type.BasicType;
+import org.hibernate.type.StandardBasicTypes;
+
+/**
+ * Registers the query functions used to search tags stored in a <code>jsonb</code>
+ * column. The functions render as the Postgres operators so that a GIN index on
+ * the column can be used. Registered using the Java service loader.
+ * <ul>
+ *     <li><code>jsonb_has_key(tags, key)</code>: <code>tags ? key</code></li>
+ *     <li><code>jsonb_contains(tags, json)</code>: <code>tags @&gt; json</code></li>
+ *     <li><code>jsonb_text(tags, key)</code>: <code>tags -&gt;&gt; key</code></li>
+ * </ul>
+ *
+ * @see AbstractJsonTagEntity
+ */
+public class JsonTagFunctionContributor implements FunctionContributor {
+
+    @Override
+    public void contributeFunctions(FunctionContributions contributions) {
+        BasicType<Boolean> bool = contributions.getTypeConfiguration()
+                .getBasicTypeRegistry()
+                .resolve(StandardBasicTypes.BOOLEAN);
+        BasicType<String> string = contributions.getTypeConfiguration()
+                .getBasicTypeRegistry()
+                .resolve(StandardBasicTypes.STRING);
+        SqmFunctionRegistry registry = contributions.getFunctionRegistry();
+        registry.register("jsonb_has_key", new HasKeyFunction(bool));
+        registry.registerPattern("jsonb_contains", "(?1 @> cast(?2 as jsonb))", bool);
+        registry.registerPattern("jsonb_text", "(?1 ->> ?2)", string);
+    }
+
+    /**
+     * Renders the key existence operator. Patterns cannot express it as
+     * '?' denotes an argument, and JDBC reserves '?' for parameters, so the
+     * operator is rendered escaped for the Postgres driver.
+     */
+    private static class HasKeyFunction extends AbstractSqmSelfRenderingFunctionDescriptor {
+
+        HasKeyFunction(BasicType<Boolean> bool) {
+            super(
+                    "jsonb_has_key",
+                    StandardArgumentsValidators.exactly(2),
+                    StandardFunctionReturnTypeResolvers.invariant(bool),
+                    null
+            );
+        }
+
+        @Override
+        public void render(
+                SqlAppender sql,
+                List<? extends SqlAstNode> arguments,
+                ReturnableType<?> returnType,
+                SqlAstTranslator<?> walker
+        ) {
+            sql.appendSql('(');
+            arguments.get(0).accept(walker);
+            sql.appendSql(" ?? ");
+            arguments.get(1).accept(walker);
+            sql.appendSql(')');
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.rnott.example.persistence;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Opaque token identifying the position of the last entity seen when paging
+ * through search results using keyset (seek) pagination. The token captures
+ * the values of the sort keys of that entity, the last of which is always the
+ * entity identifier used as a tie-breaker.
+ * <p>
+ * Clients must treat the encoded form as opaque: it is only meaningful when
+ * presented with the same sort criteria that produced it.
+ *
+ * @see SearchCriteria.Builder#after(String)
+ */
+public final class KeysetCursor {
+
+    private static final String SEPARATOR = ",";
+    private static final String NULL = "~";
+
+    private final List<String> values;
+
+    private KeysetCursor(List<String> values) {
+        this.values = values;
+    }
+
+    /**
+     * Create a cursor from the sort key values of an entity.
+     *
+     * @param values the sort key values, in sort order
+     * @return the cursor
+     */
+    static KeysetCursor of(List<?> values) {
+        return new KeysetCursor(
+                values.stream()
+                        .map(v -> v == null ? null : v.toString())
+                        .toList()
+        );
+    }
+
+    /**
+     * Decode a cursor from its opaque token representation.
+     *
+     * @param token the encoded token
+     * @return the cursor
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static KeysetCursor decode(String token) {
+        String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        return new KeysetCursor(
+                Arrays.stream(decoded.split(SEPARATOR, -1))
+                        .map(v -> NULL.equals(v) ? null : URLDecoder.decode(v, StandardCharsets.UTF_8))
+                        .toList()
+        );
+    }
+
+    /**
+     * Encode the cursor as an opaque, URL safe token.
+     *
+     * @return the encoded token
+     */
+    public String encode() {
+        String raw = values.stream()
+                .map(v -> v == null ? NULL : URLEncoder.encode(v, StandardCharsets.UTF_8))
+                .collect(Collectors.joining(SEPARATOR));
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Determine the number of sort key values captured by the cursor.
+     *
+     * @return the number of values
+     */
+    int size() {
+        return values.size();
+    }
+
+    /**
+     * Get a sort key value converted to the type of the corresponding property.
+     *
+     * @param index the position of the sort key
+     * @param type the property type
+     * @return the typed value
+     * @throws IllegalArgumentException if the value cannot be converted
+     */
+    Object value(int index, Class<?> type) {
+        String v = values.get(index);
+        return v == null ? null : convert(v, type);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object convert(String value, Class<?> type) {
+        if (type == String.class) {
+            return value;
+        } else if (type == UUID.class) {
+            return UUID.fromString(value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            return Boolean.valueOf(value);
+        } else if (type == Integer.class || type == int.class) {
+            return Integer.valueOf(value);
+        } else if (type == Long.class || type == long.class) {
+            return Long.valueOf(value);
+        } else if (type == Short.class || type == short.class) {
+            return Short.valueOf(value);
+        } else if (type == Double.class || type == double.class) {
+            return Double.valueOf(value);
+        } else if (type == Float.class || type == float.class) {
+            return Float.valueOf(value);
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(value);
+        } else if (type == BigInteger.class) {
+            return new BigInteger(value);
+        } else if (type == OffsetDateTime.class) {
+            return OffsetDateTime.parse(value);
+        } else if (type == ZonedDateTime.class) {
+            return ZonedDateTime.parse(value);
+        } else if (type == Instant.class) {
+            return Instant.parse(value);
+        } else if (type == LocalDate.class) {
+            return LocalDate.parse(value);
+        } else if (type == LocalDateTime.class) {
+            return LocalDateTime.parse(value);
+        } else if (type == LocalTime.class) {
+            return LocalTime.parse(value);
+        } else if (type.isEnum()) {
+            return Enum.valueOf((Class<Enum>) type, value);
+        }
+        throw new IllegalArgumentException("Unsupported sort key type: " + type.getName());
+    }
+}
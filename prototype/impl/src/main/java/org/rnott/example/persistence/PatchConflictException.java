@@ -0,0 +1,14 @@
+package org.rnott.example.persistence;
+
+import lombok.experimental.StandardException;
+
+/**
+ * Indicates a patch that does not apply to the current state of an entity,
+ * for example because a <code>test</code> operation failed or a tag to be
+ * replaced does not exist.
+ *
+ * @see AbstractEntityRepository#patch(java.util.UUID, Long, java.util.List)
+ */
+@StandardException
+public class PatchConflictException extends RuntimeException {
+}
@@ -0,0 +1,743 @@
+package org.rnott.example.persistence;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.hibernate.metamodel.mapping.BasicValuedModelPart;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.query.BindableType;
+import org.rnott.example.api.PatchDocument;
+import org.rnott.example.api.PatchDocument.OpEnum;
+
+/**
+ * A JSON Patch (RFC 6902) compiled to a single statement that modifies an
+ * entity in place, instead of loading the entity and its tags, applying the
+ * patch and merging the result.
+ * <p>
+ * The operations are folded, in order, into the final value of each property
+ * and tag that is modified. Properties become assignments of the entity update
+ * and tags become rows inserted, updated or deleted (or members of the JSON
+ * column) alongside it. As for other statements, the update sees the entity as
+ * it was before the patch, so values copied or tested are either those stored,
+ * referenced by the statement, or those given by an earlier operation, which
+ * are known before the statement is executed.
+ * <p>
+ * The <code>test</code> operations, and the existence of tags to be replaced or
+ * removed, are evaluated by the statement when they concern stored values, so
+ * that the entity is not modified unless they are satisfied. Those concerning
+ * values given by the patch are evaluated when the plan is bound.
+ * <p>
+ * A plan depends only on the shape of a patch: its operations and paths, with
+ * tag keys replaced by their position in the patch. Plans can therefore be
+ * reused for patches that differ only in their values and tag keys.
+ */
+final class PatchPlan {
+
+    /**
+     * Properties maintained by the repository rather than by clients.
+     */
+    static final Set<String> MANAGED = Set.of(
+            "id", "version", "deleted", "created", "createdBy", "modified", "modifiedBy", "tags"
+    );
+
+    private static final String TAGS = "tags";
+
+    private static final ObjectMapper JSON = JsonMapper.builder()
+            .findAndAddModules()
+            .build();
+
+    private final String statement;
+    private final String versionedStatement;
+    private final List<Predicate<Request>> checks;
+    private final List<Binder> binders;
+
+    private PatchPlan(
+            String statement,
+            String versionedStatement,
+            List<Predicate<Request>> checks,
+            List<Binder> binders
+    ) {
+        this.statement = statement;
+        this.versionedStatement = versionedStatement;
+        this.checks = checks;
+        this.binders = binders;
+    }
+
+    /**
+     * Determine the statement applying the patch. The statement has parameters
+     * for the entity identifier (<code>id</code>) and audit properties
+     * (<code>modified</code>, <code>modifiedBy</code>) and, if versioned, the
+     * expected entity version (<code>version</code>), in addition to those of
+     * the plan.
+     *
+     * @param versioned <code>true</code> if the entity version is checked
+     * @return the statement, which updates the entity if the patch applies and
+     * returns the version written
+     * @see DefaultEntityRepository.TagStatements
+     */
+    String statement(boolean versioned) {
+        return versioned ? versionedStatement : statement;
+    }
+
+    /**
+     * Bind the values of a patch to the plan.
+     *
+     * @param request the patch, which must have the shape of the plan
+     * @return the parameters of the statement, unless the patch cannot apply
+     * @throws IllegalArgumentException if a value is not valid for its path
+     */
+    Binding bind(Request request) {
+        for (Predicate<Request> check : checks) {
+            if (!check.test(request)) {
+                return new Binding(List.of(), false);
+            }
+        }
+        List<Parameter> parameters = new ArrayList<>(binders.size());
+        for (Binder binder : binders) {
+            parameters.add(new Parameter(binder.name(), binder.value().apply(request), binder.binding()));
+        }
+        return new Binding(parameters, true);
+    }
+
+    /**
+     * Compile a plan for patches of the same shape as the one specified.
+     *
+     * @param model the entity model
+     * @param request the patch
+     * @return the plan
+     * @throws IllegalArgumentException if a path cannot be patched or an operation is not supported
+     */
+    static PatchPlan compile(Model model, Request request) {
+        Compiler compiler = new Compiler(model);
+        for (int i = 0; i < request.operations().size(); i++) {
+            compiler.apply(request.operations().get(i), i);
+        }
+        return compiler.plan();
+    }
+
+    /**
+     * The column of a property that can be patched.
+     *
+     * @param name the column name
+     * @param type the property type
+     * @param nullable <code>true</code> if the property can be removed
+     * @param binding the type used to bind values of the property, if known
+     */
+    record Column(String name, Class<?> type, boolean nullable, BindableType<?> binding) {
+    }
+
+    /**
+     * The properties that can be patched, and the tag storage, of an entity.
+     *
+     * @param columns the columns of the properties that can be patched, by property name
+     * @param statements the tag statements of the entity
+     */
+    record Model(Map<String, Column> columns, DefaultEntityRepository.TagStatements statements) {
+
+        static Model of(AbstractEntityPersister persister, DefaultEntityRepository.TagStatements statements) {
+            Map<String, Column> columns = new HashMap<>();
+            persister.forEachAttributeMapping(attribute -> {
+                if (!MANAGED.contains(attribute.getAttributeName())
+                        && attribute instanceof BasicValuedModelPart basic) {
+                    columns.put(attribute.getAttributeName(), new Column(
+                            basic.getSelectionExpression(),
+                            attribute.getJavaType().getJavaTypeClass(),
+                            basic.isNullable(),
+                            basic.getJdbcMapping() instanceof BindableType<?> binding ? binding : null
+                    ));
+                }
+            });
+            return new Model(Collections.unmodifiableMap(columns), statements);
+        }
+    }
+
+    /**
+     * The target of an operation: a property, the tags or a single tag.
+     *
+     * @param property the property name
+     * @param key the position of the tag key in the patch, or <code>-1</code> if not a tag
+     */
+    record Target(String property, int key) {
+
+        boolean isTag() {
+            return key >= 0;
+        }
+
+        boolean isTags() {
+            return key < 0 && TAGS.equals(property);
+        }
+
+        boolean isProperty() {
+            return key < 0 && !TAGS.equals(property);
+        }
+
+        @Override
+        public String toString() {
+            return "/" + property + (key < 0 ? "" : "/#" + key);
+        }
+    }
+
+    /**
+     * A patch operation.
+     *
+     * @param op the operation
+     * @param path the target
+     * @param from the source of a copy or move, otherwise <code>null</code>
+     * @param value the value of an add, replace or test, otherwise <code>null</code>
+     */
+    record Operation(OpEnum op, Target path, Target from, Object value) {
+
+        String shape() {
+            return op + " " + path + (from == null ? "" : " " + from) + (value == null ? " null" : "");
+        }
+    }
+
+    /**
+     * A patch, parsed from the documents of a request.
+     *
+     * @param operations the operations, in order
+     * @param keys the tag keys, in the order they first appear
+     */
+    record Request(List<Operation> operations, List<String> keys) {
+
+        /**
+         * Determine the shape of the patch, which identifies its plan.
+         *
+         * @return the shape of each operation, in order
+         */
+        List<String> shape() {
+            return operations.stream()
+                    .map(Operation::shape)
+                    .toList();
+        }
+
+        /**
+         * Parse a patch.
+         *
+         * @param documents the patch operations
+         * @return the patch
+         * @throws IllegalArgumentException if an operation is malformed
+         */
+        static Request of(List<PatchDocument> documents) {
+            List<String> keys = new ArrayList<>();
+            List<Operation> operations = new ArrayList<>(documents.size());
+            for (PatchDocument document : documents) {
+                if (document.getOp() == null || document.getPath() == null) {
+                    throw new IllegalArgumentException("Patch operations require an op and a path");
+                }
+                Target path = targetOf(document.getPath(), keys);
+                Target from = null;
+                if (document.getOp() == OpEnum.COPY || document.getOp() == OpEnum.MOVE) {
+                    if (document.getFrom() == null) {
+                        throw new IllegalArgumentException("Patch operation requires a from path: " + document.getOp());
+                    }
+                    from = targetOf(document.getFrom(), keys);
+                }
+                operations.add(new Operation(document.getOp(), path, from, document.getValue()));
+            }
+            return new Request(List.copyOf(operations), List.copyOf(keys));
+        }
+
+        private static Target targetOf(String pointer, List<String> keys) {
+            if (!pointer.startsWith("/")) {
+                throw new IllegalArgumentException("Invalid JSON pointer: " + pointer);
+            }
+            String[] segments = pointer.substring(1).split("/", -1);
+            String property = unescape(segments[0]);
+            if (segments.length == 1) {
+                return new Target(property, -1);
+            }
+            if (segments.length == 2 && TAGS.equals(property)) {
+                String key = unescape(segments[1]);
+                int index = keys.indexOf(key);
+                if (index < 0) {
+                    index = keys.size();
+                    keys.add(key);
+                }
+                return new Target(property, index);
+            }
+            throw new IllegalArgumentException("Path cannot be patched: " + pointer);
+        }
+
+        private static String unescape(String segment) {
+            return segment.replace("~1", "/").replace("~0", "~");
+        }
+    }
+
+    /**
+     * A statement parameter.
+     *
+     * @param name the parameter name
+     * @param value the parameter value
+     * @param binding the type used to bind the value, or <code>null</code> if inferred
+     */
+    record Parameter(String name, Object value, BindableType<?> binding) {
+    }
+
+    /**
+     * The result of binding a patch to a plan.
+     *
+     * @param parameters the statement parameters
+     * @param applicable <code>false</code> if the patch is known not to apply, without
+     *                   executing the statement
+     */
+    record Binding(List<Parameter> parameters, boolean applicable) {
+    }
+
+    private record Binder(String name, Function<Request, Object> value, BindableType<?> binding) {
+    }
+
+    /*
+    the value of a target once an operation is applied
+     */
+
+    private sealed interface Value permits Stored, Given, Removed {
+    }
+
+    /**
+     * The value of a target as stored, before the patch.
+     */
+    private record Stored(Target target) implements Value {
+    }
+
+    /**
+     * A value given by the patch, known once bound. A tag that does not
+     * exist has a <code>null</code> value.
+     */
+    private record Given(Function<Request, Object> value) implements Value {
+    }
+
+    /**
+     * A property set to <code>null</code>, a tag that was removed or tags that were cleared.
+     */
+    private enum Removed implements Value {
+        INSTANCE
+    }
+
+    private static final class Compiler {
+
+        private final Model model;
+        private final DefaultEntityRepository.TagStatements tagging;
+        private final Map<String, Value> properties = new LinkedHashMap<>();
+        private final Map<Integer, Value> tags = new LinkedHashMap<>();
+        // the value of all the tags once replaced, otherwise null
+        private Value replacement;
+        private final List<String> conditions = new ArrayList<>();
+        private final List<Predicate<Request>> checks = new ArrayList<>();
+        private final List<Binder> binders = new ArrayList<>();
+
+        Compiler(Model model) {
+            this.model = model;
+            this.tagging = model.statements();
+        }
+
+        void apply(Operation operation, int index) {
+            Target path = operation.path();
+            switch (operation.op()) {
+                case ADD -> assign(path, given(operation, index));
+                case REPLACE -> {
+                    requireExists(path);
+                    assign(path, given(operation, index));
+                }
+                case REMOVE -> {
+                    requireExists(path);
+                    assign(path, Removed.INSTANCE);
+                }
+                case COPY -> {
+                    requireExists(operation.from());
+                    assign(path, copy(operation.from(), path));
+                }
+                case MOVE -> {
+                    requireExists(operation.from());
+                    if (!operation.from().equals(path)) {
+                        Value value = copy(operation.from(), path);
+                        assign(operation.from(), Removed.INSTANCE);
+                        assign(path, value);
+                    }
+                }
+                case TEST -> test(path, operation, index);
+            }
+        }
+
+        PatchPlan plan() {
+            List<String> sets = new ArrayList<>();
+            properties.forEach((property, value) -> {
+                if (!value.equals(new Stored(new Target(property, -1)))) {
+                    Column column = model.columns().get(property);
+                    sets.add(column.name() + " = " + expression(value, column, true));
+                }
+            });
+            List<String> operations = new ArrayList<>();
+            if (tagging.json()) {
+                String expression = tagsExpression();
+                if (expression != null) {
+                    sets.add(tagging.tags() + " = " + expression);
+                }
+            } else {
+                tagOperations(operations);
+            }
+
+            String update = String.format(
+                    tagging.update(),
+                    sets.stream().map(set -> ", " + set).collect(Collectors.joining())
+            );
+            String where = conditions.stream().map(condition -> " and " + condition).collect(Collectors.joining());
+            return new PatchPlan(
+                    statementOf(update + where, operations),
+                    statementOf(update + tagging.versionCheck() + where, operations),
+                    List.copyOf(checks),
+                    List.copyOf(binders)
+            );
+        }
+
+        private String statementOf(String update, List<String> operations) {
+            if (tagging.json()) {
+                return tagging.returning(update);
+            }
+            return tagging.withEntity(
+                    update,
+                    operations.stream().map(operation -> ", " + operation).collect(Collectors.joining())
+            );
+        }
+
+        /**
+         * The expression for the JSON column holding the tags, or <code>null</code> if unchanged.
+         */
+        private String tagsExpression() {
+            if (replacement != null) {
+                return "cast(" + parameter(this::replacedTags, null) + " as jsonb)";
+            }
+            if (tags.isEmpty()) {
+                return null;
+            }
+            StringBuilder expression = new StringBuilder("coalesce(" + tagging.tags() + ", jsonb_build_object())");
+            tags.forEach((key, value) -> {
+                if (value == Removed.INSTANCE) {
+                    expression.append(" - ").append(key(key));
+                } else if (!value.equals(new Stored(new Target(TAGS, key)))) {
+                    expression.append(" || jsonb_build_object(")
+                            .append(key(key)).append(", ").append(expression(value, null, true))
+                            .append(")");
+                }
+            });
+            return expression.toString();
+        }
+
+        /**
+         * The operations on the tag table, acting on the tags of the updated entity.
+         */
+        private void tagOperations(List<String> operations) {
+            if (replacement != null) {
+                operations.add(tagging.replacement(parameter(this::replacedTags, null)));
+                return;
+            }
+            List<String> removed = new ArrayList<>();
+            List<String> written = new ArrayList<>();
+            tags.forEach((key, value) -> {
+                if (value == Removed.INSTANCE) {
+                    removed.add(key(key));
+                } else if (!value.equals(new Stored(new Target(TAGS, key)))) {
+                    written.add("(" + key(key) + ", " + expression(value, null, false) + ")");
+                }
+            });
+            // deleted and written keys differ, as the statements see the same snapshot
+            if (!removed.isEmpty()) {
+                operations.add("removed as (" + tagging.delete(
+                        " and t." + tagging.key() + " in (" + String.join(", ", removed) + ")"
+                ) + ")");
+            }
+            if (!written.isEmpty()) {
+                operations.add("written as (" + tagging.upsert(
+                        "select entity.id, x.key, x.value from entity, (values "
+                                + String.join(", ", written) + ") x (key, value)"
+                ) + ")");
+            }
+        }
+
+        /*
+        folding operations
+         */
+
+        private Value valueOf(Target target) {
+            if (target.isProperty()) {
+                columnOf(target);
+                return properties.getOrDefault(target.property(), new Stored(target));
+            }
+            if (target.isTag()) {
+                Value value = tags.get(target.key());
+                if (value != null) {
+                    return value;
+                }
+                if (replacement == null) {
+                    return new Stored(target);
+                }
+                Value base = replacement;
+                return new Given(request -> tagsOf(base, request).get(request.keys().get(target.key())));
+            }
+            if (replacement == null) {
+                if (!tags.isEmpty()) {
+                    throw new IllegalArgumentException("Tags cannot be copied or tested once modified by the patch");
+                }
+                return new Stored(target);
+            }
+            Value base = replacement;
+            Map<Integer, Value> modified = new LinkedHashMap<>(tags);
+            return new Given(request -> merge(base, modified, request));
+        }
+
+        private Given given(Operation operation, int index) {
+            Target path = operation.path();
+            if (path.isProperty()) {
+                Column column = columnOf(path);
+                if (operation.value() == null && !column.nullable()) {
+                    throw new IllegalArgumentException("Property cannot be null: " + path.property());
+                }
+                return new Given(request -> convert(request.operations().get(index).value(), column.type()));
+            }
+            if (path.isTag()) {
+                return new Given(request -> tagValueOf(request.operations().get(index).value()));
+            }
+            return new Given(request -> tagMapOf(request.operations().get(index).value()));
+        }
+
+        private Value copy(Target from, Target path) {
+            if (from.isTags() || path.isTags()) {
+                throw new IllegalArgumentException("Tags can only be copied or moved one at a time");
+            }
+            Class<?> source = from.isProperty() ? columnOf(from).type() : String.class;
+            Class<?> target = path.isProperty() ? columnOf(path).type() : String.class;
+            if (!source.equals(target)) {
+                throw new IllegalArgumentException("Cannot copy " + from + " to " + path);
+            }
+            return valueOf(from);
+        }
+
+        private void assign(Target target, Value value) {
+            if (target.isProperty()) {
+                if (value == Removed.INSTANCE && !columnOf(target).nullable()) {
+                    throw new IllegalArgumentException("Property cannot be removed: " + target.property());
+                }
+                properties.put(target.property(), value);
+            } else if (target.isTag()) {
+                if (replacement != null && value instanceof Stored) {
+                    throw new IllegalArgumentException("Values cannot be copied to tags replaced by the patch");
+                }
+                tags.put(target.key(), value);
+            } else {
+                replacement = value;
+                tags.clear();
+            }
+        }
+
+        /**
+         * Require that a tag exists. Properties, and the tags as a whole, always exist.
+         */
+        private void requireExists(Target target) {
+            if (!target.isTag()) {
+                return;
+            }
+            Value value = valueOf(target);
+            if (value instanceof Stored stored) {
+                if (stored.target().isTag()) {
+                    conditions.add(exists(stored.target()));
+                }
+            } else if (value instanceof Given given) {
+                checks.add(request -> given.value().apply(request) != null);
+            } else {
+                checks.add(request -> false);
+            }
+        }
+
+        private void test(Target path, Operation operation, int index) {
+            Value value = valueOf(path);
+            Function<Request, Object> expected = path.isProperty()
+                    ? request -> convert(request.operations().get(index).value(), columnOf(path).type())
+                    : request -> request.operations().get(index).value();
+            if (value instanceof Stored stored) {
+                Target target = stored.target();
+                if (operation.value() == null) {
+                    if (target.isProperty()) {
+                        conditions.add(expression(stored, true) + " is null");
+                    } else {
+                        // neither a tag nor the tags are null
+                        checks.add(request -> false);
+                    }
+                } else if (target.isProperty()) {
+                    conditions.add(expression(stored, true) + " = "
+                            + parameter(expected, columnOf(target).binding()));
+                } else if (target.isTag()) {
+                    checks.add(request -> expected.apply(request) instanceof String);
+                    conditions.add(expression(stored, true) + " = cast(" + parameter(expected, null) + " as text)");
+                } else {
+                    checks.add(request -> isTags(expected.apply(request)));
+                    conditions.add(storedTags(true) + " = cast("
+                            + parameter(request -> json(tagMapOf(expected.apply(request))), null) + " as jsonb)");
+                }
+            } else {
+                checks.add(request -> {
+                    Object current = current(path, value, request);
+                    return (current != null || path.isProperty()) && Objects.equals(current, expected.apply(request));
+                });
+            }
+        }
+
+        /**
+         * The value of a target, given by the patch.
+         */
+        private Object current(Target target, Value value, Request request) {
+            if (value instanceof Given given) {
+                return given.value().apply(request);
+            }
+            return target.isTags() ? Map.of() : null;
+        }
+
+        /*
+        SQL
+         */
+
+        /**
+         * The expression of a value.
+         *
+         * @param value the value
+         * @param column the column assigned the value, or <code>null</code> for a tag
+         * @param row <code>true</code> if evaluated by the entity update, where the
+         *            entity columns are those stored
+         */
+        private String expression(Value value, Column column, boolean row) {
+            if (value instanceof Stored stored) {
+                return expression(stored, row);
+            }
+            if (value instanceof Given given) {
+                return column == null
+                        ? "cast(" + parameter(given.value(), null) + " as text)"
+                        : parameter(given.value(), column.binding());
+            }
+            return "null";
+        }
+
+        private String expression(Stored stored, boolean row) {
+            Target target = stored.target();
+            if (target.isProperty()) {
+                String column = columnOf(target).name();
+                return row
+                        ? column
+                        : "(select " + column + " from " + tagging.table() + " where " + tagging.id() + " = :id)";
+            }
+            if (target.isTag()) {
+                if (tagging.json()) {
+                    return "(" + tagging.tags() + " ->> " + key(target.key()) + ")";
+                }
+                return "(select t." + tagging.value() + " from " + tagging.tagTable() + " t"
+                        + " where t." + tagging.owner() + " = :id and t." + tagging.key() + " = " + key(target.key()) + ")";
+            }
+            return storedTags(row);
+        }
+
+        /**
+         * The expression of the stored tags as a JSON object.
+         */
+        private String storedTags(boolean row) {
+            if (tagging.json()) {
+                return "coalesce(" + tagging.tags() + ", jsonb_build_object())";
+            }
+            return "(select coalesce(jsonb_object_agg(t." + tagging.key() + ", t." + tagging.value() + "),"
+                    + " jsonb_build_object()) from " + tagging.tagTable() + " t where t." + tagging.owner() + " = :id)";
+        }
+
+        private String exists(Target tag) {
+            if (tagging.json()) {
+                return "jsonb_exists(" + tagging.tags() + ", " + key(tag.key()) + ")";
+            }
+            return "exists (select 1 from " + tagging.tagTable() + " t"
+                    + " where t." + tagging.owner() + " = :id and t." + tagging.key() + " = " + key(tag.key()) + ")";
+        }
+
+        private String key(int key) {
+            return "cast(" + parameter(request -> request.keys().get(key), null) + " as text)";
+        }
+
+        private String parameter(Function<Request, Object> value, BindableType<?> binding) {
+            String name = "p" + binders.size();
+            binders.add(new Binder(name, value, binding));
+            return ":" + name;
+        }
+
+        private Column columnOf(Target target) {
+            Column column = model.columns().get(target.property());
+            if (column == null) {
+                throw new IllegalArgumentException("Property cannot be patched: " + target.property());
+            }
+            return column;
+        }
+
+        /*
+        values
+         */
+
+        private Object replacedTags(Request request) {
+            return json(merge(replacement, tags, request));
+        }
+
+        private static Map<String, String> merge(Value base, Map<Integer, Value> modified, Request request) {
+            Map<String, String> merged = new LinkedHashMap<>(tagsOf(base, request));
+            modified.forEach((key, value) -> {
+                Object current = value instanceof Given given ? given.value().apply(request) : null;
+                if (current == null) {
+                    merged.remove(request.keys().get(key));
+                } else {
+                    merged.put(request.keys().get(key), (String) current);
+                }
+            });
+            return merged;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, String> tagsOf(Value value, Request request) {
+            return value instanceof Given given ? (Map<String, String>) given.value().apply(request) : Map.of();
+        }
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        return value == null ? null : JSON.convertValue(value, type);
+    }
+
+    private static String tagValueOf(Object value) {
+        if (value instanceof String s) {
+            return s;
+        }
+        throw new IllegalArgumentException("Tag values must be strings");
+    }
+
+    private static boolean isTags(Object value) {
+        return value instanceof Map<?, ?> map
+                && map.keySet().stream().allMatch(String.class::isInstance)
+                && map.values().stream().allMatch(String.class::isInstance);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> tagMapOf(Object value) {
+        if (!isTags(value)) {
+            throw new IllegalArgumentException("Tags must be an object with string values");
+        }
+        return new LinkedHashMap<>((Map<String, String>) value);
+    }
+
+    private static String json(Map<String, String> tags) {
+        try {
+            return JSON.writeValueAsString(tags);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Invalid tags", e);
+        }
+    }
+}
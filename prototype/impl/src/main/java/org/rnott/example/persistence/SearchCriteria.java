@@ -1,33 +1,73 @@
 package org.rnott.example.persistence;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.TypedQuery;
-import jakarta.persistence.criteria.CriteriaBuilder;
-import jakarta.persistence.criteria.CriteriaBuilder.In;
-import jakarta.persistence.criteria.CriteriaQuery;
-import jakarta.persistence.criteria.MapJoin;
-import jakarta.persistence.criteria.Order;
-import jakarta.persistence.criteria.Predicate;
-import jakarta.persistence.criteria.Root;
 import jakarta.persistence.metamodel.EntityType;
 import jakarta.persistence.metamodel.Metamodel;
+import jakarta.persistence.metamodel.PluralAttribute;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import lombok.AccessLevel;
 import lombok.Getter;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.graph.RootGraph;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.jpa.SpecHints;
+import org.hibernate.query.Query;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.util.ReflectionUtils;
 
 /**
  * Configure criteria (filters, sorting, etc) to use when searching
  * an entity collection.
  * <p>
- * Note: two queries are required to support searching:
+ * Note: more than one query is required to support searching:
  * <ol>
- *     <lli>a query to fetch a single page of results</lli>
- *     <lli>a query to count the full set of results irrespective of paging</lli>
+ *     <li>a query to fetch a single page of results</li>
+ *     <li>a query to count the full set of results irrespective of paging,
+ *     as determined by the {@link CountStrategy}</li>
  * </ol>
- * In older versions of Hibernate, there were ways to share the predicates
- * between the two queries (such as using a selection alias) but these
- * mechanisms no longer work. The result is that both queries need to be
- * maintained in parallel.
+ * Each restriction is recorded once as a JPQL fragment, with its values
+ * bound as parameters, and shared by every query that requires it. Only a
+ * handful of distinct query shapes exist for a service, so the queries are
+ * rendered once per {@link Shape} and the rendered text is cached. Because
+ * the text is stable, Hibernate also reuses its interpretation of the query
+ * from the query plan cache and only the parameters are bound per search.
+ * <p>
+ * Results can be paged either by offset (the default) or by keyset. Keyset
+ * (seek) pagination resumes after the last entity seen, identified by an
+ * opaque {@link KeysetCursor}, so the cost of fetching a page does not grow
+ * with its depth. Nulls sort last in ascending order and first in descending
+ * order, so nullable sort properties can be used for keyset pagination as well.
+ * <p>
+ * The results can be limited to selected properties (a projection), in
+ * which case only the columns of those properties are queried. The results
+ * are then unmanaged instances of the entity type in which only the selected
+ * properties, the identifier and the sort properties are populated.
+ * <p>
+ * Associations of the results can be expanded (loaded along with the results)
+ * without a query per result, see {@link Expansions}.
  *
  * @param <T> the entity type
  */
@@ -36,249 +76,797 @@ public class SearchCriteria<T extends AbstractEntity> {
 
     public static final String WILDCARD = "%";
 
+    /**
+     * Default upper limit when counting using {@link CountStrategy#BOUNDED}.
+     */
+    public static final long DEFAULT_COUNT_BOUND = 10_000;
+
+    /**
+     * Property used as the final sort key to guarantee a deterministic order.
+     */
+    static final String TIE_BREAKER = "id";
+
+    /**
+     * Upper limit on the number of cached query shapes. Shapes are determined
+     * by service code and validated sort properties so the limit should never
+     * be reached, but it guards against unbounded growth.
+     */
+    static final int MAX_SHAPES = 1024;
+
+    /**
+     * Counting is blocked on I/O, which makes virtual threads a good fit.
+     */
+    private static final Executor COUNT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private static final Map<Shape, Templates> TEMPLATES = new ConcurrentHashMap<>();
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final String ROOT = "e";
+
+    // the parameter limiting the rows of a bounded count
+    private static final String BOUND = "bound";
+
+    /**
+     * Everything that determines the text of the search queries, but none of
+     * the values bound to them.
+     *
+     * @param entity the entity name
+     * @param selection the selected properties, or empty for the entity
+     * @param restrictions the restriction fragments, in the order applied
+     * @param sortKeys the sort keys, including the tie-breaker
+     * @param seek when seeking past a cursor, whether each of its values is null, otherwise empty
+     */
+    record Shape(
+            String entity,
+            List<String> selection,
+            List<String> restrictions,
+            List<SortKey> sortKeys,
+            List<Boolean> seek
+    ) {
+
+        Templates render() {
+            String from = " from " + entity + " " + ROOT;
+            String where = " where " + String.join(" and ", restrictions);
+            String select = selection.isEmpty()
+                    ? ROOT
+                    : String.join(", ", selection.stream().map(SearchCriteria::path).toList());
+            StringBuilder results = new StringBuilder("select ").append(select).append(from).append(where);
+            if (!seek.isEmpty()) {
+                results.append(" and (").append(seek(sortKeys, seek)).append(")");
+            }
+            if (!sortKeys.isEmpty()) {
+                // nulls are ordered as by Postgres, but explicitly so that the seek predicate agrees
+                results.append(" order by ").append(String.join(", ", sortKeys.stream()
+                        .map(k -> path(k.property()) + (k.ascending() ? " asc nulls last" : " desc nulls first"))
+                        .toList()));
+            }
+            return new Templates(
+                    results.toString(),
+                    "select count(" + ROOT + ")" + from + where,
+                    // a constant sort key is not sorted by, but HQL requires one for the limit
+                    "select count(*) from (select 1 as one" + from + where + " order by 1 limit :" + BOUND + ") b"
+            );
+        }
+
+        /**
+         * Expands a row value comparison such as <code>(k1, k2, id) &gt; (?, ?, ?)</code>
+         * into a disjunction honoring the direction of each sort key:
+         * <code>k1 &gt; ? or (k1 = ? and k2 &gt; ?) or (k1 = ? and k2 = ? and id &gt; ?)</code>.
+         * Nulls follow the other values in ascending order and precede them in
+         * descending order, and a null cursor value is compared using
+         * <code>is null</code> rather than being bound.
+         */
+        private static String seek(List<SortKey> keys, List<Boolean> nulls) {
+            List<String> alternatives = new LinkedList<>();
+            List<String> equalities = new LinkedList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                String key = path(keys.get(i).property());
+                String after;
+                if (keys.get(i).ascending()) {
+                    // nothing follows null, and the identifier is never null
+                    after = nulls.get(i) ? null : TIE_BREAKER.equals(keys.get(i).property())
+                            ? key + " > :" + seekParameter(i)
+                            : "(" + key + " > :" + seekParameter(i) + " or " + key + " is null)";
+                } else {
+                    after = nulls.get(i) ? key + " is not null" : key + " < :" + seekParameter(i);
+                }
+                if (after != null) {
+                    List<String> term = new LinkedList<>(equalities);
+                    term.add(after);
+                    alternatives.add("(" + String.join(" and ", term) + ")");
+                }
+                equalities.add(nulls.get(i) ? key + " is null" : key + " = :" + seekParameter(i));
+            }
+            return String.join(" or ", alternatives);
+        }
+    }
+
+    /**
+     * The rendered text of the search queries for a single {@link Shape}.
+     *
+     * @param results query for a page of results
+     * @param count query for an exact count
+     * @param bounded query for a count that stops once a number of rows is reached
+     */
+    record Templates(String results, String count, String bounded) {
+    }
+
+    private static String path(String property) {
+        return ROOT + "." + property;
+    }
+
+    private static String seekParameter(int index) {
+        return "k" + index;
+    }
+
+    /**
+     * Creates unmanaged entities from the selected properties of each result.
+     *
+     * @param constructor the entity constructor
+     * @param fields the entity fields, in the order selected
+     * @param <T> the entity type
+     */
+    private record Projection<T>(Constructor<T> constructor, List<java.lang.reflect.Field> fields) {
+
+        static <T> Projection<T> of(Class<T> clazz, EntityType<T> model, List<String> selection) {
+            List<java.lang.reflect.Field> fields = selection.stream()
+                    .map(p -> {
+                        if (!(model.getAttribute(p).getJavaMember() instanceof java.lang.reflect.Field f)) {
+                            throw new IllegalArgumentException("Property is not field based: " + p);
+                        }
+                        ReflectionUtils.makeAccessible(f);
+                        return f;
+                    })
+                    .toList();
+            return new Projection<>(accessibleConstructor(clazz), fields);
+        }
+
+        private static <T> Constructor<T> accessibleConstructor(Class<T> clazz) {
+            try {
+                return ReflectionUtils.accessibleConstructor(clazz);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("Entity has no default constructor: " + clazz.getName(), e);
+            }
+        }
+
+        T instantiate(Object[] tuple) {
+            T entity = BeanUtils.instantiateClass(constructor);
+            for (int i = 0; i < tuple.length; i++) {
+                ReflectionUtils.setField(fields.get(i), entity, tuple[i]);
+            }
+            return entity;
+        }
+    }
+
     public static class Builder<T extends AbstractEntity> {
 
         private final EntityManager em;
-        private final CriteriaBuilder cb;
+        private final Class<T> clazz;
         private final EntityType<T> model;
-        private final CriteriaQuery<T> resultCriteria;
-        private final Root<T> resultRoot;
-        private final CriteriaQuery<Long> countCriteria;
-        private final Root<T> countRoot;
-        private final List<Predicate> resultPredicates = new LinkedList<>();
-        private final List<Predicate> countPredicates = new LinkedList<>();
+        private final List<String> restrictions = new LinkedList<>();
+        private final Map<String, Object> parameters = new LinkedHashMap<>();
         private final List<String> sorting = new LinkedList<>();
+        private final Set<String> selection = new LinkedHashSet<>();
+        private Field expansions;
+
+        /**
+         * Tags are stored in a side table unless mapped to a JSON column.
+         *
+         * @see AbstractJsonTagEntity
+         */
+        private final boolean jsonTags;
 
-        private MapJoin<T, String, String> resultTags;
-        private MapJoin<T, String, String> countTags;
         private boolean isDeleted = false;
+        private KeysetCursor cursor;
+        private CountStrategy countStrategy = CountStrategy.EXACT;
+        private long countBound = DEFAULT_COUNT_BOUND;
+        private boolean concurrent = false;
+        private final Semaphore countPermits;
 
+        /**
+         * Create a builder without permits for concurrent counts, which are
+         * then always performed in line.
+         *
+         * @param em the entity manager of the search
+         * @param clazz the entity type
+         */
         public Builder(EntityManager em, Class<T> clazz) {
-            this.em = em;
-
-            cb = em.getCriteriaBuilder();
-            resultCriteria = cb.createQuery(clazz);
-            resultRoot = resultCriteria.from(clazz);
-            resultRoot.alias("searchRoot");
+            this(em, clazz, new Semaphore(0));
+        }
 
-            countCriteria = cb.createQuery(Long.class);
-            countRoot = countCriteria.from(clazz);
-            countCriteria.select(cb.count(countRoot));
+        /**
+         * Create a builder.
+         *
+         * @param em the entity manager of the search
+         * @param clazz the entity type
+         * @param countPermits the permits bounding the counts performed concurrently
+         *                     with their search, shared by every search
+         * @see #countConcurrently()
+         */
+        public Builder(EntityManager em, Class<T> clazz, Semaphore countPermits) {
+            this.em = em;
+            this.clazz = clazz;
+            this.countPermits = countPermits;
 
             Metamodel meta = em.getMetamodel();
             model = meta.entity(clazz);
+            jsonTags = !(model.getAttribute("tags") instanceof PluralAttribute);
         }
 
-        private MapJoin<T, String, String> getResultTags() {
-            // created on demand to only join tags when part of the criteria
-            if (resultTags == null) {
-                resultTags = resultRoot.joinMap("tags");
-            }
-            return resultTags;
+        /**
+         * Scopes the search to soft-deleted entities only. By
+         * default, searches are scoped the entities that have not
+         * been soft-deleted.
+         *
+         * @return this builder
+         */
+        public Builder<T> onlyDeletedEntities() {
+            this.isDeleted = true;
+            return this;
         }
 
-        private MapJoin<T, String, String> getCountTags() {
-            // created on demand to only join tags when part of the criteria
-            if (countTags == null) {
-                countTags = countRoot.joinMap("tags");
+        /**
+         * Determines how the full set of results is counted. By default,
+         * an exact count is performed.
+         *
+         * @param strategy the count strategy
+         * @return this builder
+         */
+        public Builder<T> countStrategy(CountStrategy strategy) {
+            this.countStrategy = strategy;
+            return this;
+        }
 
+        /**
+         * Counts the full set of results up to the specified bound.
+         *
+         * @param bound the maximum number of results to count
+         * @return this builder
+         * @see CountStrategy#BOUNDED
+         */
+        public Builder<T> countUpTo(long bound) {
+            if (bound < 1) {
+                throw new IllegalArgumentException("Count bound must be positive: " + bound);
             }
-            return countTags;
+            this.countStrategy = CountStrategy.BOUNDED;
+            this.countBound = bound;
+            return this;
         }
 
         /**
-         * Scopes the search to soft-deleted entities only. By
-         * default, searches are scoped the entities that have not
-         * been soft-deleted.
+         * Performs an exact count concurrently with fetching the page of
+         * results. The count is performed using a separate, read-only
+         * connection so it does not observe changes that have not been
+         * committed by the current transaction.
+         * <p>
+         * Such a search uses two connections at once. The concurrent counts
+         * are bounded by the permits of the builder, which must be fewer than
+         * the connections of the pool: when no permit is free, the count is
+         * performed in line, on the connection of the search.
          *
          * @return this builder
+         * @see CountStrategy#EXACT
          */
-        public Builder<T> onlyDeletedEntities() {
-            this.isDeleted = true;
+        public Builder<T> countConcurrently() {
+            this.concurrent = true;
             return this;
         }
 
         public Builder<T> exactMatch(String property, Object value) {
-            resultPredicates.add(
-                    cb.equal(resultRoot.get(property), value)
-            );
-            countPredicates.add(
-                    cb.equal(countRoot.get(property), value)
-            );
+            restrictions.add(attribute(property) + " = " + bind(value));
             return this;
         }
 
         public <V> Builder<T> optionsMatch(String property, V... values) {
-            In<Object> clause = cb.in(resultRoot.get(property));
-            for (Object v : values) {
-                clause.value(v);
-            }
-            resultPredicates.add(clause);
-
-            clause = cb.in(countRoot.get(property));
-            for (Object v : values) {
-                clause.value(v);
-            }
-            countPredicates.add(clause);
+            restrictions.add(attribute(property) + " in " + bind(Arrays.asList(values)));
             return this;
         }
 
         public Builder<T> partialMatch(String property, String value) {
-            resultPredicates.add(
-                    cb.like(resultRoot.get(property), value)
-            );
-            countPredicates.add(
-                    cb.like(countRoot.get(property), value)
-            );
+            restrictions.add(attribute(property) + " like " + bind(value));
             return this;
         }
 
         public <V extends Comparable<? super V>> Builder<T> rangeMatch(String property, V floor, V ceiling) {
-            resultPredicates.add(
-                    cb.between(resultRoot.get(property), floor, ceiling)
-            );
-            countPredicates.add(
-                    cb.between(countRoot.get(property), floor, ceiling)
-            );
+            restrictions.add(attribute(property) + " between " + bind(floor) + " and " + bind(ceiling));
             return this;
         }
 
+        /**
+         * Limits the results to the specified properties, so only their columns
+         * are queried. The identifier and sort properties are always selected.
+         * Collections, such as tags stored in a side table, cannot be selected.
+         * By default, the entities are queried.
+         *
+         * @param properties the properties to select
+         * @return this builder
+         * @throws IllegalArgumentException if a property is unknown or a collection
+         */
+        public Builder<T> select(Collection<String> properties) {
+            for (String property : properties) {
+                if (model.getAttribute(property).isCollection()) {
+                    throw new IllegalArgumentException("Property cannot be selected: " + property);
+                }
+            }
+            this.selection.clear();
+            this.selection.addAll(properties);
+            return this;
+        }
+
+        /**
+         * Loads the specified associations of the results along with the results,
+         * for example <code>author(publisher) categories</code>. The number of
+         * queries depends on the associations expanded, not on the number of
+         * results. Expansions cannot be combined with a selection.
+         *
+         * @param expansions the associations to expand
+         * @return this builder
+         * @throws IllegalArgumentException if a property is unknown or not an association
+         * @see AbstractEntityRepository#search(SearchCriteria, org.springframework.data.domain.Pageable)
+         */
+        public Builder<T> expand(Field expansions) {
+            Expansions.validate(em.getMetamodel(), clazz, expansions);
+            this.expansions = expansions.hasSubfields() ? expansions : null;
+            return this;
+        }
+
+        /**
+         * Orders the results by the specified properties, each prefixed by
+         * <code>+</code> (ascending, the default) or <code>-</code> (descending).
+         *
+         * @param criteria the sort criteria
+         * @return this builder
+         * @throws IllegalArgumentException if a property is unknown
+         */
         public Builder<T> orderAs(List<String> criteria) {
+            // fail before the criteria are passed to a repository, which translates the exception
+            criteria.forEach(c -> attribute(SortKey.parse(c).property()));
             this.sorting.clear();
             this.sorting.addAll(criteria);
             return this;
         }
 
+        /**
+         * Enables keyset pagination, resuming after the entity identified
+         * by the specified cursor. Offsets are ignored when keyset pagination
+         * is in effect.
+         *
+         * @param cursor opaque cursor token previously issued for the same sort criteria
+         * @return this builder
+         * @throws IllegalArgumentException if the cursor is malformed
+         * @see SearchCriteria#cursorFor(AbstractEntity)
+         */
+        public Builder<T> after(String cursor) {
+            try {
+                this.cursor = KeysetCursor.decode(cursor);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+            return this;
+        }
+
         public Builder<T> tagPresent(String key) {
-            resultPredicates.add(
-                    cb.equal(getResultTags().key(), key)
-            );
-            countPredicates.add(
-                    cb.equal(getCountTags().key(), key)
-            );
+            restrictions.add(tagged(key, null));
             return this;
         }
 
         public Builder<T> tagExactMatch(String key, Object value) {
-            var rTags = getResultTags();
-            var cTags = getCountTags();
-            resultPredicates.add(
-                    cb.and(
-                            cb.equal(rTags.key(), key),
-                            cb.equal(rTags.value(), value)
-                    )
-            );
-            countPredicates.add(
-                    cb.and(
-                            cb.equal(cTags.key(), key),
-                            cb.equal(cTags.value(), value)
-                    )
-            );
+            if (jsonTags) {
+                // containment is the operation best supported by a GIN index
+                restrictions.add("jsonb_contains(" + path("tags") + ", " + bind(json(key, value)) + ")");
+            } else {
+                restrictions.add(tagged(key, " = " + bind(value)));
+            }
             return this;
         }
 
         public Builder<T> tagPartialMatch(String key, String value) {
-            var rTags = getResultTags();
-            var cTags = getCountTags();
-            resultPredicates.add(
-                    cb.and(
-                            cb.equal(rTags.key(), key),
-                            cb.like(rTags.value(), value)
-                    )
-            );
-            countPredicates.add(
-                    cb.and(
-                            cb.equal(cTags.key(), key),
-                            cb.like(cTags.value(), value)
-                    )
-            );
+            restrictions.add(tagged(key, " like " + bind(value)));
             return this;
         }
 
         public Builder<T> tagOptionsMatch(String key, Object... values) {
-            var rTags = getResultTags();
-            var cTags = getCountTags();
-            In<Object> in = cb.in(rTags.value());
-            for (Object v : values) {
-                in.value(v);
-            }
-            resultPredicates.add(
-                    cb.and(
-                            cb.equal(rTags.key(), key),
-                            in
-                    )
-            );
-            in = cb.in(cTags.value());
-            for (Object v : values) {
-                in.value(v);
-            }
-            countPredicates.add(
-                    cb.and(
-                            cb.equal(cTags.key(), key),
-                            in
-                    )
-            );
+            restrictions.add(tagged(key, " in " + bind(Arrays.asList(values))));
             return this;
         }
 
         public Builder<T> tagRangeMatch(String key, String floor, String ceiling) {
-            var rTags = getResultTags();
-            var cTags = getCountTags();
-            resultPredicates.add(
-                    cb.and(
-                            cb.equal(rTags.key(), key),
-                            //cb.between(rTags.get("value"), floor, ceiling),
-                            cb.between(rTags.value(), floor, ceiling)
-                    )
-            );
-            countPredicates.add(
-                    cb.and(
-                            cb.equal(cTags.key(), key),
-                            cb.between(cTags.value(), floor, ceiling)
-                    )
-            );
+            restrictions.add(tagged(key, " between " + bind(floor) + " and " + bind(ceiling)));
             return this;
         }
 
+        /**
+         * Resolve a property of the entity, which must be a known attribute
+         * as property names become part of the query text.
+         *
+         * @throws IllegalArgumentException if the property is unknown
+         */
+        private String attribute(String property) {
+            model.getAttribute(property);
+            return path(property);
+        }
+
+        private static String json(String key, Object value) {
+            try {
+                return JSON.writeValueAsString(Map.of(key, String.valueOf(value)));
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Invalid tag: " + key, e);
+            }
+        }
+
+        /**
+         * Record a value to be bound to the queries.
+         *
+         * @return the parameter reference
+         */
+        private String bind(Object value) {
+            String name = "p" + parameters.size();
+            parameters.put(name, value);
+            return ":" + name;
+        }
+
+        /**
+         * Restrict to entities having a tag with the specified key and, optionally,
+         * a value satisfying a condition. Each tag restriction is a separate
+         * correlated subquery so that restrictions on different keys can all be
+         * satisfied, and matching tags never multiply the rows of the entity.
+         * Tags stored as JSON are tested in place instead.
+         *
+         * @param key the tag key
+         * @param condition the condition on the tag value, or <code>null</code> for any value
+         * @return the restriction
+         */
+        private String tagged(String key, String condition) {
+            if (jsonTags) {
+                String tags = path("tags");
+                String k = bind(key);
+                return "(jsonb_has_key(" + tags + ", " + k + ")"
+                        + (condition == null ? "" : " and jsonb_text(" + tags + ", " + k + ")" + condition)
+                        + ")";
+            }
+            String tag = "t" + restrictions.size();
+            return "exists (select 1 from " + path("tags") + " " + tag
+                    + " where key(" + tag + ") = " + bind(key)
+                    + (condition == null ? "" : " and value(" + tag + ")" + condition)
+                    + ")";
+        }
+
         public SearchCriteria<T> build() {
+            // only the scope of undeleted items applies: the table statistics can be used to estimate.
+            // Deleted items are usually few, so the statistics do not estimate them
+            boolean unrestricted = restrictions.isEmpty() && !isDeleted;
+
             // apply deleted item scope
             exactMatch("deleted", isDeleted);
 
-            // apply sorting
-            Order[] orders = this.sorting.stream()
-                    .map(s -> {
-                        if (s.startsWith("+")) {
-                            return cb.asc(resultRoot.get(s.substring(1)));
-                        } else if (s.startsWith("-")) {
-                            return cb.desc(resultRoot.get(s.substring(1)));
-                        } else {
-                            return cb.asc(resultRoot.get(s));
-                        }
+            // apply sorting, using the identifier as a tie-breaker when order matters
+            List<SortKey> keys = new LinkedList<>(
+                    this.sorting.stream()
+                            .map(SortKey::parse)
+                            .toList()
+            );
+            keys.forEach(k -> attribute(k.property()));
+            if ((cursor != null || !keys.isEmpty())
+                    && keys.stream().noneMatch(k -> TIE_BREAKER.equals(k.property()))) {
+                keys.add(new SortKey(TIE_BREAKER, true));
+            }
 
-                    })
-                    .toArray(Order[]::new);
-            resultCriteria.orderBy(orders);
+            // identify the results (and issue cursors) using only the selected properties
+            Set<String> selected = new LinkedHashSet<>();
+            if (!selection.isEmpty()) {
+                if (expansions != null) {
+                    throw new IllegalArgumentException("Associations cannot be expanded for selected properties");
+                }
+                selected.add(TIE_BREAKER);
+                keys.forEach(k -> selected.add(k.property()));
+                selected.addAll(selection);
+            }
 
-            TypedQuery<T> rq = em.createQuery(
-                    resultCriteria.where(resultPredicates.toArray(Predicate[]::new))
+            // null cursor values are part of the query text rather than bound
+            Map<String, Object> seek = cursor == null ? Map.of() : seek(keys);
+            Shape shape = new Shape(
+                    model.getName(),
+                    List.copyOf(selected),
+                    List.copyOf(restrictions),
+                    List.copyOf(keys),
+                    seek.values().stream().map(Objects::isNull).toList()
             );
+            Templates templates = TEMPLATES.get(shape);
+            if (templates == null) {
+                templates = shape.render();
+                if (TEMPLATES.size() < MAX_SHAPES) {
+                    TEMPLATES.putIfAbsent(shape, templates);
+                }
+            }
 
-            TypedQuery<Long> cq = em.createQuery(
-                    countCriteria.where(countPredicates.toArray(Predicate[]::new))
+            // seek past the last entity seen (results only, the count is unaffected)
+            TypedQuery<T> rq = bind(shape.selection().isEmpty()
+                    ? em.createQuery(templates.results(), clazz)
+                    : project(templates.results(), shape.selection()), parameters);
+            seek.forEach((name, value) -> {
+                if (value != null) {
+                    rq.setParameter(name, value);
+                }
+            });
+            // to-one associations are joined, others are fetched once the results are known
+            RootGraph<T> graph = expansions == null ? null : Expansions.graph(em, clazz, expansions);
+            if (graph != null) {
+                rq.setHint(SpecHints.HINT_SPEC_LOAD_GRAPH, graph);
+            }
+
+            // only create the queries required by the count strategy
+            TypedQuery<Long> cq = null;
+            Supplier<Long> concurrentCount = null;
+            TypedQuery<Long> bq = null;
+            if (countStrategy == CountStrategy.EXACT) {
+                // also the fallback of a concurrent count when no permit is free
+                cq = bind(em.createQuery(templates.count(), Long.class), parameters);
+                if (concurrent) {
+                    EntityManagerFactory factory = em.getEntityManagerFactory();
+                    String count = templates.count();
+                    Map<String, Object> values = new LinkedHashMap<>(parameters);
+                    concurrentCount = () -> countSeparately(factory, count, values);
+                }
+            } else if (countStrategy == CountStrategy.BOUNDED || countStrategy == CountStrategy.ESTIMATED) {
+                // estimates fall back to a bounded count when unavailable
+                bq = bind(em.createQuery(templates.bounded(), Long.class), parameters)
+                        .setParameter(BOUND, (int) Math.min(countBound + 1, Integer.MAX_VALUE));
+            }
+
+            return new SearchCriteria<>(
+                    rq, cq, concurrentCount, countPermits, bq,
+                    countStrategy == CountStrategy.ESTIMATED && unrestricted ? this::estimate : null,
+                    countStrategy, countBound, keys, cursor != null, expansions
             );
+        }
+
+        /**
+         * Create a query for the selected properties, creating an entity from each result.
+         */
+        @SuppressWarnings("unchecked")
+        private TypedQuery<T> project(String results, List<String> selection) {
+            Projection<T> projection = Projection.of(clazz, model, selection);
+            return em.createQuery(results)
+                    .unwrap(Query.class)
+                    .setTupleTransformer((tuple, aliases) -> projection.instantiate(tuple));
+        }
 
-            return new SearchCriteria<>(rq, cq);
+        private static <Q extends TypedQuery<?>> Q bind(Q query, Map<String, Object> parameters) {
+            parameters.forEach(query::setParameter);
+            return query;
+        }
+
+        /**
+         * Count using a dedicated entity manager, and therefore connection, in a
+         * read-only transaction that is always rolled back.
+         */
+        private static Long countSeparately(EntityManagerFactory factory, String count, Map<String, Object> parameters) {
+            EntityManager counter = factory.createEntityManager();
+            try {
+                counter.getTransaction().begin();
+                counter.unwrap(Session.class).doWork(connection -> connection.setReadOnly(true));
+                return bind(counter.createQuery(count, Long.class), parameters)
+                        .setHint(HibernateHints.HINT_READ_ONLY, true)
+                        .getSingleResult();
+            } finally {
+                if (counter.getTransaction().isActive()) {
+                    counter.getTransaction().rollback();
+                }
+                counter.close();
+            }
+        }
+
+        /**
+         * Estimate the number of entities using the planner statistics of the
+         * entity table. Note that the statistics include soft-deleted entities.
+         */
+        private OptionalLong estimate() {
+            String table = em.getEntityManagerFactory()
+                    .unwrap(SessionFactoryImplementor.class)
+                    .getMappingMetamodel()
+                    .getEntityDescriptor(clazz)
+                    .getIdentifierTableDetails()
+                    .getTableName();
+            List<?> estimate = em.createNativeQuery(
+                            "select cast(reltuples as bigint) from pg_class where oid = to_regclass(?1)"
+                    )
+                    .setParameter(1, table)
+                    .getResultList();
+            // tables that have never been analyzed have no statistics
+            return estimate.isEmpty() || ((Number) estimate.get(0)).longValue() < 0
+                    ? OptionalLong.empty()
+                    : OptionalLong.of(((Number) estimate.get(0)).longValue());
+        }
+
+        /**
+         * Resolve the cursor values to bind to the seek predicate.
+         *
+         * @throws IllegalArgumentException if the cursor does not match the sort criteria
+         */
+        private Map<String, Object> seek(List<SortKey> keys) {
+            if (cursor.size() != keys.size()) {
+                throw new IllegalArgumentException("Cursor does not match the sort criteria");
+            }
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                try {
+                    values.put(
+                            seekParameter(i),
+                            cursor.value(i, model.getAttribute(keys.get(i).property()).getJavaType())
+                    );
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Cursor does not match the sort criteria", e);
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * A single sort criterion.
+     *
+     * @param property the property name
+     * @param ascending <code>true</code> for ascending order, <code>false</code> for descending
+     */
+    record SortKey(String property, boolean ascending) {
+
+        static SortKey parse(String criterion) {
+            if (criterion.startsWith("+")) {
+                return new SortKey(criterion.substring(1), true);
+            } else if (criterion.startsWith("-")) {
+                return new SortKey(criterion.substring(1), false);
+            }
+            return new SortKey(criterion, true);
         }
     }
 
     private final TypedQuery<T> resultsQuery;
+    /**
+     * Exact count of the results, only available for {@link CountStrategy#EXACT}.
+     */
     private final TypedQuery<Long> countQuery;
+    @Getter(AccessLevel.NONE)
+    private final Supplier<Long> concurrentCount;
+    @Getter(AccessLevel.NONE)
+    private final Semaphore countPermits;
+    @Getter(AccessLevel.NONE)
+    private final TypedQuery<Long> boundedCountQuery;
+    @Getter(AccessLevel.NONE)
+    private final Supplier<OptionalLong> estimator;
+    private final CountStrategy countStrategy;
+    private final long countBound;
+    @Getter(AccessLevel.NONE)
+    private final List<SortKey> sortKeys;
+    /**
+     * Indicates keyset pagination is in effect and offsets must not be applied.
+     */
+    private final boolean keyset;
+    /**
+     * The associations to expand once the results are known, if any.
+     */
+    private final Field expansions;
 
     private SearchCriteria(
             TypedQuery<T> resultsQuery,
-            TypedQuery<Long> countQuery
+            TypedQuery<Long> countQuery,
+            Supplier<Long> concurrentCount,
+            Semaphore countPermits,
+            TypedQuery<Long> boundedCountQuery,
+            Supplier<OptionalLong> estimator,
+            CountStrategy countStrategy,
+            long countBound,
+            List<SortKey> sortKeys,
+            boolean keyset,
+            Field expansions
     ) {
         this.resultsQuery = resultsQuery;
         this.countQuery = countQuery;
+        this.concurrentCount = concurrentCount;
+        this.countPermits = countPermits;
+        this.boundedCountQuery = boundedCountQuery;
+        this.estimator = estimator;
+        this.countStrategy = countStrategy;
+        this.countBound = countBound;
+        this.sortKeys = sortKeys;
+        this.keyset = keyset;
+        this.expansions = expansions;
+    }
+
+    /**
+     * Determine if the exact count is to be performed concurrently with
+     * fetching the results, when a permit is free.
+     *
+     * @return <code>true</code> if counting concurrently
+     * @see Builder#countConcurrently()
+     */
+    public boolean isConcurrentCount() {
+        return concurrentCount != null;
+    }
+
+    /**
+     * Start an exact count of the full set of results using a virtual thread
+     * and a connection of its own, provided a permit is free. The permit is
+     * released once the count is done.
+     *
+     * @return the pending count, or empty if no permit is free and the count
+     * query is to be used instead
+     * @throws IllegalStateException if the criteria do not count concurrently
+     * @see Builder#countConcurrently()
+     */
+    public Optional<CompletableFuture<Long>> countConcurrently() {
+        if (concurrentCount == null) {
+            throw new IllegalStateException("Concurrent count not enabled");
+        }
+        if (!countPermits.tryAcquire()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return concurrentCount.get();
+                } finally {
+                    countPermits.release();
+                }
+            }, COUNT_EXECUTOR));
+        } catch (RuntimeException e) {
+            countPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Estimate the size of the full set of results. An estimate is
+     * only available for {@link CountStrategy#ESTIMATED} when the search
+     * is not otherwise restricted and table statistics are present.
+     *
+     * @return the estimated number of results, if available
+     */
+    public OptionalLong estimateCount() {
+        return estimator == null ? OptionalLong.empty() : estimator.get();
+    }
+
+    /**
+     * Count the full set of results, stopping once the count bound is exceeded.
+     *
+     * @return the number of results, at most one more than the count bound
+     * @throws IllegalStateException if the count strategy does not support bounded counts
+     */
+    public long countUpToBound() {
+        if (boundedCountQuery == null) {
+            throw new IllegalStateException("Bounded count not supported by strategy " + countStrategy);
+        }
+        return boundedCountQuery.getSingleResult();
+    }
+
+    /**
+     * Determine if the results have a deterministic order, which is
+     * required for keyset pagination.
+     *
+     * @return <code>true</code> if cursors can be issued for the results
+     */
+    public boolean isOrdered() {
+        return !sortKeys.isEmpty();
+    }
+
+    /**
+     * Issue a cursor that can be used to fetch the results following
+     * the specified entity.
+     *
+     * @param entity the last entity seen
+     * @return opaque cursor token
+     * @throws IllegalStateException if the results are not ordered
+     * @see Builder#after(String)
+     */
+    public String cursorFor(T entity) {
+        if (!isOrdered()) {
+            throw new IllegalStateException("Cursors require ordered results");
+        }
+        var accessor = PropertyAccessorFactory.forBeanPropertyAccess(entity);
+        return KeysetCursor.of(
+                sortKeys.stream()
+                        .map(k -> accessor.getPropertyValue(k.property()))
+                        .toList()
+        ).encode();
     }
 }
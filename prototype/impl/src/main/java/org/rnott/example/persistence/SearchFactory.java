@@ -4,7 +4,9 @@ import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 import jakarta.transaction.Transactional;
 import jakarta.transaction.Transactional.TxType;
+import java.util.concurrent.Semaphore;
 import org.rnott.example.persistence.SearchCriteria.Builder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -12,8 +14,34 @@ public class SearchFactory {
     @PersistenceContext
     private EntityManager em;
 
+    /**
+     * Bounds the exact counts performed concurrently with their search, each of
+     * which holds a second connection while the search holds its own.
+     */
+    private final Semaphore countPermits;
+
+    /**
+     * Create the factory.
+     *
+     * @param concurrentCounts the number of counts that may be performed concurrently
+     *                         with their search, which must be less than the pool size
+     * @param poolSize the maximum number of connections of the pool
+     * @see Builder#countConcurrently()
+     */
+    public SearchFactory(
+            @Value("${service.search.concurrent-counts:4}") int concurrentCounts,
+            @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize
+    ) {
+        if (concurrentCounts < 0 || concurrentCounts >= poolSize) {
+            // a search holding a connection must always be able to obtain another for its count
+            throw new IllegalArgumentException(
+                    "Concurrent counts must be less than the pool size (" + poolSize + "): " + concurrentCounts);
+        }
+        this.countPermits = new Semaphore(concurrentCounts);
+    }
+
     @Transactional(TxType.SUPPORTS)
     public <T extends AbstractEntity> Builder<T> searchCriteriaBuilderFor(Class<T> clazz) {
-        return new SearchCriteria.Builder<>(em, clazz);
+        return new SearchCriteria.Builder<>(em, clazz, countPermits);
     }
 }
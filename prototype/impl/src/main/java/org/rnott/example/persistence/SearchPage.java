@@ -0,0 +1,70 @@
+package org.rnott.example.persistence;
+
+import java.util.List;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+/**
+ * A page of search results that records how accurate the total number
+ * of elements is, as determined by the {@link CountStrategy} used. Whether
+ * a following page exists is known from the results themselves when they
+ * were fetched past the page, as the total may be inaccurate or, for keyset
+ * pagination, not relative to the page.
+ *
+ * @param <T> the entity type
+ */
+@Getter
+public class SearchPage<T> extends PageImpl<T> {
+
+    /**
+     * Accuracy of the total number of elements.
+     */
+    public enum Accuracy {
+        /**
+         * The total is exact.
+         */
+        EXACT,
+        /**
+         * The total is an estimate.
+         */
+        ESTIMATED,
+        /**
+         * The actual total is at least the reported total.
+         */
+        AT_LEAST,
+        /**
+         * The total is not known; it only reflects whether a following page exists.
+         */
+        UNKNOWN
+    }
+
+    private final Accuracy accuracy;
+    @Getter(AccessLevel.NONE)
+    private final Boolean next;
+
+    public SearchPage(List<T> content, Pageable pageable, long total, Accuracy accuracy) {
+        this(content, pageable, total, accuracy, null);
+    }
+
+    /**
+     * Create a page of search results.
+     *
+     * @param content the results
+     * @param pageable the page requested
+     * @param total the total number of elements
+     * @param accuracy the accuracy of the total
+     * @param next <code>true</code> if a following page exists, or <code>null</code> to derive it from the total
+     */
+    public SearchPage(List<T> content, Pageable pageable, long total, Accuracy accuracy, Boolean next) {
+        super(content, pageable, total);
+        this.accuracy = accuracy;
+        this.next = next;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next == null ? super.hasNext() : next;
+    }
+}
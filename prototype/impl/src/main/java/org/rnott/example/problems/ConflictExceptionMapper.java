@@ -0,0 +1,9 @@
+package org.rnott.example.problems;
+
+import jakarta.ws.rs.core.Response.Status;
+
+public class ConflictExceptionMapper extends ProblemDetailsMapper<ConflictException> {
+    public ConflictExceptionMapper() {
+        super(Status.CONFLICT);
+    }
+}
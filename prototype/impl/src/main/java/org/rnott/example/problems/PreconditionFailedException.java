@@ -0,0 +1,7 @@
+package org.rnott.example.problems;
+
+import lombok.experimental.StandardException;
+
+@StandardException
+public class PreconditionFailedException extends RuntimeException {
+}
@@ -0,0 +1,9 @@
+package org.rnott.example.problems;
+
+import jakarta.ws.rs.core.Response.Status;
+
+public class PreconditionFailedExceptionMapper extends ProblemDetailsMapper<PreconditionFailedException> {
+    public PreconditionFailedExceptionMapper() {
+        super(Status.PRECONDITION_FAILED);
+    }
+}
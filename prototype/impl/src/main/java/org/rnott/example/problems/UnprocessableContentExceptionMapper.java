@@ -0,0 +1,8 @@
+package org.rnott.example.problems;
+
+public class UnprocessableContentExceptionMapper extends ProblemDetailsMapper<UnprocessableContentException> {
+    public UnprocessableContentExceptionMapper() {
+        // not defined by Status
+        super(422);
+    }
+}
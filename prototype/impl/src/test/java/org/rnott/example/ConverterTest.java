@@ -4,6 +4,7 @@ import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import org.junit.jupiter.api.Test;
 import org.rnott.example.api.EntityMetadata;
@@ -12,6 +13,7 @@ import org.rnott.example.api.Example;
 import org.rnott.example.api.PageOfExamples;
 import org.rnott.example.persistence.ExampleEntity;
 import org.rnott.example.persistence.ExampleMapper;
+import org.rnott.example.persistence.Field;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
@@ -94,6 +96,32 @@ public class ConverterTest {
         assert current.getModifiedBy().equals(entity.getModifiedBy());
     }
 
+    @Test
+    void apiTypeCanBeLimitedToSelectedFields() {
+        Field fields = Field.newInstance("id name metadata(created links)");
+        assert Set.of("id", "name", "created").equals(ExampleMapper.INSTANCE.propertiesFor(fields));
+        assert ExampleMapper.INSTANCE.propertiesFor(Field.newInstance("metadata"))
+                .containsAll(List.of("created", "createdBy", "modified", "modifiedBy"));
+
+        Example example = ExampleMapper.INSTANCE.toApi(ExampleEntity.builder()
+                .id(UUID.randomUUID())
+                .name("foo")
+                .description("sample")
+                .version(99)
+                .created(OffsetDateTime.now())
+                .createdBy("me")
+                .build());
+        ExampleMapper.INSTANCE.select(example, fields);
+        assert example.getId() != null;
+        assert "foo".equals(example.getName());
+        assert example.getDescription() == null;
+        // defaults are cleared too
+        assert example.getState() == null;
+        assert example.getVersion() == null;
+        assert example.getMetadata().getCreated() != null;
+        assert example.getMetadata().getCreatedBy() == null;
+    }
+
     @Test
     void pageOfEntitiesCanBeConvertedToApiPage() {
         Page<ExampleEntity> source = new PageImpl<>(
@@ -2,25 +2,47 @@ package org.rnott.example;
 
 import static io.restassured.RestAssured.given;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.restassured.RestAssured;
 import io.restassured.common.mapper.TypeRef;
+import io.restassured.config.DecoderConfig;
+import io.restassured.config.RestAssuredConfig;
 import io.restassured.http.ContentType;
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import org.hamcrest.Matchers;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
+import org.rnott.example.api.BatchItemResult;
 import org.rnott.example.api.EntityMetadata;
 import org.rnott.example.api.EntityState;
 import org.rnott.example.api.Example;
 import org.rnott.example.api.PageOfExamples;
+import org.rnott.example.feature.IdempotencyFeature;
+import org.rnott.example.feature.IdempotencyStore;
+import org.rnott.example.feature.ResponseCache;
 import org.rnott.example.persistence.ExampleEntity;
 import org.rnott.example.persistence.ExampleRepository;
+import org.rnott.example.persistence.InvalidationBus;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -45,6 +67,7 @@ class ExampleApiTest {
         dynamicPropertyRegistry.add("spring.datasource.url", pgContainer::getJdbcUrl);
         dynamicPropertyRegistry.add("spring.datasource.username", pgContainer::getUsername);
         dynamicPropertyRegistry.add("spring.datasource.password", pgContainer::getPassword);
+        dynamicPropertyRegistry.add("service.serialization.profile", () -> "debug");
     }
 
     @LocalServerPort
@@ -79,6 +102,9 @@ class ExampleApiTest {
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private DataSourceProperties dataSourceProperties;
+
     /**
      * Truncate the database tables after each test to eliminate
      * side effects.
@@ -86,8 +112,28 @@ class ExampleApiTest {
     @AfterEach
     void dbCleanup() {
         jdbcTemplate.execute("TRUNCATE TABLE examples CASCADE");
+        jdbcTemplate.execute("TRUNCATE TABLE idempotency_keys");
+        // the database is changed without the service knowing
+        responseCache.clear();
+        idempotencyStore.clear();
+        exampleCache.clear();
     }
 
+    @Autowired
+    private ExampleCache exampleCache;
+
+    @Autowired
+    private InvalidationBus invalidations;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ResponseCache responseCache;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
     // used to populate the database by each test
     // repository features are separate unit tests
     @Autowired
@@ -134,6 +180,144 @@ class ExampleApiTest {
         }
     }
 
+    @Test
+    void serviceShouldReturnOnlyRequestedFields() {
+        UUID id = UUID.randomUUID();
+        repository.saveAllAndFlush(List.of(
+                ExampleEntity.builder()
+                        .id(id)
+                        .name("foo")
+                        .description("first example")
+                        .version(99)
+                        .tag("rank", "1")
+                        .build(),
+                ExampleEntity.builder()
+                        .name("bar")
+                        .description("second example")
+                        .version(99)
+                        .build()
+        ));
+
+        var response = given().contentType(ContentType.JSON)
+                .queryParam("fields", "id,name")
+                .queryParam("sort", "+name")
+                .when()
+                .get("/examples");
+        assert response.statusCode() == 200;
+        PageOfExamples result = response.as(PageOfExamples.class);
+        assert result.getTotalCount() == 2;
+        assert result.getData().size() == 2;
+        assert "bar".equals(result.getData().get(0).getName());
+        for (Example x : result.getData()) {
+            assert x.getId() != null;
+            assert x.getDescription() == null;
+            assert x.getMetadata() == null;
+        }
+        // absent rather than null
+        assert response.jsonPath().getMap("data[0]").keySet().equals(Set.of("id", "name"));
+
+        response = given().contentType(ContentType.JSON)
+                .queryParam("fields", "name metadata(created)")
+                .when()
+                .get("/examples/{id}", id);
+        assert response.statusCode() == 200;
+        assert response.jsonPath().getMap("$").keySet().equals(Set.of("name", "metadata"));
+        assert response.jsonPath().getMap("metadata").keySet().equals(Set.of("created"));
+        assert "foo".equals(response.jsonPath().getString("name"));
+        // validators are only derived from the selected fields
+        assert response.getHeader("Last-Modified") == null;
+        assert response.getHeader("ETag") == null;
+
+        response = given().contentType(ContentType.JSON)
+                .queryParam("fields", "id,name")
+                .when()
+                .get("/examples/{id}", id);
+        assert response.statusCode() == 200;
+        assert response.jsonPath().getMap("$").keySet().equals(Set.of("id", "name"));
+        assert response.getHeader("Last-Modified") == null;
+        assert response.getHeader("ETag") == null;
+
+        response = given().contentType(ContentType.JSON)
+                .queryParam("fields", "id,version,metadata(modified)")
+                .when()
+                .get("/examples/{id}", id);
+        assert response.statusCode() == 200;
+        assert response.getHeader("Last-Modified") != null;
+        assert response.getHeader("ETag").startsWith("\"" + id + "-");
+
+        // malformed or unknown fields
+        given().contentType(ContentType.JSON)
+                .queryParam("fields", "name(")
+                .when()
+                .get("/examples")
+                .then()
+                .statusCode(400);
+        given().contentType(ContentType.JSON)
+                .queryParam("fields", "unknown")
+                .when()
+                .get("/examples")
+                .then()
+                .statusCode(400);
+    }
+
+    @Test
+    void serviceShouldAllowExportingACollection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            repository.save(ExampleEntity.builder()
+                    .name("export" + i)
+                    .build());
+        }
+        repository.flush();
+        var response = given()
+                .when()
+                .get("/examples/export?sort=-name");
+        assert response.statusCode() == 200;
+        assert response.contentType().startsWith("application/x-ndjson");
+        // one instance per line
+        String[] lines = response.asString().split("\n");
+        assert lines.length == 5;
+        ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
+        for (int i = 0; i < lines.length; i++) {
+            Example example = mapper.readValue(lines[i], Example.class);
+            assert ("export" + (4 - i)).equals(example.getName());
+            assert example.getId() != null;
+        }
+
+        given()
+                .when()
+                .get("/examples/export?sort=-unknown")
+                .then()
+                .statusCode(400);
+    }
+
+    @Test
+    void serviceShouldAllowPagingACollectionUsingCursors() {
+        for (int i = 0; i < 5; i++) {
+            repository.saveAndFlush(ExampleEntity.builder()
+                    .name("example" + i)
+                    .build());
+        }
+        List<String> names = new LinkedList<>();
+        var response = given().contentType(ContentType.JSON)
+                .when()
+                .get("/examples?sort=+name&limit=2");
+        while (true) {
+            assert response.statusCode() == 200;
+            PageOfExamples result = response.as(PageOfExamples.class);
+            assert result.getTotalCount() == 5;
+            assert !result.getData().isEmpty();
+            result.getData().forEach(x -> names.add(x.getName()));
+            if (result.getNext() == null) {
+                break;
+            }
+            assert result.getNext().getQuery().contains("cursor=");
+            response = given().contentType(ContentType.JSON)
+                    .when()
+                    .get(result.getNext());
+        }
+        assert names.equals(List.of("example0", "example1", "example2", "example3", "example4"));
+    }
+
     @Test
     void serviceShouldAllowCreationOfNewEntityInstances() {
 
@@ -257,6 +441,18 @@ class ExampleApiTest {
         assert response.statusCode() == 200;
         Example x = response.as(Example.class);
         assert id.equals(x.getId());
+        assert x.getVersion() == 0;
+
+        // and again to replace it, retaining its creation
+        response = given()
+                .contentType(ContentType.JSON).body(source.description("The example"))
+                .when()
+                .put("/examples/{id}", id);
+        assert response.statusCode() == 200;
+        Example y = response.as(Example.class);
+        assert y.getVersion() == 1;
+        assert "The example".equals(y.getDescription());
+        assert y.getMetadata().getCreated().equals(x.getMetadata().getCreated());
 
         given()
                 .contentType(ContentType.JSON).body(source)
@@ -359,6 +555,557 @@ class ExampleApiTest {
         assert tags.size() == 0;
     }
 
+    @Test
+    void serviceShouldAnswerConditionalRequests() {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .description("first example")
+                        .tag("rank", "1")
+                        .build()
+        );
+        var response = given()
+                .when()
+                .get("/examples/{id}", source.getId());
+        assert response.statusCode() == 200;
+        String etag = response.header("Etag");
+        String lastModified = response.header("Last-Modified");
+        assert etag != null;
+        assert lastModified != null;
+
+        // unchanged
+        response = given()
+                .header("If-None-Match", etag)
+                .when()
+                .get("/examples/{id}", source.getId());
+        assert response.statusCode() == 304;
+        assert etag.equals(response.header("Etag"));
+        assert response.asString().isEmpty();
+        given()
+                .header("If-Modified-Since", lastModified)
+                .when()
+                .get("/examples/{id}", source.getId())
+                .then()
+                .statusCode(304);
+        given()
+                .header("If-None-Match", etag)
+                .when()
+                .get("/examples/{id}/tags", source.getId())
+                .then()
+                .statusCode(304);
+
+        // modified
+        given()
+                .contentType(ContentType.TEXT).body("2")
+                .when()
+                .put("/examples/{id}/tags/{name}", source.getId(), "rank")
+                .then()
+                .statusCode(204);
+        response = given()
+                .header("If-None-Match", etag)
+                .when()
+                .get("/examples/{id}/tags", source.getId());
+        assert response.statusCode() == 200;
+        assert !etag.equals(response.header("Etag"));
+        given()
+                .header("If-None-Match", etag)
+                .when()
+                .get("/examples/{id}", source.getId())
+                .then()
+                .statusCode(200);
+
+        // not found is unaffected
+        given()
+                .header("If-None-Match", etag)
+                .when()
+                .get("/examples/{id}", UUID.randomUUID())
+                .then()
+                .statusCode(404);
+    }
+
+    @Test
+    void serviceShouldAllowPatchingAnInstance() {
+        UUID id = UUID.randomUUID();
+        repository.saveAllAndFlush(List.of(
+                ExampleEntity.builder()
+                        .id(id)
+                        .name("foo")
+                        .description("first example")
+                        .tags(Map.of(
+                                "foo", "bar",
+                                "rank", "1"
+                        ))
+                        .build()
+        ));
+        String patch = """
+                [
+                  {"op": "test", "path": "/name", "value": "foo"},
+                  {"op": "replace", "path": "/description", "value": "patched example"},
+                  {"op": "replace", "path": "/state", "value": "DISABLED"},
+                  {"op": "remove", "path": "/tags/foo"},
+                  {"op": "add", "path": "/tags/color", "value": "red"},
+                  {"op": "copy", "from": "/tags/rank", "path": "/tags/order"}
+                ]
+                """;
+        Example example = given()
+                .contentType("application/json-patch+json").body(patch)
+                .when()
+                .patch("/examples/{id}", id)
+                .then()
+                .statusCode(200)
+                .extract().as(Example.class);
+        assert "foo".equals(example.getName());
+        assert "patched example".equals(example.getDescription());
+        assert example.getState() == EntityState.DISABLED;
+        assert example.getVersion() == 1;
+        Map<String, String> tags = given()
+                .when()
+                .get("/examples/{id}/tags", id)
+                .then()
+                .statusCode(200)
+                .extract().as(new TypeRef<Map<String, String>>() {});
+        assert Map.of("rank", "1", "color", "red", "order", "1").equals(tags) : tags;
+
+        // a failed test leaves the instance intact
+        given()
+                .contentType("application/json-patch+json")
+                .body("[{\"op\": \"test\", \"path\": \"/name\", \"value\": \"bar\"},"
+                        + " {\"op\": \"replace\", \"path\": \"/name\", \"value\": \"bar\"}]")
+                .when()
+                .patch("/examples/{id}", id)
+                .then()
+                .statusCode(409);
+        // as does replacing a tag that does not exist
+        given()
+                .contentType("application/json-patch+json")
+                .body("[{\"op\": \"replace\", \"path\": \"/tags/foo\", \"value\": \"baz\"}]")
+                .when()
+                .patch("/examples/{id}", id)
+                .then()
+                .statusCode(409);
+        assert repository.findById(id).orElseThrow().getVersion() == 1;
+
+        // managed properties cannot be patched
+        given()
+                .contentType("application/json-patch+json")
+                .body("[{\"op\": \"replace\", \"path\": \"/version\", \"value\": 7}]")
+                .when()
+                .patch("/examples/{id}", id)
+                .then()
+                .statusCode(400);
+        given()
+                .contentType("application/json-patch+json")
+                .body("[{\"op\": \"remove\", \"path\": \"/name\"}]")
+                .when()
+                .patch("/examples/{id}", id)
+                .then()
+                .statusCode(400);
+        given()
+                .contentType("application/json-patch+json")
+                .body("[{\"op\": \"remove\", \"path\": \"/description\"}]")
+                .when()
+                .patch("/examples/{id}", UUID.randomUUID())
+                .then()
+                .statusCode(404);
+    }
+
+    @Test
+    void serviceShouldHonorEntityTagPreconditionsOnWrites() {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .description("first example")
+                        .build()
+        );
+        var response = given()
+                .when()
+                .get("/examples/{id}", source.getId());
+        assert response.statusCode() == 200;
+        String etag = response.header("Etag");
+        assert etag.contains(source.getId().toString());
+
+        // current
+        response = given()
+                .header("If-Match", etag)
+                .contentType(ContentType.TEXT).body("1")
+                .when()
+                .put("/examples/{id}/tags/{name}", source.getId(), "rank");
+        assert response.statusCode() == 204;
+
+        // stale
+        given()
+                .header("If-Match", etag)
+                .contentType(ContentType.TEXT).body("2")
+                .when()
+                .put("/examples/{id}/tags/{name}", source.getId(), "rank")
+                .then()
+                .statusCode(412);
+        Example example = new Example()
+                .name("foo")
+                .description("updated example");
+        example.id(source.getId());
+        given()
+                .header("If-Match", etag)
+                .contentType(ContentType.JSON).body(example)
+                .when()
+                .put("/examples/{id}", source.getId())
+                .then()
+                .statusCode(412);
+
+        // the version of the entity tag takes precedence over the payload
+        etag = given()
+                .when()
+                .get("/examples/{id}", source.getId())
+                .header("Etag");
+        response = given()
+                .header("If-Match", etag)
+                .contentType(ContentType.JSON).body(example)
+                .when()
+                .put("/examples/{id}", source.getId());
+        assert response.statusCode() == 200;
+        assert !etag.equals(response.header("Etag"));
+        assert "updated example".equals(response.as(Example.class).getDescription());
+
+        // there is no representation to match
+        given()
+                .header("If-Match", etag)
+                .when()
+                .delete("/examples/{id}/tags", UUID.randomUUID())
+                .then()
+                .statusCode(412);
+    }
+
+    @Test
+    void serviceShouldTagPagesByContent() {
+        repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .build()
+        );
+        String etag = given()
+                .when()
+                .get("/examples")
+                .header("Etag");
+        assert etag != null;
+        assert etag.equals(given().when().get("/examples").header("Etag"));
+
+        given()
+                .contentType(ContentType.JSON).body(new Example().name("bar"))
+                .when()
+                .post("/examples")
+                .then()
+                .statusCode(200);
+        assert !etag.equals(given().when().get("/examples").header("Etag"));
+    }
+
+    @Test
+    void serviceShouldCompressLargeResponses() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            repository.save(ExampleEntity.builder()
+                    .name("example-" + i)
+                    .description("example number " + i)
+                    .build());
+        }
+        RestAssuredConfig raw = RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders());
+
+        var response = given()
+                .config(raw)
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .get("/examples");
+        assert response.statusCode() == 200;
+        assert "gzip".equals(response.header("Content-Encoding"));
+        assert response.header("Vary").contains("Accept-Encoding");
+        byte[] compressed = response.asByteArray();
+        PageOfExamples page;
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            page = new ObjectMapper().findAndRegisterModules().readValue(in, PageOfExamples.class);
+        }
+        assert page.getData().size() == 50;
+        String etag = response.header("Etag");
+        assert etag != null && etag.endsWith("-gzip\"");
+
+        // served from the response cache, as compressed
+        response = given()
+                .config(raw)
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .get("/examples");
+        assert "gzip".equals(response.header("Content-Encoding"));
+        assert Arrays.equals(compressed, response.asByteArray());
+        assert etag.equals(response.header("Etag"));
+        response = given()
+                .config(raw)
+                .header("Accept-Encoding", "gzip")
+                .header("If-None-Match", etag)
+                .when()
+                .get("/examples");
+        assert response.statusCode() == 304;
+        assert etag.equals(response.header("Etag"));
+
+        // not accepted, a different representation
+        response = given()
+                .config(raw)
+                .header("Accept-Encoding", "identity")
+                .when()
+                .get("/examples");
+        assert response.header("Content-Encoding") == null;
+        assert response.as(PageOfExamples.class).getData().size() == 50;
+        assert etag.replace("-gzip", "").equals(response.header("Etag"));
+
+        // too small, or problem details
+        given()
+                .config(raw)
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .get("/examples?limit=1")
+                .then()
+                .statusCode(200)
+                .header("Content-Encoding", Matchers.nullValue());
+        given()
+                .config(raw)
+                .header("Accept-Encoding", "gzip")
+                .when()
+                .get("/examples?sort=-unknown")
+                .then()
+                .statusCode(400)
+                .header("Content-Encoding", Matchers.nullValue());
+    }
+
+    @Test
+    void serviceShouldNegotiateBinaryFormats() throws Exception {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .tag("rank", "1")
+                        .build()
+        );
+        Map<String, ObjectMapper> formats = Map.of(
+                "application/cbor", new CBORMapper(),
+                "application/x-jackson-smile", new SmileMapper()
+        );
+        for (Map.Entry<String, ObjectMapper> format : formats.entrySet()) {
+            ObjectMapper mapper = format.getValue().findAndRegisterModules();
+            var response = given()
+                    .accept(format.getKey())
+                    .when()
+                    .get("/examples/{id}", source.getId());
+            assert response.statusCode() == 200;
+            assert format.getKey().equals(response.contentType());
+            Example example = mapper.readValue(response.asByteArray(), Example.class);
+            assert source.getId().equals(example.getId());
+            assert "foo".equals(example.getName());
+            assert example.getMetadata().getModified() != null;
+
+            response = given()
+                    .accept(format.getKey())
+                    .when()
+                    .get("/examples");
+            assert response.statusCode() == 200;
+            PageOfExamples page = mapper.readValue(response.asByteArray(), PageOfExamples.class);
+            assert page.getData().size() == 1;
+
+            // errors are always problem details
+            given()
+                    .accept(format.getKey())
+                    .when()
+                    .get("/examples/{id}", UUID.randomUUID())
+                    .then()
+                    .statusCode(404)
+                    .contentType("application/problem+json");
+        }
+    }
+
+    @Test
+    void servicePrettyPrintsOnlyWhenAsked() {
+        repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .build()
+        );
+        String compact = given()
+                .when()
+                .get("/examples")
+                .asString();
+        assert !compact.contains("\n");
+        String pretty = given()
+                .when()
+                .get("/examples?pretty")
+                .asString();
+        assert pretty.contains("\n");
+        assert pretty.replaceAll("\\s", "").equals(compact.replaceAll("\\s", ""));
+    }
+
+    @Test
+    void serviceShouldSetExpiryForEachResponse() {
+        var response = given()
+                .when()
+                .get("/examples");
+        assert response.statusCode() == 200;
+        assert "max-age=300".equals(response.header("Cache-Control"));
+        ZonedDateTime expires = ZonedDateTime.parse(response.header("Expires"), DateTimeFormatter.RFC_1123_DATE_TIME);
+        Duration remaining = Duration.between(ZonedDateTime.now(), expires);
+        assert remaining.compareTo(Duration.ofMinutes(4)) > 0;
+        assert remaining.compareTo(Duration.ofMinutes(6)) < 0;
+    }
+
+    @Test
+    void serviceShouldCacheSearchResponses() {
+        repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .build()
+        );
+        var response = given()
+                .when()
+                .get("/examples?sort=+name&name=foo");
+        assert response.statusCode() == 200;
+        assert response.as(PageOfExamples.class).getData().size() == 1;
+
+        // written behind the service, so the cached response is served
+        repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .build()
+        );
+        response = given()
+                .when()
+                .get("/examples?name=foo&sort=+name");
+        assert response.statusCode() == 200;
+        assert response.as(PageOfExamples.class).getData().size() == 1;
+        assert response.header("Etag") != null;
+
+        // revalidating the cached response
+        given()
+                .header("If-None-Match", response.header("Etag"))
+                .when()
+                .get("/examples?sort=+name&name=foo")
+                .then()
+                .statusCode(304);
+
+        // a write through the service invalidates the cached responses
+        given()
+                .contentType(ContentType.JSON).body(new Example().name("foo"))
+                .when()
+                .post("/examples")
+                .then()
+                .statusCode(200);
+        response = given()
+                .when()
+                .get("/examples?sort=+name&name=foo");
+        assert response.statusCode() == 200;
+        assert response.as(PageOfExamples.class).getData().size() == 3;
+    }
+
+    @Test
+    void serviceShouldCacheFetchedInstances() {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .tags(Map.of("color", "red"))
+                        .build()
+        );
+        UUID id = source.getId();
+        double hits = meterRegistry.get("cache.gets").tags("cache", "examples", "result", "hit")
+                .functionCounter().count();
+        given().when().get("/examples/{id}", id).then().statusCode(200);
+        given().when().get("/examples/{id}/tags/color", id).then().statusCode(200);
+
+        // written behind the service, so the cached instance is served
+        jdbcTemplate.update("update examples set name = 'bar' where id = ?", id);
+        jdbcTemplate.update("update example_entity_tags set value = 'blue' where example_entity_id = ?", id);
+        given().when().get("/examples/{id}", id).then()
+                .statusCode(200)
+                .body("name", Matchers.equalTo("foo"));
+        assert "red".equals(given().when().get("/examples/{id}/tags/color", id).asString());
+        assert meterRegistry.get("cache.gets").tags("cache", "examples", "result", "hit")
+                .functionCounter().count() >= hits + 2;
+
+        // written by the service, so the cached instance is invalidated
+        given()
+                .contentType(ContentType.TEXT).body("green")
+                .when()
+                .put("/examples/{id}/tags/color", id)
+                .then()
+                .statusCode(204);
+        given().when().get("/examples/{id}", id).then()
+                .statusCode(200)
+                .body("name", Matchers.equalTo("bar"))
+                .body("version", Matchers.equalTo(1));
+        assert "green".equals(given().when().get("/examples/{id}/tags/color", id).asString());
+
+        given().when().delete("/examples/{id}", id).then().statusCode(204);
+        given().when().get("/examples/{id}", id).then().statusCode(404);
+    }
+
+    @Test
+    void serviceShouldPublishTheVersionWritten() {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .build()
+        );
+        UUID id = source.getId();
+        List<Long> published = new CopyOnWriteArrayList<>();
+        invalidations.subscribe(ExampleEntity.class, invalidation -> {
+            if (id.equals(invalidation.id())) {
+                published.add(invalidation.version());
+            }
+        });
+
+        given()
+                .contentType(ContentType.TEXT).body("red")
+                .when()
+                .put("/examples/{id}/tags/{name}", id, "color")
+                .then()
+                .statusCode(204);
+        Example example = given().when().get("/examples/{id}", id).as(Example.class);
+        given()
+                .contentType(ContentType.JSON).body(example.description("updated"))
+                .when()
+                .put("/examples/{id}", id)
+                .then()
+                .statusCode(200)
+                .body("version", Matchers.equalTo(2));
+        assert published.equals(List.of(1L, 2L)) : published;
+
+        // a node that has read the version written retains it
+        given().when().get("/examples/{id}", id).then().statusCode(200);
+        invalidations.publish(ExampleEntity.class, id, 1L);
+        assert exampleCache.get(id).orElseThrow().example().getVersion() == 2;
+        given().when().delete("/examples/{id}", id).then().statusCode(204);
+        assert published.get(published.size() - 1) == null;
+        assert exampleCache.get(id).isEmpty();
+    }
+
+    @Test
+    void serviceShouldObserveWritesOfOtherNodes() throws Exception {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .build()
+        );
+        UUID id = source.getId();
+        given().when().get("/examples/{id}", id).then()
+                .statusCode(200)
+                .body("name", Matchers.equalTo("foo"));
+
+        // written by another node, which publishes the write
+        InvalidationBus otherNode = new InvalidationBus(jdbcTemplate, dataSourceProperties, "entity_invalidations");
+        jdbcTemplate.update("update examples set name = 'bar', version = version + 1 where id = ?", id);
+        otherNode.publish(ExampleEntity.class, id, 1L);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        String name = "foo";
+        while ("foo".equals(name) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            name = given().when().get("/examples/{id}", id).then()
+                    .statusCode(200)
+                    .extract().path("name");
+        }
+        assert "bar".equals(name) : "Expected the write of the other node to be observed";
+    }
+
     @Test
     void serviceDetectsVersionBasedConflicts() {
         ExampleEntity source = repository.saveAndFlush(
@@ -412,6 +1159,167 @@ class ExampleApiTest {
         assert id.equals(x.getId());
     }
 
+    @Test
+    void serviceReplaysCreationWithTheSameIdempotencyKey() {
+        // the identifier is generated, so a second creation would be a duplicate
+        Example source = new Example()
+                .name("foo")
+                .description("An example");
+        String key = UUID.randomUUID().toString();
+        var response = given()
+                .header(IdempotencyFeature.IDEMPOTENCY_KEY, key)
+                .contentType(ContentType.JSON).body(source)
+                .when()
+                .post("/examples");
+        assert response.statusCode() == 200;
+        assert response.header(IdempotencyFeature.REPLAYED) == null;
+        Example created = response.as(Example.class);
+
+        // a retry is answered with the original result
+        response = given()
+                .header(IdempotencyFeature.IDEMPOTENCY_KEY, key)
+                .contentType(ContentType.JSON).body(source)
+                .when()
+                .post("/examples");
+        assert response.statusCode() == 200;
+        assert "true".equals(response.header(IdempotencyFeature.REPLAYED));
+        assert created.getId().equals(response.as(Example.class).getId());
+        assert repository.count() == 1;
+
+        // as is a retry reaching another node
+        idempotencyStore.clear();
+        response = given()
+                .header(IdempotencyFeature.IDEMPOTENCY_KEY, key)
+                .contentType(ContentType.JSON).body(source)
+                .when()
+                .post("/examples");
+        assert response.statusCode() == 200;
+        assert created.getId().equals(response.as(Example.class).getId());
+        assert repository.count() == 1;
+
+        // the key cannot be used by another request
+        given()
+                .header(IdempotencyFeature.IDEMPOTENCY_KEY, key)
+                .contentType(ContentType.JSON).body(source.name("bar"))
+                .when()
+                .post("/examples")
+                .then()
+                .statusCode(422);
+
+        // the key of a request that failed is released, so the request can be retried
+        String failed = UUID.randomUUID().toString();
+        given()
+                .header(IdempotencyFeature.IDEMPOTENCY_KEY, failed)
+                .contentType(ContentType.JSON).body(new Example())
+                .when()
+                .post("/examples")
+                .then()
+                .statusCode(400);
+        given()
+                .header(IdempotencyFeature.IDEMPOTENCY_KEY, failed)
+                .contentType(ContentType.JSON).body(new Example().name("bar"))
+                .when()
+                .post("/examples")
+                .then()
+                .statusCode(200);
+    }
+
+    @Test
+    void serviceShouldAllowDeletingInstancesInBulk() {
+        List<UUID> ids = new LinkedList<>();
+        for (int i = 0; i < 3; i++) {
+            Example source = new Example();
+            source.name("bulk" + i);
+            var response = given()
+                    .contentType(ContentType.JSON).body(source)
+                    .when()
+                    .post("/examples");
+            assert response.statusCode() == 200;
+            ids.add(response.as(Example.class).getId());
+        }
+        // instances that do not exist are ignored
+        List<UUID> targets = new LinkedList<>(ids.subList(0, 2));
+        targets.add(UUID.randomUUID());
+
+        given()
+                .contentType(ContentType.JSON).body(targets)
+                .when()
+                .delete("/examples")
+                .then()
+                .statusCode(204);
+        for (UUID id : ids.subList(0, 2)) {
+            given()
+                    .when()
+                    .get("/examples/{id}", id)
+                    .then()
+                    .statusCode(404);
+        }
+        given()
+                .when()
+                .get("/examples/{id}", ids.get(2))
+                .then()
+                .statusCode(200);
+    }
+
+    @Test
+    void serviceShouldAllowSavingInstancesInBulk() {
+        ExampleEntity source = repository.saveAndFlush(
+                ExampleEntity.builder()
+                        .name("foo")
+                        .description("first example")
+                        .build()
+        );
+        Example replaced = new Example()
+                .name("foo")
+                .description("updated example");
+        replaced.id(source.getId())
+                .version(source.getVersion());
+        Example stale = new Example()
+                .name("foo");
+        stale.id(source.getId())
+                .version(source.getVersion() + 1);
+
+        var response = given()
+                .contentType(ContentType.JSON)
+                .body(List.of(new Example().name("bar"), replaced, stale))
+                .when()
+                .post("/examples/batch");
+        assert response.statusCode() == 200;
+        List<BatchItemResult> results = response.as(new TypeRef<List<BatchItemResult>>() {});
+        assert results.size() == 3;
+        assert results.get(0).getIndex() == 0;
+        assert results.get(0).getStatus() == 201;
+        assert results.get(0).getId() != null;
+        assert results.get(1).getStatus() == 200;
+        assert results.get(1).getVersion() == source.getVersion() + 1;
+        assert results.get(2).getStatus() == 409;
+        assert results.get(2).getDetail() != null;
+
+        response = given()
+                .when()
+                .get("/examples/{id}", source.getId());
+        assert response.statusCode() == 200;
+        assert "updated example".equals(response.as(Example.class).getDescription());
+
+        // newline delimited
+        response = given()
+                .contentType("application/x-ndjson")
+                .body("{\"name\": \"one\"}\n{\"name\": \"two\"}\n")
+                .when()
+                .post("/examples/batch");
+        assert response.statusCode() == 200;
+        results = response.as(new TypeRef<List<BatchItemResult>>() {});
+        assert results.size() == 2;
+        for (BatchItemResult result : results) {
+            assert result.getStatus() == 201;
+            given()
+                    .when()
+                    .get("/examples/{id}", result.getId())
+                    .then()
+                    .statusCode(200);
+        }
+    }
+
     @Test
     void serviceMethodsAreIdempotent() {
         // use PUT to create
@@ -427,6 +1335,18 @@ class ExampleApiTest {
         assert response.statusCode() == 200;
         Example x = response.as(Example.class);
         assert id.equals(x.getId());
+        assert x.getVersion() == 0;
+
+        // and again to replace it, retaining its creation
+        response = given()
+                .contentType(ContentType.JSON).body(source.description("The example"))
+                .when()
+                .put("/examples/{id}", id);
+        assert response.statusCode() == 200;
+        Example y = response.as(Example.class);
+        assert y.getVersion() == 1;
+        assert "The example".equals(y.getDescription());
+        assert y.getMetadata().getCreated().equals(x.getMetadata().getCreated());
 
         // multiple deletes are successful
         given()
@@ -441,5 +1361,13 @@ class ExampleApiTest {
                 .delete("/examples/{id}", id)
                 .then()
                 .statusCode(204);
+
+        // a deleted instance is not replaced
+        given()
+                .contentType(ContentType.JSON).body(source)
+                .when()
+                .put("/examples/{id}", id)
+                .then()
+                .statusCode(409);
     }
 }
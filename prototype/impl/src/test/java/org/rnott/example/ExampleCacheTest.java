@@ -0,0 +1,141 @@
+package org.rnott.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.rnott.example.api.Example;
+import org.rnott.example.persistence.ExampleEntity;
+import org.rnott.example.persistence.InvalidationBus;
+
+public class ExampleCacheTest {
+
+    private static ExampleCache.Entry entry(UUID id, long version) {
+        Example example = new Example().name("v" + version);
+        example.id(id).version(version);
+        return ExampleCache.Entry.of(example, null);
+    }
+
+    @Test
+    void entitiesAreCachedUntilWritten() {
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), null, null);
+        UUID id = UUID.randomUUID();
+        assert cache.get(id).isEmpty();
+        cache.put(id, cache.stamp(id), entry(id, 0));
+        assert cache.get(id).isPresent();
+
+        cache.invalidate(id);
+        assert cache.get(id).isEmpty();
+    }
+
+    @Test
+    void readsThatBeganBeforeAWriteAreNotCached() {
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), null, null);
+        UUID id = UUID.randomUUID();
+        long stamp = cache.stamp(id);
+        // written while the entity was being read
+        cache.invalidate(id);
+        cache.put(id, stamp, entry(id, 0));
+        assert cache.get(id).isEmpty();
+
+        // a read that began once the write completed is cached
+        cache.put(id, cache.stamp(id), entry(id, 1));
+        assert cache.get(id).isPresent();
+        cache.invalidateAll(List.of(id));
+        assert cache.get(id).isEmpty();
+    }
+
+    @Test
+    void olderVersionsDoNotReplaceNewerVersions() {
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), null, null);
+        UUID id = UUID.randomUUID();
+        cache.put(id, cache.stamp(id), entry(id, 2));
+        cache.put(id, cache.stamp(id), entry(id, 1));
+        assert cache.get(id).orElseThrow().example().getVersion() == 2;
+        cache.put(id, cache.stamp(id), entry(id, 3));
+        assert cache.get(id).orElseThrow().example().getVersion() == 3;
+    }
+
+    @Test
+    void writesOfOlderVersionsDoNotInvalidateNewerVersions() {
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), null, null);
+        UUID id = UUID.randomUUID();
+        cache.put(id, cache.stamp(id), entry(id, 2));
+        cache.invalidate(id, 1L);
+        assert cache.get(id).isPresent();
+        cache.invalidate(id, 3L);
+        assert cache.get(id).isEmpty();
+    }
+
+    @Test
+    void publishedWritesAreInvalidated() {
+        // delivered to this node only
+        InvalidationBus invalidations = new InvalidationBus(null, null, "entity_invalidations");
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), null, invalidations);
+        UUID id = UUID.randomUUID();
+        UUID other = UUID.randomUUID();
+        cache.put(id, cache.stamp(id), entry(id, 0));
+        cache.put(other, cache.stamp(other), entry(other, 0));
+
+        invalidations.publish(ExampleEntity.class, id, 1L);
+        assert cache.get(id).isEmpty();
+        assert cache.get(other).isPresent();
+
+        // every entity, as once a node starts listening
+        cache.put(id, cache.stamp(id), entry(id, 1));
+        invalidations.publish(ExampleEntity.class, null, null);
+        assert cache.get(id).isEmpty();
+        assert cache.get(other).isEmpty();
+    }
+
+    @Test
+    void publishedWritesOfOlderVersionsDoNotInvalidateNewerVersions() {
+        InvalidationBus invalidations = new InvalidationBus(null, null, "entity_invalidations");
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), null, invalidations);
+        UUID id = UUID.randomUUID();
+        // the version written has already been read by this node
+        cache.put(id, cache.stamp(id), entry(id, 2));
+        invalidations.publish(ExampleEntity.class, id, 2L);
+        invalidations.publish(ExampleEntity.class, id, 1L);
+        assert cache.get(id).orElseThrow().example().getVersion() == 2;
+
+        // a write without a version always invalidates
+        invalidations.publish(ExampleEntity.class, id, null);
+        assert cache.get(id).isEmpty();
+    }
+
+    @Test
+    void tagsAreCopied() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("color", "red");
+        tags.put("empty", null);
+        ExampleCache.Entry entry = ExampleCache.Entry.of(new Example().name("foo"), tags);
+        tags.clear();
+        assert entry.tags().size() == 2;
+        assert entry.tags().containsKey("empty");
+        try {
+            entry.tags().put("size", "large");
+            assert false : "Expected the tags to be unmodifiable";
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void metricsArePublished() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        ExampleCache cache = new ExampleCache(100, Duration.ofMinutes(1), registry, null);
+        UUID id = UUID.randomUUID();
+        cache.get(id);
+        cache.put(id, cache.stamp(id), entry(id, 0));
+        cache.get(id);
+        cache.get(id);
+        assert registry.get("cache.gets").tags("cache", "examples", "result", "hit").functionCounter().count() == 2;
+        assert registry.get("cache.gets").tags("cache", "examples", "result", "miss").functionCounter().count() == 1;
+        assert registry.find("cache.evictions").tags("cache", "examples").functionCounter() != null;
+    }
+}
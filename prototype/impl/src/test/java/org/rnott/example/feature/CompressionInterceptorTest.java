@@ -0,0 +1,65 @@
+package org.rnott.example.feature;
+
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.MediaType;
+import java.util.List;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+import org.rnott.example.feature.CompressionInterceptor.Coding;
+
+public class CompressionInterceptorTest {
+
+    @Test
+    void contentCodingIsNegotiated() {
+        assert CompressionInterceptor.negotiate(null) == null;
+        assert CompressionInterceptor.negotiate("identity") == null;
+        assert CompressionInterceptor.negotiate("br") == null;
+        assert CompressionInterceptor.negotiate("gzip") == Coding.GZIP;
+        assert CompressionInterceptor.negotiate("x-gzip") == Coding.GZIP;
+        assert CompressionInterceptor.negotiate("deflate, gzip") == Coding.GZIP;
+        assert CompressionInterceptor.negotiate("br, deflate") == Coding.DEFLATE;
+        assert CompressionInterceptor.negotiate("gzip;q=0.5, deflate") == Coding.DEFLATE;
+        assert CompressionInterceptor.negotiate("*") == Coding.GZIP;
+        assert CompressionInterceptor.negotiate("gzip;q=0, *") == Coding.DEFLATE;
+        assert CompressionInterceptor.negotiate("gzip;q=0, deflate;q=0") == null;
+    }
+
+    @Test
+    void compressionLevelDependsOnContentType() {
+        assert CompressionInterceptor.level(MediaType.APPLICATION_JSON_TYPE) == Deflater.DEFAULT_COMPRESSION;
+        assert CompressionInterceptor.level(MediaType.valueOf("application/json; charset=utf-8"))
+                == Deflater.DEFAULT_COMPRESSION;
+        assert CompressionInterceptor.level(MediaType.TEXT_PLAIN_TYPE) == Deflater.DEFAULT_COMPRESSION;
+        assert CompressionInterceptor.level(MediaType.valueOf("application/x-ndjson")) == Deflater.BEST_SPEED;
+        assert CompressionInterceptor.level(MediaType.valueOf("application/cbor")) == Deflater.BEST_SPEED;
+        assert CompressionInterceptor.level(MediaType.valueOf("application/problem+json")) == null;
+        assert CompressionInterceptor.level(MediaType.APPLICATION_OCTET_STREAM_TYPE) == null;
+        assert CompressionInterceptor.level(null) == null;
+    }
+
+    @Test
+    void entityTagsOfEncodedRepresentationsDiffer() {
+        EntityTag identity = new EntityTag("abc-1");
+        EntityTag gzip = CompressionInterceptor.encoded(identity, Coding.GZIP);
+        EntityTag deflate = CompressionInterceptor.encoded(identity, Coding.DEFLATE);
+        assert "\"abc-1-gzip\"".equals(gzip.toString());
+        assert !gzip.isWeak();
+        assert !gzip.equals(deflate);
+        assert CompressionInterceptor.decoded(gzip).equals(identity);
+        assert CompressionInterceptor.decoded(deflate).equals(identity);
+        assert CompressionInterceptor.decoded(identity).equals(identity);
+
+        // weak tags already allow for a different encoding
+        EntityTag weak = new EntityTag("abc-1", true);
+        assert CompressionInterceptor.encoded(weak, Coding.GZIP).equals(weak);
+        assert CompressionInterceptor.decoded(new EntityTag("abc-1-gzip", true)).isWeak();
+    }
+
+    @Test
+    void entityTagListsAreParsed() {
+        assert CompressionInterceptor.entityTags("*") == null;
+        assert CompressionInterceptor.entityTags("unquoted") == null;
+        assert CompressionInterceptor.entityTags("\"a-gzip\", W/\"b\"")
+                .equals(List.of(new EntityTag("a-gzip"), new EntityTag("b", true)));
+    }
+}
@@ -0,0 +1,43 @@
+package org.rnott.example.feature;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import org.junit.jupiter.api.Test;
+
+public class HttpDatesTest {
+
+    @Test
+    void datesAreFormattedAsHttpDates() {
+        HttpDates dates = new HttpDates(2);
+        OffsetDateTime modified = OffsetDateTime.of(2024, 1, 7, 9, 5, 3, 500, ZoneOffset.ofHours(-5));
+        assert "Sun, 07 Jan 2024 14:05:03 GMT".equals(dates.format(modified));
+        // served from the cache
+        assert "Sun, 07 Jan 2024 14:05:03 GMT".equals(dates.format(modified.toEpochSecond()));
+        assert dates.format(modified) == dates.format(modified);
+        // evicted from the cache, but formatted the same
+        dates.format(1L);
+        dates.format(2L);
+        assert "Sun, 07 Jan 2024 14:05:03 GMT".equals(dates.format(modified));
+    }
+
+    @Test
+    void currentDateIsFormattedOncePerSecond() {
+        HttpDates dates = new HttpDates(HttpDates.DEFAULT_CAPACITY);
+        dates.start();
+        try {
+            ZonedDateTime before = ZonedDateTime.now(ZoneId.of("GMT")).withNano(0);
+            String now = dates.now();
+            ZonedDateTime after = ZonedDateTime.now(ZoneId.of("GMT"));
+            ZonedDateTime parsed = ZonedDateTime.parse(now, DateTimeFormatter.RFC_1123_DATE_TIME);
+            assert !parsed.isBefore(before);
+            assert !parsed.isAfter(after);
+            String again = dates.now();
+            assert now == again || !now.equals(again);
+        } finally {
+            dates.stop();
+        }
+    }
+}
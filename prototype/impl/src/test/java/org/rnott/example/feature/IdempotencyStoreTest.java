@@ -0,0 +1,137 @@
+package org.rnott.example.feature;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.rnott.example.problems.ConflictException;
+import org.rnott.example.problems.UnprocessableContentException;
+import org.springframework.util.unit.DataSize;
+
+public class IdempotencyStoreTest {
+
+    private static IdempotencyStore store(Duration ttl, Duration timeout, Duration lease, DataSize capacity) {
+        // results are held in memory only
+        return new IdempotencyStore(null, ttl, timeout, lease, capacity);
+    }
+
+    private static IdempotencyStore store(Duration ttl, Duration timeout, DataSize capacity) {
+        return store(ttl, timeout, Duration.ofMinutes(1), capacity);
+    }
+
+    private static IdempotencyStore.Result result(IdempotencyStore store, String fingerprint, String body) {
+        return new IdempotencyStore.Result(200, "application/json", Map.of("ETag", "\"1\""),
+                body.getBytes(), fingerprint, store.expiry());
+    }
+
+    @Test
+    void resultsAreReplayed() {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofSeconds(5), DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+        store.complete("key", result(store, "request", "{}"));
+
+        Optional<IdempotencyStore.Result> replayed = store.begin("key", "request");
+        assert replayed.isPresent();
+        assert replayed.get().status() == 200;
+        assert "{}".equals(new String(replayed.get().body()));
+        assert "\"1\"".equals(replayed.get().headers().get("ETag"));
+
+        // other keys are independent
+        assert store.begin("other", "request").isEmpty();
+    }
+
+    @Test
+    void keysCannotBeReusedByOtherRequests() {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofSeconds(5), DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+        store.complete("key", result(store, "request", "{}"));
+        try {
+            store.begin("key", "different");
+            assert false : "Expected the request to be rejected";
+        } catch (UnprocessableContentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void duplicatesWaitForTheRequestInProgress() throws Exception {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofSeconds(5), DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Optional<IdempotencyStore.Result>> duplicate = CompletableFuture.supplyAsync(() -> {
+            started.countDown();
+            return store.begin("key", "request");
+        });
+        started.await();
+        Thread.sleep(100);
+        assert !duplicate.isDone();
+
+        store.complete("key", result(store, "request", "{}"));
+        Optional<IdempotencyStore.Result> replayed = duplicate.get(5, TimeUnit.SECONDS);
+        assert replayed.isPresent();
+        assert "{}".equals(new String(replayed.get().body()));
+    }
+
+    @Test
+    void releasedKeysAreClaimedByTheNextRequest() throws Exception {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofSeconds(5), DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+        CompletableFuture<Optional<IdempotencyStore.Result>> duplicate =
+                CompletableFuture.supplyAsync(() -> store.begin("key", "request"));
+        Thread.sleep(100);
+
+        store.release("key");
+        // the waiting request is processed instead
+        assert duplicate.get(5, TimeUnit.SECONDS).isEmpty();
+        store.release("key");
+        assert store.begin("key", "request").isEmpty();
+    }
+
+    @Test
+    void requestsInProgressAreWaitedForUntilTheTimeout() {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofMillis(200), DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+        try {
+            store.begin("key", "request");
+            assert false : "Expected a conflict";
+        } catch (ConflictException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void abandonedKeysCanBeClaimedAgain() throws Exception {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofSeconds(5), Duration.ofMillis(100),
+                DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+        // the duplicate waits until the claim expires
+        assert store.begin("key", "request").isEmpty();
+    }
+
+    @Test
+    void resultsExpire() throws Exception {
+        IdempotencyStore store = store(Duration.ofMillis(100), Duration.ofSeconds(5), DataSize.ofKilobytes(1));
+        assert store.begin("key", "request").isEmpty();
+        store.complete("key", result(store, "request", "{}"));
+        assert store.begin("key", "request").isPresent();
+        Thread.sleep(150);
+        assert store.begin("key", "request").isEmpty();
+    }
+
+    @Test
+    void resultsAreBoundedByCapacity() {
+        IdempotencyStore store = store(Duration.ofMinutes(1), Duration.ofSeconds(5), DataSize.ofBytes(10));
+        String body = "12345678";
+        for (String key : new String[]{"one", "two"}) {
+            assert store.begin(key, "request").isEmpty();
+            store.complete(key, result(store, "request", body));
+        }
+        // the least recently used result is evicted
+        assert store.begin("two", "request").isPresent();
+        assert store.begin("one", "request").isEmpty();
+    }
+}
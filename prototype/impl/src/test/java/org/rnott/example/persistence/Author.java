@@ -17,7 +17,7 @@ import org.rnott.example.api.EntityState;
 @Setter
 @Entity
 @Table(name = "authors")
-public class Author extends AbstractEntity {
+public class Author extends AbstractTagTableEntity {
 
     @Column(nullable = false)
     private String firstName = "";
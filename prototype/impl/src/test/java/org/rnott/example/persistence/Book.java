@@ -30,7 +30,7 @@ import org.rnott.example.api.EntityState;
 @Setter
 @Entity
 @Table(name = "books")
-public class Book extends AbstractEntity {
+public class Book extends AbstractTagTableEntity {
 
     @Column(nullable = false)
     private String title = "";
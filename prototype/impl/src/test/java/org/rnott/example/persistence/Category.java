@@ -16,7 +16,7 @@ import org.rnott.example.api.EntityState;
 @Setter
 @Entity
 @Table(name = "categories")
-public class Category extends AbstractEntity {
+public class Category extends AbstractTagTableEntity {
     @Column
     private String name = "";
 
@@ -0,0 +1,95 @@
+package org.rnott.example.persistence;
+
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class FieldTest {
+
+    static Stream<Arguments> valid() {
+        return Stream.of(
+                Arguments.of("one", 1),
+                Arguments.of("one23", 1),
+                Arguments.of("a2c", 1),
+                Arguments.of("one two three", 3),
+                Arguments.of("one  two  three ", 3),
+                Arguments.of(" one  two  three", 3),
+                Arguments.of(" one  two  three ", 3),
+                Arguments.of("a", 1),
+                Arguments.of("a b c", 3),
+                Arguments.of("ay bee see", 3),
+
+                Arguments.of("one (two) three", 2),
+                Arguments.of("one ( two ) three", 2),
+                Arguments.of(" one  (two ) three", 2),
+                Arguments.of(" one ( two) three ", 2),
+                Arguments.of("one two(three)", 2),
+                Arguments.of("one  two ( three)", 2),
+                Arguments.of(" one  two ( three ) ", 2),
+                Arguments.of("one( two three)", 1),
+                Arguments.of("one ( two  three)", 1),
+                Arguments.of(" one ( two  three ) ", 1),
+
+                Arguments.of("one(two(three))", 1),
+                Arguments.of("one ( two(  three))", 1),
+                Arguments.of("one (two (three ) ) ", 1),
+
+                Arguments.of("one two((three))", 2),
+                Arguments.of("(one two three)", 3)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("valid")
+    void fieldsCanBeParsed(String specification, int expected) {
+        Field f = Field.newInstance(specification);
+        assert f != null : "No fields";
+        assert expected == f.subfields().size()
+                : "Unexpected field count: " + f.subfields().size() + ", expected: " + expected;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "1one",
+            "one_two",
+            "one/two",
+            "one,two",
+            "one (two three",
+            "one, two (three",
+            "one  two ) three ",
+            "one  two  three)",
+            "one  (two  (three) ",
+            "one  two  (three))"
+    })
+    void malformedFieldsAreRejected(String specification) {
+        try {
+            Field.newInstance(specification);
+            assert false : "Expected a parse error: " + specification;
+        } catch (FieldParseException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void subfieldsAreRetainedInOrder() {
+        Field f = Field.newInstance("a b(c d) e");
+        assert f.hasSubfields();
+        assert f.subfields().size() == 3;
+        assert "a".equals(f.subfields().get(0).name());
+        assert !f.subfield("a").hasSubfields();
+        assert f.subfield("b").subfields().size() == 2;
+        assert "c".equals(f.subfield("b").subfields().get(0).name());
+        assert "d".equals(f.subfield("b").subfields().get(1).name());
+        assert f.subfield("e") != null;
+        assert f.subfield("c") == null;
+    }
+
+    @Test
+    void fieldsAreWrittenAsParsed() {
+        assert "(a b c)".equals(Field.newInstance("a b c").toString());
+        assert "(a(b c))".equals(Field.newInstance(" a  ( b c ) ").toString());
+    }
+}
@@ -0,0 +1,74 @@
+package org.rnott.example.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+public class InvalidationBusTest {
+
+    private static final String TYPE = ExampleEntity.class.getName();
+
+    @Test
+    void payloadsAreDecoded() {
+        List<InvalidationBus.Invalidation> invalidations = List.of(
+                new InvalidationBus.Invalidation(TYPE, UUID.randomUUID(), 3L),
+                new InvalidationBus.Invalidation(TYPE, UUID.randomUUID(), null),
+                new InvalidationBus.Invalidation(TYPE, null, null)
+        );
+        List<String> payloads = InvalidationBus.payloads("node", invalidations);
+        assert payloads.size() == 1;
+        assert payloads.get(0).length() < 8000;
+        assert InvalidationBus.parse("other", payloads.get(0)).equals(invalidations);
+    }
+
+    @Test
+    void payloadsAreSplitByTypeAndSize() {
+        List<InvalidationBus.Invalidation> invalidations = new ArrayList<>();
+        IntStream.range(0, InvalidationBus.MAX_PER_NOTIFICATION + 1)
+                .forEach(i -> invalidations.add(new InvalidationBus.Invalidation(TYPE, UUID.randomUUID(), (long) i)));
+        invalidations.add(new InvalidationBus.Invalidation(Author.class.getName(), UUID.randomUUID(), 1L));
+
+        List<String> payloads = InvalidationBus.payloads("node", invalidations);
+        assert payloads.size() == 3;
+        assert payloads.stream().allMatch(payload -> payload.length() < 8000);
+        List<InvalidationBus.Invalidation> parsed = new ArrayList<>();
+        payloads.forEach(payload -> parsed.addAll(InvalidationBus.parse("other", payload)));
+        assert parsed.equals(invalidations);
+    }
+
+    @Test
+    void ownAndMalformedPayloadsAreIgnored() {
+        List<String> payloads = InvalidationBus.payloads("node",
+                List.of(new InvalidationBus.Invalidation(TYPE, UUID.randomUUID(), 1L)));
+        assert InvalidationBus.parse("node", payloads.get(0)).isEmpty();
+        assert InvalidationBus.parse("other", "node").isEmpty();
+        assert InvalidationBus.parse("other", "node " + TYPE + " not-a-uuid:1").isEmpty();
+    }
+
+    @Test
+    void invalidationsAreDeliveredToTheSubscribersOfTheType() {
+        InvalidationBus bus = new InvalidationBus(null, null, "entity_invalidations");
+        List<InvalidationBus.Invalidation> delivered = new ArrayList<>();
+        bus.subscribe(ExampleEntity.class, delivered::add);
+        bus.subscribe(Author.class, invalidation -> {
+            throw new IllegalStateException("Unexpected invalidation");
+        });
+
+        UUID id = UUID.randomUUID();
+        bus.publish(ExampleEntity.class, id, 2L);
+        bus.publishAll(ExampleEntity.class, List.of());
+        assert delivered.equals(List.of(new InvalidationBus.Invalidation(TYPE, id, 2L)));
+    }
+
+    @Test
+    void channelNamesAreValidated() {
+        try {
+            new InvalidationBus(null, null, "entities; drop table example");
+            assert false : "Expected the channel to be rejected";
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
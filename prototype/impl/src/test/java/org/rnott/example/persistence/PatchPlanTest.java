@@ -0,0 +1,233 @@
+package org.rnott.example.persistence;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.rnott.example.api.EntityState;
+import org.rnott.example.api.PatchDocument;
+import org.rnott.example.api.PatchDocument.OpEnum;
+
+public class PatchPlanTest {
+
+    private static final String UPDATE = "update examples set version = version + 1,"
+            + " modified = :modified, modified_by = :modifiedBy%s where id = :id and deleted = false";
+
+    private static final Map<String, PatchPlan.Column> COLUMNS = Map.of(
+            "name", new PatchPlan.Column("name", String.class, false, null),
+            "description", new PatchPlan.Column("description", String.class, true, null),
+            "state", new PatchPlan.Column("state", EntityState.class, false, null)
+    );
+
+    private static final PatchPlan.Model TABLE = new PatchPlan.Model(COLUMNS, new DefaultEntityRepository.TagStatements(
+            false, "examples", UPDATE, " and version = :version",
+            "example_entity_tags", "example_entity_id", "key", "value", null, "id", "version"
+    ));
+
+    private static final PatchPlan.Model JSON = new PatchPlan.Model(COLUMNS, new DefaultEntityRepository.TagStatements(
+            true, "examples", UPDATE, " and version = :version",
+            null, null, null, null, "tags", "id", "version"
+    ));
+
+    private static PatchDocument op(OpEnum op, String path, Object value) {
+        return new PatchDocument().op(op).path(path).value(value);
+    }
+
+    private static PatchDocument from(OpEnum op, String from, String path) {
+        return new PatchDocument().op(op).from(from).path(path);
+    }
+
+    private static Map<String, Object> parameters(PatchPlan.Binding binding) {
+        return binding.parameters().stream()
+                .collect(Collectors.toMap(PatchPlan.Parameter::name, p -> p.value() == null ? "null" : p.value()));
+    }
+
+    @Test
+    void propertiesAreUpdatedWithoutWritingTags() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/name", "renamed"),
+                op(OpEnum.REMOVE, "/description", null),
+                op(OpEnum.REPLACE, "/state", "DISABLED")
+        ));
+        PatchPlan plan = PatchPlan.compile(TABLE, request);
+        String sql = plan.statement(true);
+        assert sql.contains("modified_by = :modifiedBy, name = :p0, description = null, state = :p1 where") : sql;
+        assert sql.contains("and version = :version") : sql;
+        assert !sql.contains("example_entity_tags") : sql;
+        assert !plan.statement(false).contains(":version");
+
+        PatchPlan.Binding binding = plan.bind(request);
+        assert binding.applicable();
+        assert "renamed".equals(parameters(binding).get("p0"));
+        assert EntityState.DISABLED == parameters(binding).get("p1");
+    }
+
+    @Test
+    void tagsAreWrittenAsDeltas() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                op(OpEnum.ADD, "/tags/color", "red"),
+                op(OpEnum.REMOVE, "/tags/size", null),
+                op(OpEnum.REPLACE, "/tags/shape", "round")
+        ));
+        PatchPlan plan = PatchPlan.compile(TABLE, request);
+        String sql = plan.statement(false);
+        // the tag to be replaced must exist, the one removed as well
+        assert sql.contains("exists (select 1 from example_entity_tags t where t.example_entity_id = :id"
+                + " and t.key = cast(:p0 as text))") : sql;
+        assert sql.contains("removed as (delete from example_entity_tags t using entity"
+                + " where t.example_entity_id = entity.id and t.key in (") : sql;
+        assert sql.contains("written as (insert into example_entity_tags") : sql;
+        assert sql.contains("on conflict (example_entity_id, key) do update") : sql;
+        assert sql.endsWith(" select entity.version from entity") : sql;
+        assert plan.bind(request).parameters().stream()
+                .map(PatchPlan.Parameter::value)
+                .toList()
+                .containsAll(List.of("color", "red", "size", "shape", "round"));
+    }
+
+    @Test
+    void testsAreEvaluatedByTheStatement() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                op(OpEnum.TEST, "/name", "example"),
+                op(OpEnum.TEST, "/description", null),
+                op(OpEnum.TEST, "/tags/color", "red"),
+                op(OpEnum.REPLACE, "/name", "renamed")
+        ));
+        String sql = PatchPlan.compile(TABLE, request).statement(false);
+        assert sql.contains(" and name = :p0") : sql;
+        assert sql.contains(" and description is null") : sql;
+        assert sql.contains(" and (select t.value from example_entity_tags t where t.example_entity_id = :id"
+                + " and t.key = cast(:p1 as text)) = cast(:p2 as text)") : sql;
+    }
+
+    @Test
+    void testsOfValuesGivenByThePatchAreEvaluatedWhenBound() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/name", "renamed"),
+                op(OpEnum.TEST, "/name", "renamed"),
+                op(OpEnum.ADD, "/tags/color", "red"),
+                op(OpEnum.TEST, "/tags/color", "red")
+        ));
+        PatchPlan plan = PatchPlan.compile(TABLE, request);
+        assert !plan.statement(false).contains(" and name =");
+        assert plan.bind(request).applicable();
+
+        PatchPlan.Request failing = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/name", "renamed"),
+                op(OpEnum.TEST, "/name", "other"),
+                op(OpEnum.ADD, "/tags/color", "red"),
+                op(OpEnum.TEST, "/tags/color", "red")
+        ));
+        assert !plan.bind(failing).applicable();
+
+        // a tag removed by the patch cannot be replaced
+        PatchPlan.Request removed = PatchPlan.Request.of(List.of(
+                op(OpEnum.REMOVE, "/tags/color", null),
+                op(OpEnum.REPLACE, "/tags/color", "red")
+        ));
+        assert !PatchPlan.compile(TABLE, removed).bind(removed).applicable();
+    }
+
+    @Test
+    void valuesAreCopiedFromThoseStored() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                from(OpEnum.COPY, "/name", "/description"),
+                op(OpEnum.REPLACE, "/name", "renamed"),
+                from(OpEnum.MOVE, "/tags/old", "/tags/new")
+        ));
+        String sql = PatchPlan.compile(TABLE, request).statement(false);
+        // the update sees the name before it is replaced
+        assert sql.contains("description = name, name = :p1 where") : sql;
+        assert sql.contains("t.key in (cast(:p") : sql;
+        assert sql.contains("(select t.value from example_entity_tags t where t.example_entity_id = :id") : sql;
+    }
+
+    @Test
+    void replacedTagsAreMergedWhenBound() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/tags", Map.of("color", "red", "size", "large")),
+                op(OpEnum.REMOVE, "/tags/size", null),
+                op(OpEnum.ADD, "/tags/shape", "round")
+        ));
+        PatchPlan plan = PatchPlan.compile(TABLE, request);
+        String sql = plan.statement(false);
+        assert sql.contains("stale as (") && sql.contains("fresh as (") : sql;
+        PatchPlan.Binding binding = plan.bind(request);
+        assert binding.applicable();
+        String tags = (String) binding.parameters().get(binding.parameters().size() - 1).value();
+        assert tags.contains("\"color\":\"red\"") && tags.contains("\"shape\":\"round\"") : tags;
+        assert !tags.contains("size") : tags;
+    }
+
+    @Test
+    void jsonTagsAreModifiedByTheEntityUpdate() {
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(
+                op(OpEnum.TEST, "/tags/color", "red"),
+                op(OpEnum.ADD, "/tags/size", "large"),
+                op(OpEnum.REMOVE, "/tags/shape", null)
+        ));
+        String sql = PatchPlan.compile(JSON, request).statement(false);
+        assert sql.startsWith("update examples set") : sql;
+        assert sql.contains("tags = coalesce(tags, jsonb_build_object()) || jsonb_build_object(") : sql;
+        assert sql.contains(" - cast(:p") : sql;
+        assert sql.contains(" and (tags ->> cast(:p0 as text)) = cast(:p1 as text)") : sql;
+        assert sql.contains(" and jsonb_exists(tags, cast(:p") : sql;
+        assert sql.endsWith(" returning version") : sql;
+    }
+
+    @Test
+    void plansAreSharedByPatchesOfTheSameShape() {
+        PatchPlan.Request one = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/name", "one"),
+                op(OpEnum.ADD, "/tags/a", "1")
+        ));
+        PatchPlan.Request two = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/name", "two"),
+                op(OpEnum.ADD, "/tags/b", "2")
+        ));
+        PatchPlan.Request three = PatchPlan.Request.of(List.of(
+                op(OpEnum.REPLACE, "/name", "three"),
+                op(OpEnum.ADD, "/tags/a~1b", "3"),
+                op(OpEnum.REMOVE, "/tags/a~1b", null)
+        ));
+        assert one.shape().equals(two.shape());
+        assert !one.shape().equals(three.shape());
+        assert "a/b".equals(three.keys().get(0));
+
+        PatchPlan plan = PatchPlan.compile(TABLE, one);
+        assert parameters(plan.bind(two)).values().containsAll(List.of("two", "b", "2"));
+    }
+
+    @Test
+    void invalidPatchesAreRejected() {
+        List<List<PatchDocument>> invalid = List.of(
+                List.of(op(OpEnum.REMOVE, "/name", null)),
+                List.of(op(OpEnum.REPLACE, "/name", null)),
+                List.of(op(OpEnum.REPLACE, "/version", 3)),
+                List.of(op(OpEnum.REPLACE, "/modified", "2024-01-01T00:00:00Z")),
+                List.of(op(OpEnum.REPLACE, "/unknown", "value")),
+                List.of(op(OpEnum.ADD, "/tags/a/b", "value")),
+                List.of(op(OpEnum.ADD, "name", "value")),
+                List.of(from(OpEnum.COPY, "/state", "/name")),
+                List.of(from(OpEnum.COPY, "/tags", "/description")),
+                List.of(from(OpEnum.COPY, null, "/name"))
+        );
+        for (List<PatchDocument> patch : invalid) {
+            try {
+                PatchPlan.compile(TABLE, PatchPlan.Request.of(patch));
+                assert false : "Expected the patch to be rejected: " + patch;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        // values are validated when bound
+        PatchPlan.Request request = PatchPlan.Request.of(List.of(op(OpEnum.ADD, "/tags/a", 1)));
+        try {
+            PatchPlan.compile(TABLE, request).bind(request);
+            assert false : "Expected a tag value to be rejected";
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.rnott.example.persistence;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Table;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.rnott.example.api.EntityState;
+
+@NoArgsConstructor
+@Getter
+@Setter
+@Entity
+@Table(name = "publishers")
+public class Publisher extends AbstractJsonTagEntity {
+    @Column
+    private String name = "";
+
+    public Publisher(String name) {
+        this(EntityState.ACTIVE, new LinkedHashMap<>(), name);
+    }
+
+    @Builder
+    public Publisher(EntityState state, Map<String, String> tags, String name) {
+        super(null, state, null, null, null, null, null, tags);
+        this.name = name;
+    }
+}
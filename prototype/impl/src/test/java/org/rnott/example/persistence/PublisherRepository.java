@@ -0,0 +1,7 @@
+package org.rnott.example.persistence;
+
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface PublisherRepository extends AbstractJsonTagEntityRepository<Publisher> {
+}
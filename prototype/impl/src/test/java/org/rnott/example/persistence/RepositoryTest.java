@@ -17,6 +17,7 @@ import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Order;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.context.jdbc.Sql;
@@ -58,6 +59,8 @@ class RepositoryTest {
     private AuthorRepository authorRepository;
     @Autowired
     private CategoryRepository categoryRepository;
+    @Autowired
+    private PublisherRepository publisherRepository;
 
     private final List<Author> savedAuthors = new LinkedList<>();
     private final List<Book> savedBooks = new LinkedList<>();
@@ -256,4 +259,216 @@ class RepositoryTest {
         assert category.getTags() != null;
         assert category.getTags().size() == 0;
     }
+
+    @Test
+    void canModifyEntityTagsInPlace() {
+        UUID id = categoryRepository.findAll().stream()
+                .map(AbstractEntity::getId)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("no items"));
+        long version = categoryRepository.findById(id)
+                .orElseThrow(() -> new IllegalStateException("id not found: " + id))
+                .getVersion();
+
+        assert categoryRepository.replaceTags(id, version, Map.of("foo", "bar", "rank", "1"))
+                .getAsLong() == version + 1;
+        assert categoryRepository.putTag(id, version + 1, "important", "").getAsLong() == version + 2;
+        assert categoryRepository.putTag(id, null, "rank", "2").getAsLong() == version + 3;
+        Category category = categoryRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert category.getVersion() == version + 3;
+        assert category.getTags().size() == 3;
+        assert "bar".equals(category.getTags().get("foo"));
+        assert "2".equals(category.getTags().get("rank"));
+        assert "".equals(category.getTags().get("important"));
+
+        assert categoryRepository.removeTag(id, null, "foo").isPresent();
+        assert categoryRepository.replaceTags(id, null, Map.of("rank", "3", "new", "tag")).isPresent();
+        category = categoryRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert category.getTags().equals(Map.of("rank", "3", "new", "tag"));
+
+        // stale versions are rejected
+        try {
+            categoryRepository.clearTags(id, version);
+            assert false;
+        } catch (ObjectOptimisticLockingFailureException e) {
+            // expected
+        }
+        assert categoryRepository.clearTags(id, category.getVersion()).isPresent();
+        category = categoryRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert category.getTags().isEmpty();
+
+        // entities that do not exist are not modified
+        assert categoryRepository.putTag(UUID.randomUUID(), null, "foo", "bar").isEmpty();
+    }
+
+    @Test
+    void unchangedTagsAreNotRewritten() {
+        UUID id = savedCategories.get(0).getId();
+        entityManager.flush();
+        assert categoryRepository.replaceTags(id, null, Map.of("rank", "1", "color", "red")).isPresent();
+        Object rank = tagRow(id, "rank");
+        Object color = tagRow(id, "color");
+
+        assert categoryRepository.replaceTags(id, null, Map.of("rank", "1", "color", "blue")).isPresent();
+        assert categoryRepository.putTag(id, null, "rank", "1").isPresent();
+        // an updated row is written as a new row version, at a new location
+        assert rank.equals(tagRow(id, "rank"));
+        assert !color.equals(tagRow(id, "color"));
+        Category category = categoryRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert category.getTags().equals(Map.of("rank", "1", "color", "blue"));
+    }
+
+    private Object tagRow(UUID id, String key) {
+        return entityManager.getEntityManager()
+                .createNativeQuery("select cast(ctid as text) from category_tags where category_id = ?1 and key = ?2")
+                .setParameter(1, id)
+                .setParameter(2, key)
+                .getSingleResult();
+    }
+
+    @Test
+    void canModifyJsonTagsInPlace() {
+        Publisher publisher = new Publisher("Bloomsbury");
+        entityManager.getEntityManager().persist(publisher);
+        entityManager.flush();
+        UUID id = publisher.getId();
+        long version = publisher.getVersion();
+        entityManager.clear();
+
+        assert publisherRepository.replaceTags(id, version, Map.of("foo", "bar", "rank", "1"))
+                .getAsLong() == version + 1;
+        assert publisherRepository.putTag(id, version + 1, "important", "").getAsLong() == version + 2;
+        assert publisherRepository.putTag(id, null, "rank", "2").getAsLong() == version + 3;
+        publisher = publisherRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert publisher.getVersion() == version + 3;
+        assert publisher.getTags().equals(Map.of("foo", "bar", "rank", "2", "important", ""));
+        entityManager.clear();
+
+        assert publisherRepository.removeTag(id, null, "foo").isPresent();
+        publisher = publisherRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert publisher.getTags().equals(Map.of("rank", "2", "important", ""));
+        entityManager.clear();
+
+        // stale versions are rejected
+        try {
+            publisherRepository.clearTags(id, version);
+            assert false;
+        } catch (ObjectOptimisticLockingFailureException e) {
+            // expected
+        }
+        assert publisherRepository.clearTags(id, version + 4).isPresent();
+        publisher = publisherRepository.findByIdWithTags(id)
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert publisher.getTags().isEmpty();
+
+        // entities that do not exist are not modified
+        assert publisherRepository.putTag(UUID.randomUUID(), null, "foo", "bar").isEmpty();
+    }
+
+    @Test
+    void canSaveEntitiesInBatch() {
+        List<Category> categories = categoryRepository.findAll();
+        Category replaced = categories.get(0);
+        Category deleted = categories.get(1);
+        long version = replaced.getVersion();
+        categoryRepository.deleteAllInBatch(List.of(deleted));
+        entityManager.clear();
+
+        replaced.setName("Horror");
+        List<BatchResult<Category>> results = categoryRepository.saveAllInBatch(List.of(
+                replaced,
+                new Category("Romance"),
+                deleted,
+                replaced
+        ));
+        assert results.size() == 4;
+        assert results.get(0).outcome() == BatchResult.Outcome.REPLACED;
+        assert results.get(0).entity().getVersion() == version + 1;
+        assert results.get(1).outcome() == BatchResult.Outcome.CREATED;
+        assert results.get(1).entity().getId() != null;
+        assert results.get(2).outcome() == BatchResult.Outcome.DELETED;
+        assert results.get(3).outcome() == BatchResult.Outcome.DUPLICATE;
+        entityManager.clear();
+
+        Category category = categoryRepository.findById(replaced.getId())
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert "Horror".equals(category.getName());
+        assert category.getCreated().equals(replaced.getCreated());
+        assert categoryRepository.findById(results.get(1).entity().getId()).isPresent();
+        assert categoryRepository.count() == 3;
+
+        // the detached entity is no longer the current version
+        results = categoryRepository.saveAllInBatch(List.of(replaced));
+        assert results.get(0).outcome() == BatchResult.Outcome.STALE;
+        assert !results.get(0).isWritten();
+    }
+
+    @Test
+    void canUpsertEntitiesInPlace() {
+        entityManager.flush();
+        List<Category> categories = categoryRepository.findAll();
+        Category replaced = categories.get(0);
+        Category deleted = categories.get(1);
+        long version = replaced.getVersion();
+        assert categoryRepository.putTag(replaced.getId(), version, "rank", "1").isPresent();
+        categoryRepository.deleteAllInBatch(List.of(deleted));
+        entityManager.clear();
+
+        replaced.setName("Horror");
+        BatchResult<Category> result = categoryRepository.upsert(replaced, version + 1);
+        assert result.outcome() == BatchResult.Outcome.REPLACED;
+        assert result.entity().getVersion() == version + 2;
+        assert "Horror".equals(result.entity().getName());
+        assert result.entity().getCreated().equals(replaced.getCreated());
+        assert result.entity().getModified().isAfter(replaced.getModified());
+        entityManager.clear();
+
+        // tags are maintained separately
+        Category category = categoryRepository.findByIdWithTags(replaced.getId())
+                .orElseThrow(() -> new IllegalStateException("id not found"));
+        assert "Horror".equals(category.getName());
+        assert "1".equals(category.getTags().get("rank"));
+
+        // neither stale nor deleted entities are written
+        assert categoryRepository.upsert(replaced, version).outcome() == BatchResult.Outcome.STALE;
+        assert categoryRepository.upsert(deleted, null).outcome() == BatchResult.Outcome.DELETED;
+        assert categoryRepository.findById(deleted.getId()).isEmpty();
+        assert categoryRepository.count() == 2;
+    }
+
+    @Test
+    void replacedEntitiesRetainTheirTags() {
+        entityManager.flush();
+        List<Category> categories = categoryRepository.findAll();
+        Category upserted = categories.get(0);
+        Category batched = categories.get(1);
+        assert categoryRepository.putTag(upserted.getId(), null, "rank", "1").isPresent();
+        assert categoryRepository.putTag(batched.getId(), null, "rank", "2").isPresent();
+        entityManager.clear();
+
+        // replaced without tags, one by one and in a batch
+        upserted = categoryRepository.findById(upserted.getId()).orElseThrow();
+        batched = categoryRepository.findById(batched.getId()).orElseThrow();
+        entityManager.clear();
+        upserted.setName("Horror");
+        batched.setName("Romance");
+        assert categoryRepository.upsert(upserted, null).outcome() == BatchResult.Outcome.REPLACED;
+        BatchResult<Category> result = categoryRepository.saveAllInBatch(List.of(batched)).get(0);
+        assert result.outcome() == BatchResult.Outcome.REPLACED;
+        assert result.entity().getVersion() == batched.getVersion() + 1;
+        entityManager.clear();
+
+        Category category = categoryRepository.findByIdWithTags(upserted.getId()).orElseThrow();
+        assert "Horror".equals(category.getName());
+        assert category.getTags().equals(Map.of("rank", "1"));
+        category = categoryRepository.findByIdWithTags(batched.getId()).orElseThrow();
+        assert "Romance".equals(category.getName());
+        assert category.getTags().equals(Map.of("rank", "2"));
+    }
 }
@@ -1,8 +1,15 @@
 package org.rnott.example.persistence;
 
+import jakarta.persistence.Persistence;
+import jakarta.persistence.PersistenceUtil;
 import java.time.LocalDate;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+import org.hibernate.SessionFactory;
+import org.hibernate.query.Query;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,6 +19,7 @@ import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabas
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
@@ -46,6 +54,8 @@ class SearchTest {
     private AuthorRepository authorRepository;
     @Autowired
     private CategoryRepository categoryRepository;
+    @Autowired
+    private PublisherRepository publisherRepository;
 
     @Autowired
     private SearchFactory searchFactory;
@@ -265,6 +275,235 @@ class SearchTest {
         assert pages == 5;
     }
 
+    @Test
+    void resultsPastTheLastPageAreNotCountedExactly() {
+        Supplier<SearchCriteria.Builder<Category>> criteria = () -> searchFactory
+                .searchCriteriaBuilderFor(Category.class)
+                .countStrategy(CountStrategy.NONE);
+
+        // the last page tells the total
+        Page<Category> results = categoryRepository.search(criteria.get().build(), PageRequest.of(0, 25));
+        assert results.getContent().size() == 3;
+        assert results.getTotalElements() == 3;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+
+        // a page past the end does not
+        results = categoryRepository.search(criteria.get().build(), PageRequest.of(4, 25));
+        assert results.getContent().isEmpty();
+        assert !results.hasNext();
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.UNKNOWN;
+
+        // unless it is the first page
+        results = categoryRepository.search(
+                criteria.get().exactMatch("name", "none").build(),
+                PageRequest.of(0, 25)
+        );
+        assert results.getTotalElements() == 0;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+    }
+
+    @Test
+    void resultsCanBeCountedUsingAStrategy() {
+        for (int i = 1; i <= 100; i++) {
+            categoryRepository.save(new Category(
+                    "Category" + i
+            ));
+        }
+        Pageable paging = Pageable.ofSize(25);
+
+        // no count: only the presence of a following page is known
+        Page<Category> results = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .countStrategy(CountStrategy.NONE)
+                        .build(),
+                paging
+        );
+        assert results.getContent().size() == 25;
+        assert results.hasNext();
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.UNKNOWN;
+
+        // bounded count: exact below the bound, a lower limit above it
+        results = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .countUpTo(1000)
+                        .build(),
+                paging
+        );
+        assert results.getTotalElements() == 103;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+        results = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .countUpTo(50)
+                        .build(),
+                paging
+        );
+        assert results.getTotalElements() == 51;
+        assert results.getContent().size() == 25;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.AT_LEAST;
+
+        // estimates are unavailable for restricted searches
+        results = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .countStrategy(CountStrategy.ESTIMATED)
+                        .partialMatch("name", "Category1" + SearchCriteria.WILDCARD)
+                        .build(),
+                paging
+        );
+        assert results.getTotalElements() == 12;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+
+        // nor for deleted entities, which the table statistics do not tell apart
+        long deleted = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .countStrategy(CountStrategy.EXACT)
+                        .onlyDeletedEntities()
+                        .build(),
+                paging
+        ).getTotalElements();
+        results = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .countStrategy(CountStrategy.ESTIMATED)
+                        .onlyDeletedEntities()
+                        .build(),
+                paging
+        );
+        assert results.getTotalElements() == deleted;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+    }
+
+    @Test
+    void searchesOfTheSameShapeShareQueries() {
+        SearchCriteria<Category> fantasy = searchFactory.searchCriteriaBuilderFor(Category.class)
+                .exactMatch("name", "Fantasy")
+                .build();
+        SearchCriteria<Category> mystery = searchFactory.searchCriteriaBuilderFor(Category.class)
+                .exactMatch("name", "Mystery")
+                .build();
+        // only the bound values differ
+        assert fantasy.getResultsQuery().unwrap(Query.class).getQueryString()
+                .equals(mystery.getResultsQuery().unwrap(Query.class).getQueryString());
+        assert fantasy.getResultsQuery().getSingleResult().getName().equals("Fantasy");
+        assert mystery.getResultsQuery().getSingleResult().getName().equals("Mystery");
+
+        // property names are part of the query text and must be known
+        try {
+            searchFactory.searchCriteriaBuilderFor(Category.class)
+                    .orderAs(List.of("-name;drop table categories"))
+                    .build();
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void resultsCanBeCountedConcurrently() {
+        Pageable paging = Pageable.ofSize(2);
+        SearchCriteria<Category> criteria = searchFactory.searchCriteriaBuilderFor(Category.class)
+                .countConcurrently()
+                .build();
+        assert criteria.isConcurrentCount();
+        Page<Category> results = categoryRepository.search(criteria, paging);
+        assert results.getContent().size() == 2;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+
+        // the concurrent count uses its own connection, so only committed data is visible
+        SearchCriteria<Category> sequential = searchFactory.searchCriteriaBuilderFor(Category.class)
+                .build();
+        assert sequential.getCountQuery().getSingleResult() == 3;
+        assert searchFactory.searchCriteriaBuilderFor(Category.class)
+                .countConcurrently()
+                .build()
+                .countConcurrently()
+                .orElseThrow()
+                .join() == 0;
+    }
+
+    @Test
+    void resultsAreCountedInLineWithoutAPermit() {
+        SearchCriteria<Category> criteria = new SearchCriteria.Builder<>(entityManager.getEntityManager(), Category.class)
+                .countConcurrently()
+                .build();
+        assert criteria.isConcurrentCount();
+        assert criteria.countConcurrently().isEmpty();
+        Page<Category> results = categoryRepository.search(criteria, Pageable.ofSize(2));
+        assert results.getContent().size() == 2;
+        assert results.getTotalElements() == 3;
+        assert ((SearchPage<Category>) results).getAccuracy() == SearchPage.Accuracy.EXACT;
+    }
+
+    @Test
+    void resultsCanBePagedUsingACursor() {
+        for (int i = 1; i <= 100; i++) {
+            categoryRepository.save(new Category(
+                    // duplicate names exercise the identifier tie-breaker
+                    "Category" + (i % 10)
+            ));
+        }
+
+        List<String> sort = List.of("-name");
+        SearchCriteria<Category> criteria = searchFactory.searchCriteriaBuilderFor(Category.class)
+                .orderAs(sort)
+                .build();
+        Pageable paging = Pageable.ofSize(25);
+        List<UUID> seen = new LinkedList<>();
+        String previous = null;
+        Page<Category> results = categoryRepository.search(criteria, paging);
+        while (results.hasContent()) {
+            for (Category c : results) {
+                assert previous == null || previous.compareTo(c.getName()) >= 0;
+                previous = c.getName();
+                seen.add(c.getId());
+            }
+            List<Category> content = results.getContent();
+            criteria = searchFactory.searchCriteriaBuilderFor(Category.class)
+                    .orderAs(sort)
+                    .after(criteria.cursorFor(content.get(content.size() - 1)))
+                    .build();
+            assert criteria.isKeyset();
+            results = categoryRepository.search(criteria, paging);
+            // the count is not affected by the cursor position
+            assert results.getTotalElements() == 103;
+        }
+        assert seen.size() == 103;
+        assert seen.stream().distinct().count() == 103;
+    }
+
+    @Test
+    void resultsCanBePagedByKeysetOverNullSortKeys() {
+        for (int i = 0; i < 7; i++) {
+            categoryRepository.save(new Category((String) null));
+        }
+        for (String sort : List.of("+name", "-name")) {
+            Pageable paging = Pageable.ofSize(5);
+            SearchCriteria<Category> criteria = searchFactory.searchCriteriaBuilderFor(Category.class)
+                    .orderAs(List.of(sort))
+                    .countStrategy(CountStrategy.NONE)
+                    .build();
+            List<UUID> seen = new LinkedList<>();
+            int pages = 0;
+            Page<Category> results = categoryRepository.search(criteria, paging);
+            while (true) {
+                pages++;
+                results.forEach(c -> seen.add(c.getId()));
+                if (!results.hasNext()) {
+                    break;
+                }
+                List<Category> content = results.getContent();
+                criteria = searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .orderAs(List.of(sort))
+                        .after(criteria.cursorFor(content.get(content.size() - 1)))
+                        .countStrategy(CountStrategy.NONE)
+                        .build();
+                results = categoryRepository.search(criteria, paging);
+            }
+            // the last page is full, but known to be the last
+            assert pages == 2 : sort;
+            assert seen.size() == 10 : sort;
+            assert seen.stream().distinct().count() == 10 : sort;
+        }
+    }
+
     @Test
     void resultsCanBeSorted() {
         // descending
@@ -391,4 +630,154 @@ class SearchTest {
         assert results.size() == 1;
         assert "Fantasy".equals(results.get(0).getName());
     }
+
+    @Test
+    void canSearchByMultipleTags() {
+        Category c = savedCategories.get(0);
+        c.getTags().put("important", "");
+        c.getTags().put("rating", "3.9");
+        c.getTags().put("classification", "classic");
+        categoryRepository.save(c);
+        Category other = savedCategories.get(1);
+        other.getTags().put("rating", "3.5");
+        categoryRepository.save(other);
+
+        // every tag restriction must be satisfied, each by a different tag
+        Page<Category> page = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .tagRangeMatch("rating", "3.0", "4.0")
+                        .tagExactMatch("classification", "classic")
+                        .build()
+        );
+        assert page.getTotalElements() == 1;
+        List<Category> results = page.toList();
+        assert results.size() == 1;
+        assert "Fantasy".equals(results.get(0).getName());
+
+        // matching many tags does not multiply the results
+        page = categoryRepository.search(
+                searchFactory.searchCriteriaBuilderFor(Category.class)
+                        .tagRangeMatch("rating", "3.0", "4.0")
+                        .build()
+        );
+        assert page.getTotalElements() == 2;
+        assert page.toList().size() == 2;
+    }
+
+    @Test
+    void canSearchByJsonTags() {
+        Publisher p = new Publisher("Bloomsbury");
+        p.getTags().put("important", "");
+        p.getTags().put("rating", "3.9");
+        p.getTags().put("classification", "classic");
+        UUID id = publisherRepository.save(p).getId();
+        publisherRepository.save(new Publisher("Doubleday"));
+        publisherRepository.flush();
+
+        // tags are read with the entity
+        Publisher found = publisherRepository.findByIdWithTags(id).orElseThrow();
+        assert "classic".equals(found.getTags().get("classification"));
+
+        List<SearchCriteria<Publisher>> criteria = List.of(
+                searchFactory.searchCriteriaBuilderFor(Publisher.class)
+                        .tagPresent("important")
+                        .build(),
+                searchFactory.searchCriteriaBuilderFor(Publisher.class)
+                        .tagExactMatch("classification", "classic")
+                        .build(),
+                searchFactory.searchCriteriaBuilderFor(Publisher.class)
+                        .tagRangeMatch("rating", "3.0", "4.0")
+                        .build(),
+                searchFactory.searchCriteriaBuilderFor(Publisher.class)
+                        .tagOptionsMatch("classification", "new", "old", "classic")
+                        .build(),
+                searchFactory.searchCriteriaBuilderFor(Publisher.class)
+                        .tagPartialMatch("classification", "%ass%")
+                        .tagExactMatch("rating", "3.9")
+                        .build()
+        );
+        for (SearchCriteria<Publisher> c : criteria) {
+            Page<Publisher> page = publisherRepository.search(c);
+            assert page.getTotalElements() == 1;
+            assert "Bloomsbury".equals(page.toList().get(0).getName());
+        }
+    }
+
+    @Test
+    void searchResultsCanBeScrolled() {
+        List<Book> books = new LinkedList<>();
+        long count = bookRepository.scroll(
+                searchFactory.searchCriteriaBuilderFor(Book.class)
+                        .partialMatch("title", "Harry%")
+                        .orderAs(List.of("-title")),
+                books::add
+        );
+        assert count == 2;
+        assert books.size() == 2;
+        assert "Harry Potter and the Half-Blood Prince".equals(books.get(0).getTitle());
+        assert "Harry Potter and the Deathly Hallows".equals(books.get(1).getTitle());
+        // entities are not retained once processed
+        for (Book book : books) {
+            assert !entityManager.getEntityManager().contains(book);
+        }
+
+        // invalid criteria
+        try {
+            bookRepository.scroll(
+                    searchFactory.searchCriteriaBuilderFor(Book.class).orderAs(List.of("+unknown")),
+                    books::add
+            );
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    void associationsCanBeExpandedWithoutAQueryPerResult() {
+        Statistics statistics = entityManager.getEntityManager()
+                .getEntityManagerFactory()
+                .unwrap(SessionFactory.class)
+                .getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            entityManager.flush();
+            entityManager.clear();
+            statistics.clear();
+            SearchCriteria<Book> criteria = searchFactory.searchCriteriaBuilderFor(Book.class)
+                    .expand(Field.newInstance("author categories(tags)"))
+                    .orderAs(List.of("+title"))
+                    .countStrategy(CountStrategy.NONE)
+                    .build();
+            Page<Book> page = bookRepository.search(criteria, Pageable.ofSize(10));
+            assert page.getNumberOfElements() == 3;
+            // the page (joining authors), then categories and their tags
+            assert statistics.getPrepareStatementCount() == 3 : statistics.getPrepareStatementCount();
+            PersistenceUtil util = Persistence.getPersistenceUtil();
+            for (Book book : page) {
+                assert util.isLoaded(book, "author");
+                assert util.isLoaded(book.getCategories());
+                book.getCategories().forEach(c -> {
+                    assert util.isLoaded(c.getTags());
+                });
+            }
+            assert "The Da Vinci Code".equals(page.toList().get(2).getTitle());
+            assert page.toList().get(2).getCategories().size() == 2;
+
+            entityManager.clear();
+            Book book = bookRepository.findById(savedBooks.get(0).getId(), Field.newInstance("categories"))
+                    .orElseThrow();
+            assert util.isLoaded(book.getCategories());
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+
+        // only associations can be expanded
+        try {
+            searchFactory.searchCriteriaBuilderFor(Book.class).expand(Field.newInstance("title"));
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
@@ -333,16 +333,26 @@ class SoftDeleteTest {
                     .getSingleResult();
             assert a.isDeleted();
         }
-        /*
-        TODO: batch
-        Iterable<UUID> ids = new HashSet<>();
-        Iterable<Category> entities = new HashSet<>();
-        categoryRepository.deleteAllById(ids);
-        categoryRepository.deleteAllInBatch();
-        categoryRepository.deleteAllInBatch(entities);
-        categoryRepository.deleteAllByIdInBatch(ids);
+    }
+
+    @Test
+    void multipleEntitiesCanBeDeletedInBatch() {
+        List<UUID> ids = savedBooks.stream()
+                .map(AbstractEntity::getId)
+                .toList();
+        bookRepository.deleteAllByIdInBatch(ids.subList(0, 1));
+        bookRepository.deleteAllInBatch(savedBooks.subList(1, savedBooks.size()));
+        entityManager.getEntityManager().clear();
+        for (UUID id : ids) {
+            assert bookRepository.findById(id).isEmpty();
+        }
+        assert bookRepository.countAllDeleted() == ids.size();
 
-         */
+        // batch deletes are soft deletes
+        categoryRepository.deleteAllInBatch();
+        entityManager.getEntityManager().clear();
+        assert categoryRepository.count() == 0;
+        assert categoryRepository.countAllDeleted() == savedCategories.size();
     }
 
     @Test
@@ -391,14 +401,25 @@ class SoftDeleteTest {
         for (Category c : all) {
             assert categoryRepository.findById(c.getId()).isPresent();
         }
-        /*
-        TODO: batch
-        Iterable<UUID> ids = new HashSet<>();
-        Iterable<Category> entities = new HashSet<>();
-        categoryRepository.undeleteAllInBatch();
-        categoryRepository.undeleteAllInBatch(entities);
-        categoryRepository.undeleteAllByIdInBatch(ids);
+    }
+
+    @Test
+    void canResurrectMultipleDeletedEntitiesInBatch() {
+        List<UUID> ids = savedCategories.stream()
+                .map(AbstractEntity::getId)
+                .toList();
+        categoryRepository.deleteAllByIdInBatch(ids);
+        entityManager.getEntityManager().clear();
+        assert categoryRepository.count() == 0;
+
+        categoryRepository.undeleteAllByIdInBatch(ids.subList(0, 1));
+        categoryRepository.undeleteAllInBatch(savedCategories.subList(1, 2));
+        entityManager.getEntityManager().clear();
+        assert categoryRepository.count() == 2;
 
-         */
+        categoryRepository.undeleteAllInBatch();
+        entityManager.getEntityManager().clear();
+        assert categoryRepository.count() == savedCategories.size();
+        assert categoryRepository.countAllDeleted() == 0;
     }
 }
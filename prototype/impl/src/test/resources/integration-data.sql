@@ -17,3 +17,13 @@ CREATE TABLE IF NOT EXISTS example_entity_tags(
     PRIMARY KEY (example_entity_id, key),
     FOREIGN KEY(example_entity_id) REFERENCES examples(id)
 );
+CREATE INDEX IF NOT EXISTS example_entity_tags_key_value ON example_entity_tags(key, value);
+CREATE TABLE IF NOT EXISTS idempotency_keys(
+    key TEXT PRIMARY KEY,
+    fingerprint TEXT NOT NULL,
+    status INTEGER,
+    media_type TEXT,
+    headers TEXT,
+    body BYTEA,
+    expires TIMESTAMP WITH TIME ZONE NOT NULL
+);
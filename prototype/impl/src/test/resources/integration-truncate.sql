@@ -1,2 +1,3 @@
 TRUNCATE TABLE examples;
 TRUNCATE TABLE example_entity_tags;
+TRUNCATE TABLE idempotency_keys;
@@ -18,6 +18,7 @@ CREATE TABLE IF NOT EXISTS author_tags(
     PRIMARY KEY (author_id, key),
     FOREIGN KEY(author_id) REFERENCES authors(id)
 );
+CREATE INDEX IF NOT EXISTS author_tags_key_value ON author_tags(key, value);
 
 CREATE TABLE IF NOT EXISTS books(
     id UUID PRIMARY KEY,
@@ -40,6 +41,7 @@ CREATE TABLE IF NOT EXISTS book_tags(
     PRIMARY KEY (book_id, key),
     FOREIGN KEY(book_id) REFERENCES books(id)
 );
+CREATE INDEX IF NOT EXISTS book_tags_key_value ON book_tags(key, value);
 
 CREATE TABLE IF NOT EXISTS categories(
     id UUID PRIMARY KEY,
@@ -59,6 +61,7 @@ CREATE TABLE IF NOT EXISTS category_tags(
     PRIMARY KEY (category_id, key),
     FOREIGN KEY(category_id) REFERENCES categories(id)
 );
+CREATE INDEX IF NOT EXISTS category_tags_key_value ON category_tags(key, value);
 
 CREATE TABLE IF NOT EXISTS book_categories(
     book_id UUID NOT NULL,
@@ -67,3 +70,17 @@ CREATE TABLE IF NOT EXISTS book_categories(
     FOREIGN KEY(category_id) REFERENCES categories(id),
     UNIQUE(book_id, category_id)
 );
+
+CREATE TABLE IF NOT EXISTS publishers(
+    id UUID PRIMARY KEY,
+    name TEXT,
+    tags JSONB,
+    state TEXT NOT NULL DEFAULT 'ACTIVE',
+    version INTEGER NOT NULL DEFAULT 0,
+    deleted BOOLEAN,
+    created TIMESTAMP WITH TIME ZONE,
+    created_by TEXT,
+    modified TIMESTAMP WITH TIME ZONE,
+    modified_by TEXT
+);
+CREATE INDEX IF NOT EXISTS publishers_tags ON publishers USING GIN (tags);
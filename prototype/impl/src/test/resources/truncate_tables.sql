@@ -2,3 +2,4 @@ TRUNCATE TABLE books;
 TRUNCATE TABLE authors;
 TRUNCATE TABLE categories;
 TRUNCATE TABLE book_categories;
+TRUNCATE TABLE publishers;